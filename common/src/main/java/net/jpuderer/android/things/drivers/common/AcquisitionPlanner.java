@@ -0,0 +1,328 @@
+package net.jpuderer.android.things.drivers.common;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the acquisitions of several sensors over a period, so that their conversions, bus
+ * transfers and power draw don't pile up at the same moment.
+ *
+ * Each {@link Task} (typically a sensor that measures on demand) has a cost: how long it
+ * keeps the bus, the CPU or its own power supply busy.  Every period the planner starts each
+ * task in its own slot, chosen so that no two slots overlap.  Activity that can't be moved,
+ * like a sensor that streams frames on its own schedule, is described with a
+ * {@link Reservation}: the driver marks each time the activity happens, and the planner keeps
+ * tasks out of its way, re-planning if it drifts.
+ *
+ * Tasks are started on the {@link DriverScheduler} thread.  With aligned timestamps, all
+ * tasks of a period are given the start of the period as their timestamp, so readings from
+ * different sensors can be matched up downstream.
+ */
+public class AcquisitionPlanner implements AutoCloseable {
+    private static final String TAG = AcquisitionPlanner.class.getSimpleName();
+
+    // Gap left between slots, for scheduling jitter
+    static final long GUARD_MS = 5;
+
+    // Re-plan when a reservation has moved by more than this
+    static final long DRIFT_MS = 2 * GUARD_MS;
+
+    /**
+     * Acquisition the planner can schedule.
+     */
+    public interface Task {
+        /**
+         * How long an acquisition keeps the sensor or bus busy, in milliseconds.
+         */
+        long getCostMillis();
+
+        /**
+         * Start an acquisition.  Called on the scheduler's thread, so it must not block.
+         * @param timestampNanos Timestamp to give the result, in
+         *                       {@link SystemClock#elapsedRealtimeNanos()} time: the start of
+         *                       the period if timestamps are aligned, otherwise now.
+         */
+        void acquire(long timestampNanos);
+    }
+
+    /**
+     * Recurring activity the planner can't move.  Returned by
+     * {@link #addReservation(long, long)}.
+     */
+    public class Reservation {
+        private final long mCostMillis;
+        private final long mCadenceMillis;
+        // Start of the activity relative to the start of the period (modulo its cadence), or
+        // -1 until it is marked
+        private long mPhaseMillis = -1;
+
+        private Reservation(long costMillis, long cadenceMillis) {
+            mCostMillis = costMillis;
+            mCadenceMillis = cadenceMillis;
+        }
+
+        /**
+         * Report that the activity just finished.
+         */
+        public void mark() {
+            onMark(this, SystemClock.uptimeMillis());
+        }
+    }
+
+    // A task and where it runs in the period
+    private class Slot implements Runnable {
+        final Task task;
+        long offset = -1;
+
+        Slot(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            long timestamp = SystemClock.elapsedRealtimeNanos();
+            if (mAlignTimestamps) {
+                long periodStart = now - Math.floorMod(now - mEpochMillis, mPeriodMillis);
+                timestamp -= TimeUnit.MILLISECONDS.toNanos(now - periodStart);
+            }
+            task.acquire(timestamp);
+        }
+    }
+
+    private final long mPeriodMillis;
+
+    // Guarded by this
+    private final ArrayList<Slot> mSlots = new ArrayList<>();
+    private final ArrayList<Reservation> mReservations = new ArrayList<>();
+    private DriverScheduler mScheduler;
+    private long mEpochMillis;
+    private volatile boolean mAlignTimestamps;
+    // Number of placements that overlap a reservation, because there was no room
+    private int mOverlaps;
+
+    /**
+     * @param periodMillis Time between acquisitions of each task.
+     */
+    public AcquisitionPlanner(long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        mPeriodMillis = periodMillis;
+    }
+
+    public long getPeriodMillis() {
+        return mPeriodMillis;
+    }
+
+    /**
+     * Give all tasks of a period the start of the period as their timestamp.
+     */
+    public void setAlignTimestamps(boolean align) {
+        mAlignTimestamps = align;
+    }
+
+    public boolean getAlignTimestamps() {
+        return mAlignTimestamps;
+    }
+
+    /**
+     * Add a task, acquired once every period.
+     * @throws IllegalStateException The tasks wouldn't fit in the period.
+     */
+    public synchronized void addTask(Task task) {
+        long total = task.getCostMillis() + GUARD_MS;
+        for (Slot slot : mSlots) {
+            if (slot.task == task) {
+                throw new IllegalArgumentException("Task already added");
+            }
+            total += slot.task.getCostMillis() + GUARD_MS;
+        }
+        if (total > mPeriodMillis) {
+            throw new IllegalStateException("Tasks take " + total + "ms, longer than the "
+                    + mPeriodMillis + "ms period");
+        }
+        mSlots.add(new Slot(task));
+        replan();
+    }
+
+    public synchronized void removeTask(Task task) {
+        for (int i = 0; i < mSlots.size(); i++) {
+            Slot slot = mSlots.get(i);
+            if (slot.task != task) continue;
+            if (mScheduler != null) mScheduler.removeCallbacks(slot);
+            mSlots.remove(i);
+            replan();
+            return;
+        }
+    }
+
+    /**
+     * Reserve time for activity that happens on its own schedule.  No time is reserved until
+     * the activity is first marked.
+     * @param costMillis How long the activity takes.
+     * @param cadenceMillis How often it happens.  The period must be a multiple of it, so that
+     *                      the activity happens at the same offsets every period.
+     */
+    public synchronized Reservation addReservation(long costMillis, long cadenceMillis) {
+        if (costMillis < 0 || cadenceMillis <= 0) {
+            throw new IllegalArgumentException("Invalid cost or cadence");
+        }
+        if (mPeriodMillis % cadenceMillis != 0) {
+            throw new IllegalArgumentException("Period must be a multiple of the cadence");
+        }
+        Reservation reservation = new Reservation(costMillis, cadenceMillis);
+        mReservations.add(reservation);
+        return reservation;
+    }
+
+    public synchronized void removeReservation(Reservation reservation) {
+        if (mReservations.remove(reservation)) replan();
+    }
+
+    /**
+     * Offset of a task's slot from the start of each period in milliseconds, or -1 if the
+     * task wasn't added or there is no room for it.
+     */
+    public synchronized long getOffsetMillis(Task task) {
+        for (Slot slot : mSlots) {
+            if (slot.task == task) return slot.offset;
+        }
+        return -1;
+    }
+
+    /**
+     * Number of times a task was placed in a slot that overlaps a reservation.
+     */
+    public synchronized int getOverlapCount() {
+        return mOverlaps;
+    }
+
+    public synchronized void start() {
+        if (mScheduler != null) return;
+        mScheduler = DriverScheduler.acquire();
+        mEpochMillis = SystemClock.uptimeMillis();
+        // Phases are relative to the start of the period, so find them again
+        for (Reservation reservation : mReservations) {
+            reservation.mPhaseMillis = -1;
+        }
+        for (Slot slot : mSlots) {
+            slot.offset = -1;
+        }
+        replan();
+    }
+
+    public synchronized void stop() {
+        if (mScheduler == null) return;
+        for (Slot slot : mSlots) {
+            mScheduler.removeCallbacks(slot);
+        }
+        mScheduler = null;
+        DriverScheduler.release();
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private synchronized void onMark(Reservation reservation, long endMillis) {
+        if (mScheduler == null) return;
+        long phase = Math.floorMod(endMillis - reservation.mCostMillis - mEpochMillis,
+                reservation.mCadenceMillis);
+        long previous = reservation.mPhaseMillis;
+        reservation.mPhaseMillis = phase;
+        if (previous < 0 || circularDistance(phase, previous, reservation.mCadenceMillis)
+                > DRIFT_MS) {
+            replan();
+        }
+    }
+
+    // Place each task, in the order they were added, at the earliest offset where it
+    // overlaps neither the tasks before it nor any reservation.  Must be called with the
+    // lock held.
+    private void replan() {
+        for (int i = 0; i < mSlots.size(); i++) {
+            Slot slot = mSlots.get(i);
+            long cost = slot.task.getCostMillis();
+            long offset = findOffset(i, cost, true);
+            boolean overlaps = offset < 0;
+            if (overlaps) offset = findOffset(i, cost, false);
+            if (offset == slot.offset) continue;
+            slot.offset = offset;
+            if (offset < 0) {
+                // The tasks before it are spread so that there is no room left
+                Log.w(TAG, "No room for a task in the " + mPeriodMillis + "ms period");
+                if (mScheduler != null) mScheduler.removeCallbacks(slot);
+                continue;
+            }
+            if (overlaps) mOverlaps++;
+            schedule(slot);
+        }
+    }
+
+    // Earliest offset for the i-th slot, or -1 if there's no room.  Must be called with the
+    // lock held.
+    private long findOffset(int index, long cost, boolean avoidReservations) {
+        long offset = 0;
+        boolean moved = true;
+        while (moved) {
+            if (offset + cost + GUARD_MS > mPeriodMillis) return -1;
+            moved = false;
+            for (int i = 0; i < index; i++) {
+                Slot other = mSlots.get(i);
+                // Also check the slot in the periods before and after
+                for (long start = other.offset - mPeriodMillis;
+                        start <= other.offset + mPeriodMillis; start += mPeriodMillis) {
+                    long end = busyUntil(offset, cost, start, other.task.getCostMillis());
+                    if (end > offset) {
+                        offset = end;
+                        moved = true;
+                    }
+                }
+            }
+            if (!avoidReservations) continue;
+            for (Reservation reservation : mReservations) {
+                if (reservation.mPhaseMillis < 0) continue;
+                // The reservation recurs through the period, so check each occurrence
+                for (long start = reservation.mPhaseMillis - reservation.mCadenceMillis;
+                        start < mPeriodMillis; start += reservation.mCadenceMillis) {
+                    long end = busyUntil(offset, cost, start, reservation.mCostMillis);
+                    if (end > offset) {
+                        offset = end;
+                        moved = true;
+                    }
+                }
+            }
+        }
+        return offset;
+    }
+
+    // If [offset, offset + cost) overlaps [start, start + length) plus the guard on either
+    // side, the first offset after it.  Otherwise offset.
+    private static long busyUntil(long offset, long cost, long start, long length) {
+        long busyEnd = start + length + GUARD_MS;
+        if (offset < busyEnd && offset + cost > start - GUARD_MS) return busyEnd;
+        return offset;
+    }
+
+    private static long circularDistance(long a, long b, long cadence) {
+        long d = Math.abs(a - b);
+        return Math.min(d, cadence - d);
+    }
+
+    // Must be called with the lock held
+    private void schedule(Slot slot) {
+        if (mScheduler == null) return;
+        mScheduler.removeCallbacks(slot);
+        long now = SystemClock.uptimeMillis();
+        long first = mEpochMillis + slot.offset;
+        if (first < now) {
+            first += ((now - first) / mPeriodMillis + 1) * mPeriodMillis;
+        }
+        mScheduler.postPeriodic(null, slot, first, mPeriodMillis, 0);
+    }
+}
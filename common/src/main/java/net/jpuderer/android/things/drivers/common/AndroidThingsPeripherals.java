@@ -0,0 +1,37 @@
+package net.jpuderer.android.things.drivers.common;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.PeripheralManager;
+import com.google.android.things.pio.UartDevice;
+
+import java.io.IOException;
+
+/**
+ * Opens the board's peripherals with {@link PeripheralManager}.
+ */
+public class AndroidThingsPeripherals implements PeripheralProvider {
+    private static final AndroidThingsPeripherals sInstance = new AndroidThingsPeripherals();
+
+    public static AndroidThingsPeripherals getInstance() {
+        return sInstance;
+    }
+
+    private AndroidThingsPeripherals() {
+    }
+
+    @Override
+    public Gpio openGpio(String name) throws IOException {
+        return PeripheralManager.getInstance().openGpio(name);
+    }
+
+    @Override
+    public UartDevice openUartDevice(String name) throws IOException {
+        return PeripheralManager.getInstance().openUartDevice(name);
+    }
+
+    @Override
+    public I2cDevice openI2cDevice(String name, int address) throws IOException {
+        return PeripheralManager.getInstance().openI2cDevice(name, address);
+    }
+}
@@ -0,0 +1,31 @@
+package net.jpuderer.android.things.drivers.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count, updated without locking.
+ */
+public class Counter {
+    private final String mName;
+    private final AtomicLong mValue = new AtomicLong();
+
+    Counter(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void increment() {
+        mValue.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        mValue.addAndGet(delta);
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+}
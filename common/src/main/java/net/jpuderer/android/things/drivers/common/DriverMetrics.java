@@ -0,0 +1,95 @@
+package net.jpuderer.android.things.drivers.common;
+
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Counters and latency histograms for one driver instance.
+ *
+ * Drivers look up their counters and histograms once, when they are created, and update
+ * them without locking from whatever thread they run on.  {@link #snapshot()} can be called
+ * from any thread at any time.
+ */
+public class DriverMetrics {
+    // Standard counter names.  Drivers only register the ones that apply to them.
+
+    // Complete data frames or measurements received
+    public static final String FRAMES = "frames";
+    // Raw bytes received
+    public static final String BYTES = "bytes";
+    public static final String CHECKSUM_ERRORS = "checksum_errors";
+    // Times bytes had to be skipped to find the start of the next frame
+    public static final String RESYNCS = "resyncs";
+    // Data dropped because a consumer or buffer couldn't keep up
+    public static final String OVERFLOWS = "overflows";
+    public static final String TIMEOUTS = "timeouts";
+    public static final String GPIO_ERRORS = "gpio_errors";
+    public static final String I2C_ERRORS = "i2c_errors";
+
+    // Standard histogram names
+
+    // Time from sending a command until the device has its result ready
+    public static final String COMMAND_TO_DATA_READY = "command_to_data_ready";
+    // Time spent handling a peripheral callback
+    public static final String CALLBACK_PROCESSING = "callback_processing";
+    // Time taken by a complete bus transaction
+    public static final String TRANSACTION = "transaction";
+
+    private final String mName;
+    private final long mCreatedNanos = System.nanoTime();
+
+    private final CopyOnWriteArrayList<Counter> mCounters = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<LatencyHistogram> mHistograms =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * @param name Name of the driver instance, used when reporting the metrics.
+     */
+    public DriverMetrics(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Return the counter with the given name, creating it if needed.
+     */
+    public synchronized Counter counter(String name) {
+        for (Counter counter : mCounters) {
+            if (counter.getName().equals(name)) return counter;
+        }
+        Counter counter = new Counter(name);
+        mCounters.add(counter);
+        return counter;
+    }
+
+    /**
+     * Return the histogram with the given name, creating it if needed.
+     */
+    public synchronized LatencyHistogram histogram(String name) {
+        for (LatencyHistogram histogram : mHistograms) {
+            if (histogram.getName().equals(name)) return histogram;
+        }
+        LatencyHistogram histogram = new LatencyHistogram(name);
+        mHistograms.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Copy the current value of every counter and histogram.
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, Long> counters = MetricsSnapshot.newMap();
+        for (Counter counter : mCounters) {
+            counters.put(counter.getName(), counter.get());
+        }
+        Map<String, HistogramSnapshot> histograms = MetricsSnapshot.newMap();
+        for (LatencyHistogram histogram : mHistograms) {
+            histograms.put(histogram.getName(), histogram.snapshot());
+        }
+        return new MetricsSnapshot(mName, System.nanoTime() - mCreatedNanos, counters,
+                histograms);
+    }
+}
@@ -0,0 +1,266 @@
+package net.jpuderer.android.things.drivers.common;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single thread that all drivers schedule their timed work on.
+ *
+ * Each task has a deadline and a slack: it may run up to slack milliseconds late.  The
+ * scheduler wakes up at the earliest time some task can't wait any longer, and then runs
+ * every task whose deadline has passed, so tasks with slack share wakeups with nearby ones
+ * instead of each waking the thread.  Tasks either run on the scheduler's thread (which
+ * drivers can also use for peripheral callbacks, see {@link #getHandler()}), or are handed
+ * to a target handler when they are due.
+ *
+ * Tasks run on the scheduler's thread delay every task after them, so they must be short.
+ * Drivers whose I/O blocks for long (like bit-banged buses) should hand their tasks to an
+ * I/O thread of their own instead, trading a thread and a message per task for not making
+ * the other drivers late.
+ *
+ * The scheduler is started when the first driver acquires it, and stopped when the last one
+ * releases it.  Its metrics count wakeups and tasks run, and how late tasks ran.
+ */
+public class DriverScheduler {
+    private static final String TAG = DriverScheduler.class.getSimpleName();
+
+    // Metrics of the scheduler
+    public static final String WAKEUPS = "wakeups";
+    public static final String TASKS = "tasks";
+    // Time from a task's deadline until it was run
+    public static final String LATENESS = "lateness";
+
+    private static DriverScheduler sInstance;
+    private static int sUsers;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final DriverMetrics mMetrics = new DriverMetrics(TAG);
+    private final Counter mWakeups = mMetrics.counter(WAKEUPS);
+    private final Counter mTasks = mMetrics.counter(TASKS);
+    private final LatencyHistogram mLateness = mMetrics.histogram(LATENESS);
+
+    // Scheduled tasks in order of deadline, and spare entries for reuse, so that scheduling
+    // doesn't allocate.  Guarded by this.
+    private final ArrayList<Entry> mQueue = new ArrayList<>();
+    private final ArrayList<Entry> mFree = new ArrayList<>();
+    // Time the thread is set to wake up, or Long.MAX_VALUE if it isn't
+    private long mWakeupMillis = Long.MAX_VALUE;
+
+    private static class Entry {
+        Runnable task;
+        Handler target;
+        long deadline;
+        long slack;
+        // Period of a periodic task, or 0
+        long period;
+    }
+
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    private DriverScheduler() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Return the scheduler, starting it if needed.  Each call must be matched by a call to
+     * {@link #release()}.
+     */
+    public static synchronized DriverScheduler acquire() {
+        if (sUsers++ == 0) {
+            sInstance = new DriverScheduler();
+        }
+        return sInstance;
+    }
+
+    public static synchronized void release() {
+        if (sUsers == 0) {
+            throw new IllegalStateException("Scheduler released more often than acquired");
+        }
+        if (--sUsers == 0) {
+            // Let anything already posted (like unregistering callbacks) finish first
+            sInstance.mThread.quitSafely();
+            sInstance = null;
+        }
+    }
+
+    /**
+     * Handler of the scheduler's thread, for registering peripheral callbacks that return
+     * quickly.  Use the scheduler's own methods for timed work.
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Run a task on the scheduler's thread as soon as possible.
+     */
+    public void post(Runnable task) {
+        postAtTime(null, task, SystemClock.uptimeMillis(), 0, 0);
+    }
+
+    /**
+     * Run a task on the scheduler's thread at the given time.
+     * @param uptimeMillis Deadline, in {@link SystemClock#uptimeMillis()} time.
+     */
+    public void postAtTime(Runnable task, long uptimeMillis) {
+        postAtTime(null, task, uptimeMillis, 0, 0);
+    }
+
+    /**
+     * Run a task on the scheduler's thread at the given time, or up to slackMillis later if
+     * that saves a wakeup.
+     */
+    public void postAtTime(Runnable task, long uptimeMillis, long slackMillis) {
+        postAtTime(null, task, uptimeMillis, slackMillis, 0);
+    }
+
+    /**
+     * Post a task to the target handler at the given time, or up to slackMillis later if that
+     * saves a wakeup.
+     */
+    public void postAtTime(Handler target, Runnable task, long uptimeMillis, long slackMillis) {
+        postAtTime(target, task, uptimeMillis, slackMillis, 0);
+    }
+
+    /**
+     * Post a task to the target handler (or run it on the scheduler's thread if null) every
+     * periodMillis, starting at the given time.  Periods that are missed completely are
+     * skipped rather than run late.
+     */
+    public void postPeriodic(Handler target, Runnable task, long uptimeMillis,
+            long periodMillis, long slackMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        postAtTime(target, task, uptimeMillis, slackMillis, periodMillis);
+    }
+
+    /**
+     * Remove all scheduled runs of a task.  A run already handed to its target handler is only
+     * removed from the target if the task is periodic, so callers should also remove one-shot
+     * tasks from their target handler.
+     */
+    public synchronized void removeCallbacks(Runnable task) {
+        for (int i = mQueue.size() - 1; i >= 0; i--) {
+            Entry entry = mQueue.get(i);
+            if (entry.task != task) continue;
+            if (entry.target != null) entry.target.removeCallbacks(task);
+            recycle(mQueue.remove(i));
+        }
+        rearm();
+    }
+
+    /**
+     * Number of tasks waiting to run.
+     */
+    public synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public DriverMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private synchronized void postAtTime(Handler target, Runnable task, long uptimeMillis,
+            long slackMillis, long periodMillis) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        if (slackMillis < 0) {
+            throw new IllegalArgumentException("Slack must not be negative");
+        }
+        Entry entry = mFree.isEmpty() ? new Entry() : mFree.remove(mFree.size() - 1);
+        entry.task = task;
+        entry.target = target;
+        entry.deadline = uptimeMillis;
+        entry.slack = slackMillis;
+        entry.period = periodMillis;
+        insert(entry);
+        rearm();
+    }
+
+    // Run (or hand over) every task whose deadline has passed
+    private void dispatch() {
+        mWakeups.increment();
+        synchronized (this) {
+            // The wakeup that got us here has been used up
+            mWakeupMillis = Long.MAX_VALUE;
+        }
+        while (true) {
+            long now = SystemClock.uptimeMillis();
+            // Task to run on this thread, if it has no target
+            Runnable task = null;
+            long deadline;
+            synchronized (this) {
+                if (mQueue.isEmpty() || mQueue.get(0).deadline > now) {
+                    rearm();
+                    return;
+                }
+                Entry entry = mQueue.remove(0);
+                deadline = entry.deadline;
+                if (entry.target != null) {
+                    // Handed over with the lock held, so that once removeCallbacks() returns,
+                    // the task is either still queued here or already on its target's queue,
+                    // where removeCallbacks() finds it.
+                    entry.target.post(entry.task);
+                } else {
+                    task = entry.task;
+                }
+                if (entry.period > 0) {
+                    entry.deadline += entry.period;
+                    if (entry.deadline <= now) {
+                        entry.deadline += ((now - entry.deadline) / entry.period + 1)
+                                * entry.period;
+                    }
+                    insert(entry);
+                } else {
+                    recycle(entry);
+                }
+            }
+            mTasks.increment();
+            mLateness.record(TimeUnit.MILLISECONDS.toNanos(now - deadline));
+            if (task != null) task.run();
+        }
+    }
+
+    // Must be called with the lock held.  Keeps tasks with the same deadline in the order
+    // they were scheduled.
+    private void insert(Entry entry) {
+        int i = mQueue.size();
+        while (i > 0 && mQueue.get(i - 1).deadline > entry.deadline) i--;
+        mQueue.add(i, entry);
+    }
+
+    // Must be called with the lock held
+    private void recycle(Entry entry) {
+        entry.task = null;
+        entry.target = null;
+        mFree.add(entry);
+    }
+
+    // Wake up when the first task runs out of slack.  Must be called with the lock held.
+    private void rearm() {
+        long wakeup = Long.MAX_VALUE;
+        for (int i = 0; i < mQueue.size(); i++) {
+            Entry entry = mQueue.get(i);
+            wakeup = Math.min(wakeup, entry.deadline + entry.slack);
+        }
+        if (wakeup == mWakeupMillis) return;
+        mHandler.removeCallbacks(mWakeup);
+        mWakeupMillis = wakeup;
+        if (wakeup != Long.MAX_VALUE) mHandler.postAtTime(mWakeup, wakeup);
+    }
+}
@@ -0,0 +1,117 @@
+package net.jpuderer.android.things.drivers.common;
+
+import com.google.android.things.pio.Gpio;
+
+import java.io.IOException;
+
+/**
+ * Spacing of the edges of a bit-banged clock.
+ *
+ * Protocols specify a minimum time between edges, which is usually far shorter than a GPIO
+ * call takes.  {@link #calibrate(Gpio)} measures how long GPIO calls take on this board, and
+ * the delay between edges is only what is left of the minimum after the call itself, which
+ * is usually nothing, so no time is spent spinning.  Until calibrated, the full minimum is
+ * used.
+ *
+ * The achieved clock frequency can be reported with {@link #recordClock(int, long)} and read
+ * back with {@link #getClockFrequency()}.
+ */
+public class EdgeTiming {
+    // Calibration takes the fastest of a few rounds of calls, so that being preempted during
+    // one round doesn't make us skip delays that are needed.
+    private static final int CALIBRATION_ROUNDS = 4;
+    private static final int CALIBRATION_CALLS = 16;
+
+    private final int mMinSpacingNanos;
+
+    private volatile long mCallNanos = -1;
+    private volatile int mDelayNanos;
+
+    // Clock cycles reported, and the time they took
+    private volatile long mCycles;
+    private volatile long mCycleNanos;
+
+    /**
+     * @param minSpacingNanos Shortest time the protocol allows between clock edges.
+     */
+    public EdgeTiming(int minSpacingNanos) {
+        if (minSpacingNanos < 0) {
+            throw new IllegalArgumentException("Spacing must not be negative");
+        }
+        mMinSpacingNanos = minSpacingNanos;
+        mDelayNanos = minSpacingNanos;
+    }
+
+    /**
+     * Measure the latency of GPIO calls by reading a pin, which doesn't disturb the bus.
+     */
+    public void calibrate(Gpio pin) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < CALIBRATION_CALLS; i++) {
+                pin.getValue();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / CALIBRATION_CALLS);
+        }
+        mCallNanos = best;
+        mDelayNanos = (int) Math.max(0, mMinSpacingNanos - best);
+    }
+
+    public int getMinSpacingNanos() {
+        return mMinSpacingNanos;
+    }
+
+    /**
+     * Latency of one GPIO call measured by {@link #calibrate(Gpio)}, or -1 if not calibrated.
+     */
+    public long getCallLatencyNanos() {
+        return mCallNanos;
+    }
+
+    /**
+     * Time to wait between clock edges, on top of the GPIO calls.  Zero if the calls alone
+     * space the edges far enough apart.
+     */
+    public int getDelayNanos() {
+        return mDelayNanos;
+    }
+
+    /**
+     * Wait before the next clock edge, if needed.
+     */
+    public void waitEdge() {
+        spin(mDelayNanos);
+    }
+
+    /**
+     * Report clock cycles driven, and how long they took.  Only call from one thread.
+     */
+    public void recordClock(int cycles, long nanos) {
+        if (cycles <= 0) return;
+        mCycles += cycles;
+        mCycleNanos += nanos;
+    }
+
+    /**
+     * Average clock frequency reported with {@link #recordClock(int, long)}, in Hz, or 0 if
+     * nothing was reported.
+     */
+    public float getClockFrequency() {
+        final long cycles = mCycles;
+        final long nanos = mCycleNanos;
+        return nanos <= 0 ? 0 : cycles * 1e9f / nanos;
+    }
+
+    /**
+     * Busy wait for at least the given time.  Busy waiting is normally not a great idea,
+     * but protocol delays are far too short to wait for any other way.
+     */
+    public static void spin(long nanos) {
+        if (nanos <= 0) return;
+        final long end = System.nanoTime() + nanos;
+        while (System.nanoTime() - end < 0) {
+            // Spin
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package net.jpuderer.android.things.drivers.common;
+
+import com.google.android.things.pio.Gpio;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A sequence of GPIO operations for bit-banged protocols, recorded once and run in one pass.
+ *
+ * Operations (set, clear, read, change direction, delay) are recorded into a primitive
+ * buffer against pins given by index, then {@link #execute(boolean[])} runs them back to
+ * back and stores each sampled level in the caller's array.  Writes that wouldn't change the
+ * level of an output pin are skipped, so redundant peripheral calls cost nothing.  Recording
+ * and running a transaction doesn't allocate once the buffer has grown to fit it, so the same
+ * transaction can be cleared and reused for every bus access.
+ *
+ * Not thread safe.  Each execution is timed into the histogram given to the constructor.
+ */
+public class GpioTransaction {
+    private static final int OP_SET = 0;
+    private static final int OP_CLEAR = 1;
+    private static final int OP_READ = 2;
+    private static final int OP_INPUT = 3;
+    private static final int OP_OUTPUT_HIGH = 4;
+    private static final int OP_OUTPUT_LOW = 5;
+    private static final int OP_DELAY = 6;
+
+    // Level of an output pin during execution
+    private static final byte LEVEL_UNKNOWN = -1;
+    private static final byte LEVEL_LOW = 0;
+    private static final byte LEVEL_HIGH = 1;
+
+    private final Gpio[] mPins;
+    // Level of each output pin set so far in this execution, to skip redundant writes
+    private final byte[] mLevels;
+    // Level each pin was last left at by any execution, to count edges.  Kept between
+    // executions, since a transaction usually starts from where the previous one left the
+    // clock.
+    private final byte[] mEdgeLevels;
+    private final int[] mRisingEdges;
+    private final LatencyHistogram mTiming;
+
+    // Operation codes, and the pin (or delay in ns) of each
+    private int[] mOps = new int[64];
+    private int[] mArgs = new int[64];
+    private int mCount;
+    private int mReads;
+
+    private int mLastCalls;
+    private long mLastDuration;
+
+    /**
+     * @param timing Histogram to record the duration of each execution in, or null.
+     * @param pins Pins the operations refer to, by their index in this list.
+     */
+    public GpioTransaction(LatencyHistogram timing, Gpio... pins) {
+        mTiming = timing;
+        mPins = pins.clone();
+        mLevels = new byte[pins.length];
+        mEdgeLevels = new byte[pins.length];
+        Arrays.fill(mEdgeLevels, LEVEL_UNKNOWN);
+        mRisingEdges = new int[pins.length];
+    }
+
+    /**
+     * Remove all recorded operations.
+     */
+    public GpioTransaction clear() {
+        mCount = 0;
+        mReads = 0;
+        return this;
+    }
+
+    /**
+     * Drive an output pin high.
+     */
+    public GpioTransaction set(int pin) {
+        return add(OP_SET, checkPin(pin));
+    }
+
+    /**
+     * Drive an output pin low.
+     */
+    public GpioTransaction clear(int pin) {
+        return add(OP_CLEAR, checkPin(pin));
+    }
+
+    public GpioTransaction write(int pin, boolean value) {
+        return value ? set(pin) : clear(pin);
+    }
+
+    /**
+     * Sample the level of a pin into the next element of the result array.
+     */
+    public GpioTransaction read(int pin) {
+        mReads++;
+        return add(OP_READ, checkPin(pin));
+    }
+
+    /**
+     * Make a pin an input, releasing the line.
+     */
+    public GpioTransaction input(int pin) {
+        return add(OP_INPUT, checkPin(pin));
+    }
+
+    /**
+     * Make a pin an output, starting at the given level.
+     */
+    public GpioTransaction output(int pin, boolean initiallyHigh) {
+        return add(initiallyHigh ? OP_OUTPUT_HIGH : OP_OUTPUT_LOW, checkPin(pin));
+    }
+
+    /**
+     * Busy wait for at least the given time.
+     */
+    public GpioTransaction delay(int nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Delay must not be negative");
+        }
+        return add(OP_DELAY, nanos);
+    }
+
+    /**
+     * Number of operations recorded.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Number of levels the transaction samples.
+     */
+    public int getReadCount() {
+        return mReads;
+    }
+
+    /**
+     * Number of GPIO calls the last execution actually made, after skipping redundant writes.
+     */
+    public int getLastCallCount() {
+        return mLastCalls;
+    }
+
+    /**
+     * How long the last execution took, in nanoseconds.
+     */
+    public long getLastDurationNanos() {
+        return mLastDuration;
+    }
+
+    /**
+     * Number of times the last execution drove a pin from low to high.  Edges from a level
+     * that isn't known (before the pin was first driven by a transaction, or after it was an
+     * input) aren't counted.  For a clock pin, the number of clock cycles.
+     */
+    public int getLastRisingEdges(int pin) {
+        return mRisingEdges[checkPin(pin)];
+    }
+
+    /**
+     * Run the recorded operations.  The operations are kept, so the transaction can be run
+     * again.
+     * @param samples Receives the level sampled by each read, in order.  May be null if the
+     *                transaction doesn't read anything.
+     * @return Number of levels sampled.
+     * @throws IOException A GPIO call failed.  The remaining operations are not run.
+     */
+    public int execute(boolean[] samples) throws IOException {
+        if (mReads > 0 && (samples == null || samples.length < mReads)) {
+            throw new IllegalArgumentException("Need room for " + mReads + " samples");
+        }
+        Arrays.fill(mLevels, LEVEL_UNKNOWN);
+        Arrays.fill(mRisingEdges, 0);
+        long start = System.nanoTime();
+        int calls = 0;
+        int read = 0;
+        try {
+            for (int i = 0; i < mCount; i++) {
+                int arg = mArgs[i];
+                switch (mOps[i]) {
+                    case OP_SET:
+                        if (mLevels[arg] == LEVEL_HIGH) break;
+                        mPins[arg].setValue(true);
+                        level(arg, LEVEL_HIGH);
+                        calls++;
+                        break;
+                    case OP_CLEAR:
+                        if (mLevels[arg] == LEVEL_LOW) break;
+                        mPins[arg].setValue(false);
+                        level(arg, LEVEL_LOW);
+                        calls++;
+                        break;
+                    case OP_READ:
+                        samples[read++] = mPins[arg].getValue();
+                        calls++;
+                        break;
+                    case OP_INPUT:
+                        mPins[arg].setDirection(Gpio.DIRECTION_IN);
+                        level(arg, LEVEL_UNKNOWN);
+                        calls++;
+                        break;
+                    case OP_OUTPUT_HIGH:
+                        mPins[arg].setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
+                        level(arg, LEVEL_HIGH);
+                        calls++;
+                        break;
+                    case OP_OUTPUT_LOW:
+                        mPins[arg].setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+                        level(arg, LEVEL_LOW);
+                        calls++;
+                        break;
+                    case OP_DELAY:
+                        EdgeTiming.spin(arg);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // Whatever call failed, its pin is now at a level we don't know
+            Arrays.fill(mEdgeLevels, LEVEL_UNKNOWN);
+            throw e;
+        } finally {
+            mLastCalls = calls;
+            mLastDuration = System.nanoTime() - start;
+            if (mTiming != null) mTiming.record(mLastDuration);
+        }
+        return read;
+    }
+
+    // Record the level a pin was driven to, counting rising edges from a known low level
+    private void level(int pin, byte level) {
+        if (level == LEVEL_HIGH && mEdgeLevels[pin] == LEVEL_LOW) mRisingEdges[pin]++;
+        mLevels[pin] = level;
+        mEdgeLevels[pin] = level;
+    }
+
+    private int checkPin(int pin) {
+        if (pin < 0 || pin >= mPins.length) {
+            throw new IndexOutOfBoundsException("No pin " + pin);
+        }
+        return pin;
+    }
+
+    private GpioTransaction add(int op, int arg) {
+        if (mCount == mOps.length) {
+            mOps = Arrays.copyOf(mOps, mCount * 2);
+            mArgs = Arrays.copyOf(mArgs, mCount * 2);
+        }
+        mOps[mCount] = op;
+        mArgs[mCount] = arg;
+        mCount++;
+        return this;
+    }
+}
@@ -0,0 +1,71 @@
+package net.jpuderer.android.things.drivers.common;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy of the state of a {@link LatencyHistogram} at one point in time.
+ */
+public class HistogramSnapshot {
+    private final String mName;
+    private final long mCount;
+    private final long mSum;
+    private final long mMax;
+    private final long[] mBuckets;
+
+    HistogramSnapshot(String name, long count, long sum, long max, long[] buckets) {
+        mName = name;
+        mCount = count;
+        mSum = sum;
+        mMax = max;
+        mBuckets = buckets;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMaxNanos() {
+        return mMax;
+    }
+
+    public long getMeanNanos() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * Approximate percentile, within a factor of two.
+     * @param percentile Percentile between 0 and 100.
+     * @return Upper bound of the bucket containing the percentile, in nanoseconds.
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        for (long count : mBuckets) {
+            total += count;
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100 * total);
+        long seen = 0;
+        for (int i = 0; i < mBuckets.length; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank && mBuckets[i] > 0) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, mMax);
+            }
+        }
+        return mMax;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: count=%d mean=%dus p50=%dus p99=%dus max=%dus",
+                mName, mCount,
+                TimeUnit.NANOSECONDS.toMicros(getMeanNanos()),
+                TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(50)),
+                TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(99)),
+                TimeUnit.NANOSECONDS.toMicros(mMax));
+    }
+}
@@ -0,0 +1,59 @@
+package net.jpuderer.android.things.drivers.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, updated without locking.
+ *
+ * Durations are counted in power of two buckets (bucket 0 holds zero, and bucket n holds
+ * durations from 2^(n-1) to 2^n - 1 ns), which is plenty of precision to spot regressions,
+ * and makes recording a duration a couple of atomic increments.
+ */
+public class LatencyHistogram {
+    static final int BUCKETS = 64;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Record a duration.
+     * @param nanos Duration in nanoseconds.  Negative durations are counted as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, nanos)) break;
+        }
+    }
+
+    /**
+     * Record the time elapsed since a start time taken from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    HistogramSnapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new HistogramSnapshot(mName, mCount.get(), mSum.get(), mMax.get(), buckets);
+    }
+}
@@ -0,0 +1,78 @@
+package net.jpuderer.android.things.drivers.common;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copy of the metrics of a driver at one point in time.  Each value is read atomically, but
+ * values are not read at exactly the same instant, since the driver keeps running.
+ */
+public class MetricsSnapshot {
+    private final String mName;
+    private final long mUptimeNanos;
+    private final Map<String, Long> mCounters;
+    private final Map<String, HistogramSnapshot> mHistograms;
+
+    MetricsSnapshot(String name, long uptimeNanos, Map<String, Long> counters,
+            Map<String, HistogramSnapshot> histograms) {
+        mName = name;
+        mUptimeNanos = uptimeNanos;
+        mCounters = Collections.unmodifiableMap(counters);
+        mHistograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * Name of the driver the metrics belong to.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Time since the metrics were created, in nanoseconds.
+     */
+    public long getUptimeNanos() {
+        return mUptimeNanos;
+    }
+
+    /**
+     * Value of a counter, or zero if the driver doesn't have that counter.
+     */
+    public long getCounter(String name) {
+        Long value = mCounters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Snapshot of a histogram, or null if the driver doesn't have that histogram.
+     */
+    public HistogramSnapshot getHistogram(String name) {
+        return mHistograms.get(name);
+    }
+
+    public Map<String, Long> getCounters() {
+        return mCounters;
+    }
+
+    public Map<String, HistogramSnapshot> getHistograms() {
+        return mHistograms;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mName);
+        for (Map.Entry<String, Long> counter : mCounters.entrySet()) {
+            sb.append(' ').append(counter.getKey()).append('=').append(counter.getValue());
+        }
+        for (HistogramSnapshot histogram : mHistograms.values()) {
+            sb.append("\n  ").append(histogram);
+        }
+        return sb.toString();
+    }
+
+    // Keeps the order the metrics were registered in
+    static <V> Map<String, V> newMap() {
+        return new LinkedHashMap<>();
+    }
+}
@@ -0,0 +1,27 @@
+package net.jpuderer.android.things.drivers.common;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.UartDevice;
+
+import java.io.IOException;
+
+/**
+ * Opens the peripherals a driver talks to.
+ *
+ * Drivers open their peripherals through a provider instead of calling
+ * {@code PeripheralManager} themselves, so that they can be given in-memory fakes and run
+ * off-device, as the unit tests do.  {@link AndroidThingsPeripherals} is the default, and
+ * opens the board's peripherals.
+ */
+public interface PeripheralProvider {
+    Gpio openGpio(String name) throws IOException;
+
+    UartDevice openUartDevice(String name) throws IOException;
+
+    /**
+     * @param name Name of the I2C bus.
+     * @param address 7-bit address of the device on the bus.
+     */
+    I2cDevice openI2cDevice(String name, int address) throws IOException;
+}
@@ -0,0 +1,176 @@
+package net.jpuderer.android.things.drivers.common;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AcquisitionPlannerTest {
+    private static final long PERIOD_MS = 100;
+    private static final long GUARD_MS = AcquisitionPlanner.GUARD_MS;
+
+    // How late the scheduler's thread may start a slot, or mark a reservation, in the tests
+    private static final long JITTER_MS = 20;
+
+    private AcquisitionPlanner mPlanner;
+    // Time just before the planner was started, which its periods are counted from
+    private long mStartMillis;
+
+    private static class CountingTask implements AcquisitionPlanner.Task {
+        private final long mCostMillis;
+        // Times of the acquisitions.  Guarded by this.
+        private final ArrayList<Long> mAcquisitions = new ArrayList<>();
+
+        CountingTask(long costMillis) {
+            mCostMillis = costMillis;
+        }
+
+        @Override
+        public long getCostMillis() {
+            return mCostMillis;
+        }
+
+        @Override
+        public synchronized void acquire(long timestampNanos) {
+            mAcquisitions.add(SystemClock.uptimeMillis());
+        }
+
+        synchronized ArrayList<Long> getAcquisitions() {
+            return new ArrayList<>(mAcquisitions);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mPlanner = new AcquisitionPlanner(PERIOD_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mPlanner.close();
+    }
+
+    @Test
+    public void placesTasksAtFirstFit() throws Exception {
+        CountingTask first = new CountingTask(10);
+        CountingTask second = new CountingTask(20);
+        CountingTask third = new CountingTask(30);
+        mPlanner.addTask(first);
+        mPlanner.addTask(second);
+        mPlanner.addTask(third);
+        assertEquals(0, mPlanner.getOffsetMillis(first));
+        assertEquals(10 + GUARD_MS, mPlanner.getOffsetMillis(second));
+        assertEquals(10 + GUARD_MS + 20 + GUARD_MS, mPlanner.getOffsetMillis(third));
+
+        // Removing a task lets the ones after it move up
+        mPlanner.removeTask(second);
+        assertEquals(10 + GUARD_MS, mPlanner.getOffsetMillis(third));
+        assertEquals(-1, mPlanner.getOffsetMillis(second));
+
+        // The scheduler starts each task at its offset in every period
+        start();
+        SystemClock.sleep(3 * PERIOD_MS);
+        assertStartedAtOffset(first);
+        assertStartedAtOffset(third);
+    }
+
+    @Test
+    public void keepsGuardBetweenSlots() {
+        long[] costs = { 12, 7, 30, 19 };
+        CountingTask[] tasks = new CountingTask[costs.length];
+        for (int i = 0; i < costs.length; i++) {
+            tasks[i] = new CountingTask(costs[i]);
+            mPlanner.addTask(tasks[i]);
+        }
+        for (int i = 0; i < tasks.length; i++) {
+            // Including from the last slot to the first one of the next period
+            CountingTask next = tasks[(i + 1) % tasks.length];
+            long nextOffset = mPlanner.getOffsetMillis(next) + (i + 1 == tasks.length
+                    ? PERIOD_MS : 0);
+            long end = mPlanner.getOffsetMillis(tasks[i]) + costs[i];
+            assertTrue("Gap after task " + i + ": " + (nextOffset - end),
+                    nextOffset - end >= GUARD_MS);
+        }
+    }
+
+    @Test
+    public void rejectsTasksLongerThanPeriod() {
+        mPlanner.addTask(new CountingTask(60));
+        try {
+            mPlanner.addTask(new CountingTask(40));
+            fail("Expected the tasks not to fit with their guards");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void replansWhenReservationDrifts() throws Exception {
+        CountingTask task = new CountingTask(20);
+        mPlanner.addTask(task);
+        start();
+        AcquisitionPlanner.Reservation reservation = mPlanner.addReservation(30, PERIOD_MS);
+
+        // The activity ends now, so it started 30ms before the start of the period, and the
+        // task has to wait until it and the guard are over
+        reservation.mark();
+        long offset = mPlanner.getOffsetMillis(task);
+        assertTrue("Offset " + offset, offset >= GUARD_MS && offset <= GUARD_MS + JITTER_MS);
+
+        // Now the activity ends 60ms into the period, so the start is free again
+        SystemClock.sleep(60);
+        reservation.mark();
+        assertEquals(0, mPlanner.getOffsetMillis(task));
+        assertEquals(0, mPlanner.getOverlapCount());
+    }
+
+    @Test
+    public void leavesOutTaskWithoutRoom() throws Exception {
+        CountingTask small = new CountingTask(10);
+        CountingTask medium = new CountingTask(15);
+        CountingTask large = new CountingTask(40);
+        mPlanner.addTask(small);
+        mPlanner.addTask(medium);
+        start();
+
+        // Activity twice a period, which ends now: busy from 25 to 55 and 75 to 105, with the
+        // guards.  The small task goes before the first one, the medium one between them.
+        AcquisitionPlanner.Reservation reservation = mPlanner.addReservation(20, PERIOD_MS / 2);
+        reservation.mark();
+        long smallOffset = mPlanner.getOffsetMillis(small);
+        long mediumOffset = mPlanner.getOffsetMillis(medium);
+        assertTrue("Offset " + smallOffset, smallOffset >= GUARD_MS
+                && smallOffset <= GUARD_MS + JITTER_MS);
+        assertTrue("Offset " + mediumOffset, mediumOffset > 50);
+
+        // The tasks would fit in the period, but the gaps the others leave are too small,
+        // even overlapping the reservation
+        mPlanner.addTask(large);
+        assertEquals(-1, mPlanner.getOffsetMillis(large));
+        SystemClock.sleep(3 * PERIOD_MS);
+        assertTrue(small.getAcquisitions().size() > 0);
+        assertTrue(medium.getAcquisitions().size() > 0);
+        assertEquals(0, large.getAcquisitions().size());
+    }
+
+    private void start() {
+        mStartMillis = SystemClock.uptimeMillis();
+        mPlanner.start();
+    }
+
+    private void assertStartedAtOffset(CountingTask task) {
+        long offset = mPlanner.getOffsetMillis(task);
+        ArrayList<Long> acquisitions = task.getAcquisitions();
+        assertTrue(acquisitions.size() >= 2);
+        for (long time : acquisitions) {
+            long late = Math.floorMod(time - mStartMillis - offset, PERIOD_MS);
+            assertTrue("Started " + late + "ms after offset " + offset, late <= JITTER_MS);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package net.jpuderer.android.things.drivers.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GpioTransactionTest {
+    private static final int PIN_CLOCK = 0;
+    private static final int PIN_DATA = 1;
+
+    private FakeGpio mClock;
+    private FakeGpio mData;
+    private GpioTransaction mTransaction;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeGpio("CLOCK");
+        mData = new FakeGpio("DATA");
+        mTransaction = new GpioTransaction(null, mClock, mData);
+    }
+
+    @Test
+    public void skipsRedundantWrites() throws IOException {
+        mTransaction.output(PIN_CLOCK, false)
+                .clear(PIN_CLOCK)
+                .set(PIN_CLOCK)
+                .set(PIN_CLOCK)
+                .clear(PIN_CLOCK);
+        mTransaction.execute(null);
+
+        assertEquals(3, mTransaction.getLastCallCount());
+        assertEquals(3, mClock.getCallCount());
+        assertFalse(mClock.getLevel());
+    }
+
+    @Test
+    public void countsRisingEdgesFromKnownLevel() throws IOException {
+        // Going high from the unknown level of a fresh pin isn't an edge
+        mTransaction.output(PIN_CLOCK, true)
+                .clear(PIN_CLOCK)
+                .set(PIN_CLOCK)
+                .clear(PIN_CLOCK)
+                .set(PIN_CLOCK)
+                .clear(PIN_CLOCK);
+        mTransaction.execute(null);
+        assertEquals(2, mTransaction.getLastRisingEdges(PIN_CLOCK));
+
+        // The level the last execution left the pin at is remembered
+        mTransaction.clear().set(PIN_CLOCK);
+        mTransaction.execute(null);
+        assertEquals(1, mTransaction.getLastRisingEdges(PIN_CLOCK));
+    }
+
+    @Test
+    public void readsSamplesInOrder() throws IOException {
+        boolean[] samples = new boolean[3];
+        mTransaction.output(PIN_CLOCK, false)
+                .input(PIN_DATA)
+                .read(PIN_DATA)
+                .set(PIN_CLOCK)
+                .read(PIN_DATA)
+                .read(PIN_CLOCK);
+        mData.setInputLevel(true);
+
+        assertEquals(3, mTransaction.execute(samples));
+        assertArrayEquals(new boolean[] { true, true, true }, samples);
+    }
+
+    @Test
+    public void failedCallForgetsLevels() throws IOException {
+        mTransaction.output(PIN_CLOCK, false);
+        mTransaction.execute(null);
+
+        mClock.failNext(1);
+        mTransaction.clear().set(PIN_CLOCK);
+        try {
+            mTransaction.execute(null);
+            fail("Expected the injected failure");
+        } catch (IOException expected) {
+        }
+
+        // The pin's level isn't known after the failure, so this isn't an edge
+        mTransaction.execute(null);
+        assertEquals(0, mTransaction.getLastRisingEdges(PIN_CLOCK));
+        assertTrue(mClock.getLevel());
+    }
+}
@@ -0,0 +1,56 @@
+package android.os;
+
+/**
+ * Plain JVM version of Android's Handler, which posts callbacks to a {@link Looper}.  Only
+ * what the drivers use is implemented.
+ */
+public class Handler {
+    private final Looper mLooper;
+
+    public Handler() {
+        this(Looper.myLooper());
+    }
+
+    public Handler(Looper looper) {
+        if (looper == null) {
+            throw new RuntimeException(
+                    "Can't create handler inside thread that has not called Looper.prepare()");
+        }
+        mLooper = looper;
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public final boolean post(Runnable r) {
+        return postAtTime(r, null, SystemClock.uptimeMillis());
+    }
+
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        return postAtTime(r, null, uptimeMillis);
+    }
+
+    public final boolean postAtTime(Runnable r, Object token, long uptimeMillis) {
+        return mLooper.enqueue(this, r, token, uptimeMillis);
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return postAtTime(r, null, SystemClock.uptimeMillis() + Math.max(delayMillis, 0));
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        if (r != null) mLooper.remove(this, r, null);
+    }
+
+    public final void removeCallbacks(Runnable r, Object token) {
+        if (r != null) mLooper.remove(this, r, token);
+    }
+
+    /**
+     * Remove the callbacks posted with the given token, or all of them if it is null.
+     */
+    public final void removeCallbacksAndMessages(Object token) {
+        mLooper.remove(this, null, token);
+    }
+}
@@ -0,0 +1,62 @@
+package android.os;
+
+/**
+ * Plain JVM version of Android's HandlerThread: a thread running a {@link Looper}.
+ */
+public class HandlerThread extends Thread {
+    // Guarded by this
+    private Looper mLooper;
+
+    public HandlerThread(String name) {
+        super(name);
+        // Don't keep the test JVM alive if a driver isn't closed
+        setDaemon(true);
+    }
+
+    public HandlerThread(String name, int priority) {
+        this(name);
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        synchronized (this) {
+            mLooper = Looper.myLooper();
+            notifyAll();
+        }
+        Looper.loop();
+    }
+
+    /**
+     * Return the thread's looper, waiting for the thread to start it.  Null if the thread
+     * isn't alive.
+     */
+    public Looper getLooper() {
+        if (!isAlive()) return null;
+        synchronized (this) {
+            while (isAlive() && mLooper == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return mLooper;
+        }
+    }
+
+    public boolean quit() {
+        Looper looper = getLooper();
+        if (looper == null) return false;
+        looper.quit();
+        return true;
+    }
+
+    public boolean quitSafely() {
+        Looper looper = getLooper();
+        if (looper == null) return false;
+        looper.quitSafely();
+        return true;
+    }
+}
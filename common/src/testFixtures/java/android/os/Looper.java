@@ -0,0 +1,134 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Plain JVM version of Android's Looper, so that drivers can be unit tested off-device.
+ * Only what the drivers use is implemented.  Callbacks are run in order of the uptime they
+ * were posted for, on the thread that called {@link #loop()}.
+ */
+public final class Looper {
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<>();
+
+    // A callback posted by a handler
+    private static class Message implements Comparable<Message> {
+        Handler target;
+        Runnable callback;
+        Object token;
+        long when;
+        long sequence;
+
+        @Override
+        public int compareTo(Message other) {
+            if (when != other.when) return when < other.when ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Thread mThread;
+
+    // Guarded by this
+    private final PriorityQueue<Message> mQueue = new PriorityQueue<>();
+    private long mSequence;
+    private boolean mQuitting;
+
+    private Looper() {
+        mThread = Thread.currentThread();
+    }
+
+    public static void prepare() {
+        if (sThreadLocal.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        sThreadLocal.set(new Looper());
+    }
+
+    public static Looper myLooper() {
+        return sThreadLocal.get();
+    }
+
+    /**
+     * Run the callbacks posted to this thread's looper until it quits.
+     */
+    public static void loop() {
+        Looper me = myLooper();
+        if (me == null) {
+            throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+        Message message;
+        while ((message = me.next()) != null) {
+            message.callback.run();
+        }
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    /**
+     * Stop looping, dropping any callbacks that haven't run.
+     */
+    public synchronized void quit() {
+        mQuitting = true;
+        mQueue.clear();
+        notifyAll();
+    }
+
+    /**
+     * Stop looping once the callbacks that are already due have run.
+     */
+    public synchronized void quitSafely() {
+        mQuitting = true;
+        long now = SystemClock.uptimeMillis();
+        for (Iterator<Message> i = mQueue.iterator(); i.hasNext(); ) {
+            if (i.next().when > now) i.remove();
+        }
+        notifyAll();
+    }
+
+    synchronized boolean enqueue(Handler target, Runnable callback, Object token, long when) {
+        if (mQuitting) return false;
+        Message message = new Message();
+        message.target = target;
+        message.callback = callback;
+        message.token = token;
+        message.when = when;
+        message.sequence = mSequence++;
+        mQueue.add(message);
+        notifyAll();
+        return true;
+    }
+
+    // Remove the target's callbacks matching the callback and token, where given
+    synchronized void remove(Handler target, Runnable callback, Object token) {
+        for (Iterator<Message> i = mQueue.iterator(); i.hasNext(); ) {
+            Message message = i.next();
+            if (message.target == target
+                    && (callback == null || message.callback == callback)
+                    && (token == null || message.token == token)) {
+                i.remove();
+            }
+        }
+    }
+
+    // Wait for the next callback that is due, or return null once quitting
+    private synchronized Message next() {
+        while (true) {
+            Message message = mQueue.peek();
+            long now = SystemClock.uptimeMillis();
+            if (message != null && message.when <= now) return mQueue.poll();
+            if (mQuitting) return null;
+            try {
+                if (message == null) {
+                    wait();
+                } else {
+                    wait(message.when - now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+}
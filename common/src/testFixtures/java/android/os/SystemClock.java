@@ -0,0 +1,40 @@
+package android.os;
+
+/**
+ * Plain JVM version of Android's SystemClock.  Both clocks run from {@link System#nanoTime()},
+ * since a JVM doesn't sleep the way a device does.
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtime() {
+        return uptimeMillis();
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Sleep for the given time, ignoring interrupts like Android does.  The interrupt status
+     * is kept.
+     */
+    public static void sleep(long ms) {
+        long end = uptimeMillis() + ms;
+        boolean interrupted = false;
+        long remaining;
+        while ((remaining = end - uptimeMillis()) > 0) {
+            try {
+                Thread.sleep(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,66 @@
+package android.util;
+
+/**
+ * Plain JVM version of Android's Log, printing to standard error.
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final String LEVELS = "??VDIWE";
+
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return println(VERBOSE, tag, msg, null);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg, null);
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return println(DEBUG, tag, msg, tr);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(INFO, tag, msg, null);
+    }
+
+    public static int i(String tag, String msg, Throwable tr) {
+        return println(INFO, tag, msg, tr);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(WARN, tag, msg, tr);
+    }
+
+    public static int w(String tag, Throwable tr) {
+        return println(WARN, tag, "", tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(ERROR, tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(ERROR, tag, msg, tr);
+    }
+
+    private static int println(int priority, String tag, String msg, Throwable tr) {
+        String line = LEVELS.charAt(priority) + "/" + tag + ": " + msg;
+        synchronized (System.err) {
+            System.err.println(line);
+            if (tr != null) tr.printStackTrace();
+        }
+        return line.length();
+    }
+}
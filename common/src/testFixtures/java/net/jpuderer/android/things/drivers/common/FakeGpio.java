@@ -0,0 +1,243 @@
+package net.jpuderer.android.things.drivers.common;
+
+import android.os.Handler;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * In-memory GPIO pin, for running drivers off-device.
+ *
+ * The pin has a physical level.  While it is an output, the driver sets the level and an
+ * {@link OnOutputListener} can react to it, playing the part of the device.  While it is an
+ * input, the test (or listener) drives the level with {@link #setInputLevel(boolean)}, which
+ * calls the registered callbacks on matching edges.  Callbacks registered without a handler
+ * are called directly on the thread that changed the level, so no looper is needed.
+ *
+ * {@link #failNext(int)} makes the next calls throw, to exercise error handling.
+ */
+public class FakeGpio implements Gpio {
+    /**
+     * Notified when the driver changes the level of the pin while it is an output.
+     */
+    public interface OnOutputListener {
+        void onOutput(FakeGpio gpio, boolean high);
+    }
+
+    private final String mName;
+
+    // Guarded by this
+    private boolean mClosed;
+    private boolean mOutput;
+    private boolean mActiveLow;
+    private int mEdgeTriggerType = EDGE_NONE;
+    private boolean mLevel;
+    private int mCalls;
+    private int mFailures;
+    private final ArrayList<GpioCallback> mCallbacks = new ArrayList<>();
+    private final ArrayList<Handler> mCallbackHandlers = new ArrayList<>();
+
+    private volatile OnOutputListener mListener;
+
+    public FakeGpio(String name) {
+        mName = name;
+    }
+
+    public void setOnOutputListener(OnOutputListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Make the next calls made by the driver throw an IOException.
+     */
+    public synchronized void failNext(int calls) {
+        mFailures = calls;
+    }
+
+    /**
+     * Number of calls the driver has made on the pin.
+     */
+    public synchronized int getCallCount() {
+        return mCalls;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    public synchronized boolean isOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Physical level of the pin, whichever side drives it.
+     */
+    public synchronized boolean getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Drive the level of the pin from the device's side.  Ignored while the pin is an output.
+     */
+    public void setInputLevel(boolean high) {
+        ArrayList<Runnable> notify = new ArrayList<>();
+        synchronized (this) {
+            if (mOutput || mLevel == high) return;
+            mLevel = high;
+            if (!triggers(high)) return;
+            for (int i = 0; i < mCallbacks.size(); i++) {
+                final GpioCallback callback = mCallbacks.get(i);
+                Handler handler = mCallbackHandlers.get(i);
+                Runnable dispatch = new Runnable() {
+                    @Override
+                    public void run() {
+                        // Like the real device, no callbacks once unregistered
+                        if (!isRegistered(callback)) return;
+                        if (!callback.onGpioEdge(FakeGpio.this)) {
+                            unregisterGpioCallback(callback);
+                        }
+                    }
+                };
+                if (handler != null) {
+                    handler.post(dispatch);
+                } else {
+                    notify.add(dispatch);
+                }
+            }
+        }
+        // Outside the lock, so callbacks can use the pin
+        for (Runnable dispatch : notify) {
+            dispatch.run();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mCallbacks.clear();
+        mCallbackHandlers.clear();
+    }
+
+    @Override
+    public void setDirection(int direction) throws IOException {
+        boolean high;
+        synchronized (this) {
+            call();
+            switch (direction) {
+                case DIRECTION_IN:
+                    mOutput = false;
+                    return;
+                case DIRECTION_OUT_INITIALLY_HIGH:
+                case DIRECTION_OUT_INITIALLY_LOW:
+                    mOutput = true;
+                    // Initial levels are active levels
+                    high = (direction == DIRECTION_OUT_INITIALLY_HIGH) != mActiveLow;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown direction " + direction);
+            }
+        }
+        output(high);
+    }
+
+    @Override
+    public synchronized void setEdgeTriggerType(int edgeTriggerType) throws IOException {
+        call();
+        mEdgeTriggerType = edgeTriggerType;
+    }
+
+    @Override
+    public synchronized void setActiveType(int activeType) throws IOException {
+        call();
+        mActiveLow = activeType == ACTIVE_LOW;
+    }
+
+    @Override
+    public void setValue(boolean value) throws IOException {
+        synchronized (this) {
+            call();
+            if (!mOutput) {
+                throw new IllegalStateException(mName + " is not an output");
+            }
+        }
+        output(value != mActiveLow);
+    }
+
+    @Override
+    public synchronized boolean getValue() throws IOException {
+        call();
+        return mLevel != mActiveLow;
+    }
+
+    @Override
+    public void registerGpioCallback(GpioCallback callback) throws IOException {
+        registerGpioCallback(null, callback);
+    }
+
+    @Override
+    public synchronized void registerGpioCallback(Handler handler, GpioCallback callback)
+            throws IOException {
+        call();
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback must not be null");
+        }
+        mCallbacks.add(callback);
+        mCallbackHandlers.add(handler);
+    }
+
+    @Override
+    public synchronized void unregisterGpioCallback(GpioCallback callback) {
+        int i = mCallbacks.indexOf(callback);
+        if (i < 0) return;
+        mCallbacks.remove(i);
+        mCallbackHandlers.remove(i);
+    }
+
+    private synchronized boolean isRegistered(GpioCallback callback) {
+        return mCallbacks.contains(callback);
+    }
+
+    // Set the level as an output, and let the listener react
+    private void output(boolean high) {
+        synchronized (this) {
+            mLevel = high;
+        }
+        OnOutputListener listener = mListener;
+        if (listener != null) listener.onOutput(this, high);
+    }
+
+    // Must be called with the lock held
+    private boolean triggers(boolean high) {
+        boolean rising = high != mActiveLow;
+        switch (mEdgeTriggerType) {
+            case EDGE_RISING:
+                return rising;
+            case EDGE_FALLING:
+                return !rising;
+            case EDGE_BOTH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Must be called with the lock held
+    private void call() throws IOException {
+        mCalls++;
+        if (mClosed) {
+            throw new IOException(mName + " is closed");
+        }
+        if (mFailures > 0) {
+            mFailures--;
+            throw new IOException(mName + ": injected failure");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package net.jpuderer.android.things.drivers.common;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * In-memory I2C device with 256 byte-wide registers, for running drivers off-device.
+ *
+ * The test sets up the registers the driver reads with {@link #setRegisters(int, byte[])},
+ * and checks what it wrote with {@link #getRegisters(int, int)}.  An {@link OnWriteListener}
+ * can react to writes, playing the part of the device.  Like most register devices, the
+ * register address auto-increments (wrapping around) during multi-byte transfers, and raw
+ * transfers start at a register pointer, which the first byte of a raw write sets.  Words
+ * are transferred least significant byte first, like SMBus.
+ *
+ * {@link #failNext(int)} makes the next calls throw, to exercise error handling.
+ */
+public class FakeI2cDevice implements I2cDevice {
+    private static final int REGISTER_COUNT = 256;
+
+    /**
+     * Notified of each register write made by the driver.
+     */
+    public interface OnWriteListener {
+        void onWrite(FakeI2cDevice device, int reg, byte[] data);
+    }
+
+    private final String mName;
+    private final int mAddress;
+
+    // Guarded by this
+    private final byte[] mRegisters = new byte[REGISTER_COUNT];
+    private int mPointer;
+    private boolean mClosed;
+    private int mCalls;
+    private int mFailures;
+
+    private volatile OnWriteListener mListener;
+
+    /**
+     * @param name Name of the I2C bus.
+     * @param address 7-bit address of the device.
+     */
+    public FakeI2cDevice(String name, int address) {
+        mName = name;
+        mAddress = address;
+    }
+
+    public int getAddress() {
+        return mAddress;
+    }
+
+    public void setOnWriteListener(OnWriteListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Make the next calls made by the driver throw an IOException.
+     */
+    public synchronized void failNext(int calls) {
+        mFailures = calls;
+    }
+
+    /**
+     * Number of calls the driver has made on the device.
+     */
+    public synchronized int getCallCount() {
+        return mCalls;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    public synchronized int getRegister(int reg) {
+        return mRegisters[checkRegister(reg)] & 0xff;
+    }
+
+    public synchronized void setRegister(int reg, int value) {
+        mRegisters[checkRegister(reg)] = (byte) value;
+    }
+
+    public synchronized byte[] getRegisters(int reg, int length) {
+        byte[] data = new byte[length];
+        copyOut(checkRegister(reg), data, length);
+        return data;
+    }
+
+    public synchronized void setRegisters(int reg, byte[] data) {
+        copyIn(checkRegister(reg), data, data.length);
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+    }
+
+    @Override
+    public synchronized void read(byte[] buffer, int length) throws IOException {
+        call();
+        copyOut(mPointer, buffer, length);
+        mPointer = (mPointer + length) % REGISTER_COUNT;
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) throws IOException {
+        int reg;
+        byte[] data;
+        synchronized (this) {
+            call();
+            if (length == 0) return;
+            reg = buffer[0] & 0xff;
+            data = Arrays.copyOfRange(buffer, 1, length);
+            copyIn(reg, data, data.length);
+            mPointer = (reg + data.length) % REGISTER_COUNT;
+        }
+        if (data.length > 0) notifyWrite(reg, data);
+    }
+
+    @Override
+    public synchronized byte readRegByte(int reg) throws IOException {
+        call();
+        return mRegisters[checkRegister(reg)];
+    }
+
+    @Override
+    public void writeRegByte(int reg, byte data) throws IOException {
+        writeRegBuffer(reg, new byte[] { data }, 1);
+    }
+
+    @Override
+    public synchronized short readRegWord(int reg) throws IOException {
+        call();
+        byte[] data = new byte[2];
+        copyOut(checkRegister(reg), data, 2);
+        return (short) ((data[0] & 0xff) | (data[1] << 8));
+    }
+
+    @Override
+    public void writeRegWord(int reg, short data) throws IOException {
+        writeRegBuffer(reg, new byte[] { (byte) data, (byte) (data >> 8) }, 2);
+    }
+
+    @Override
+    public synchronized void readRegBuffer(int reg, byte[] buffer, int length)
+            throws IOException {
+        call();
+        copyOut(checkRegister(reg), buffer, length);
+    }
+
+    @Override
+    public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        synchronized (this) {
+            call();
+            copyIn(checkRegister(reg), buffer, length);
+        }
+        notifyWrite(reg, Arrays.copyOf(buffer, length));
+    }
+
+    // Outside the lock, so the listener can use the device
+    private void notifyWrite(int reg, byte[] data) {
+        OnWriteListener listener = mListener;
+        if (listener != null) listener.onWrite(this, reg, data);
+    }
+
+    // Must be called with the lock held
+    private void copyOut(int reg, byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            buffer[i] = mRegisters[(reg + i) % REGISTER_COUNT];
+        }
+    }
+
+    // Must be called with the lock held
+    private void copyIn(int reg, byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            mRegisters[(reg + i) % REGISTER_COUNT] = buffer[i];
+        }
+    }
+
+    private static int checkRegister(int reg) {
+        if (reg < 0 || reg >= REGISTER_COUNT) {
+            throw new IllegalArgumentException("No register " + reg);
+        }
+        return reg;
+    }
+
+    // Must be called with the lock held
+    private void call() throws IOException {
+        mCalls++;
+        if (mClosed) {
+            throw new IOException(mName + " is closed");
+        }
+        if (mFailures > 0) {
+            mFailures--;
+            throw new IOException(mName + ": injected failure");
+        }
+    }
+}
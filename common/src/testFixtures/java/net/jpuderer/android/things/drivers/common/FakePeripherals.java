@@ -0,0 +1,114 @@
+package net.jpuderer.android.things.drivers.common;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.UartDevice;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Provides in-memory peripherals, so that drivers can run in a plain JVM.
+ *
+ * Peripherals are found by name.  Fakes are created the first time a name is asked for,
+ * either by the driver opening it or by the test getting it to script it beforehand:
+ *
+ * <pre>
+ * FakePeripherals peripherals = new FakePeripherals();
+ * FakeUartDevice uart = peripherals.getUartDevice("UART0");
+ * uart.setOnWriteListener(...);
+ * HpmSensor sensor = new HpmSensor(peripherals, "UART0", handler, null);
+ * uart.receive(frame);
+ * </pre>
+ *
+ * Other implementations, like a protocol simulator's pins, can be added with the put methods.
+ */
+public class FakePeripherals implements PeripheralProvider {
+    // Guarded by this
+    private final HashMap<String, Gpio> mGpios = new HashMap<>();
+    private final HashMap<String, UartDevice> mUartDevices = new HashMap<>();
+    private final HashMap<String, I2cDevice> mI2cDevices = new HashMap<>();
+
+    /**
+     * Return the fake GPIO with the given name, creating it if needed.
+     * @throws IllegalStateException A GPIO that isn't a fake was put under that name.
+     */
+    public synchronized FakeGpio getGpio(String name) {
+        Gpio gpio = mGpios.get(name);
+        if (gpio == null) {
+            gpio = new FakeGpio(name);
+            mGpios.put(name, gpio);
+        }
+        if (!(gpio instanceof FakeGpio)) {
+            throw new IllegalStateException(name + " is not a FakeGpio");
+        }
+        return (FakeGpio) gpio;
+    }
+
+    public synchronized void putGpio(String name, Gpio gpio) {
+        mGpios.put(name, gpio);
+    }
+
+    /**
+     * Return the fake UART with the given name, creating it if needed.
+     * @throws IllegalStateException A UART that isn't a fake was put under that name.
+     */
+    public synchronized FakeUartDevice getUartDevice(String name) {
+        UartDevice uart = mUartDevices.get(name);
+        if (uart == null) {
+            uart = new FakeUartDevice(name);
+            mUartDevices.put(name, uart);
+        }
+        if (!(uart instanceof FakeUartDevice)) {
+            throw new IllegalStateException(name + " is not a FakeUartDevice");
+        }
+        return (FakeUartDevice) uart;
+    }
+
+    public synchronized void putUartDevice(String name, UartDevice uart) {
+        mUartDevices.put(name, uart);
+    }
+
+    /**
+     * Return the fake I2C device at the given address of a bus, creating it if needed.
+     * @throws IllegalStateException A device that isn't a fake was put at that address.
+     */
+    public synchronized FakeI2cDevice getI2cDevice(String name, int address) {
+        String key = i2cKey(name, address);
+        I2cDevice device = mI2cDevices.get(key);
+        if (device == null) {
+            device = new FakeI2cDevice(name, address);
+            mI2cDevices.put(key, device);
+        }
+        if (!(device instanceof FakeI2cDevice)) {
+            throw new IllegalStateException(key + " is not a FakeI2cDevice");
+        }
+        return (FakeI2cDevice) device;
+    }
+
+    public synchronized void putI2cDevice(String name, int address, I2cDevice device) {
+        mI2cDevices.put(i2cKey(name, address), device);
+    }
+
+    @Override
+    public synchronized Gpio openGpio(String name) throws IOException {
+        Gpio gpio = mGpios.get(name);
+        return gpio != null ? gpio : getGpio(name);
+    }
+
+    @Override
+    public synchronized UartDevice openUartDevice(String name) throws IOException {
+        UartDevice uart = mUartDevices.get(name);
+        return uart != null ? uart : getUartDevice(name);
+    }
+
+    @Override
+    public synchronized I2cDevice openI2cDevice(String name, int address) throws IOException {
+        I2cDevice device = mI2cDevices.get(i2cKey(name, address));
+        return device != null ? device : getI2cDevice(name, address);
+    }
+
+    private static String i2cKey(String name, int address) {
+        return name + "@0x" + Integer.toHexString(address);
+    }
+}
@@ -0,0 +1,304 @@
+package net.jpuderer.android.things.drivers.common;
+
+import android.os.Handler;
+
+import com.google.android.things.pio.UartDevice;
+import com.google.android.things.pio.UartDeviceCallback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * In-memory UART, for running drivers off-device.
+ *
+ * Bytes the driver writes are kept for {@link #takeWritten()}, and passed to an
+ * {@link OnWriteListener}, which can play the part of the device and answer with
+ * {@link #receive(byte[])}.  Received bytes are queued until the driver reads them, and the
+ * registered callbacks are told they are available.  Callbacks registered without a handler
+ * are called directly on the thread that received the bytes, so no looper is needed.
+ *
+ * {@link #failNext(int)} makes the next calls throw, to exercise error handling.
+ */
+public class FakeUartDevice implements UartDevice {
+    /**
+     * Notified of each write made by the driver.
+     */
+    public interface OnWriteListener {
+        void onWrite(FakeUartDevice uart, byte[] data);
+    }
+
+    private final String mName;
+
+    // Guarded by this
+    private boolean mClosed;
+    private int mBaudrate;
+    private int mDataSize;
+    private int mParity;
+    private int mStopBits;
+    private int mHardwareFlowControl;
+    private int mModemControl;
+    private int mCalls;
+    private int mFailures;
+    private byte[] mReceived = new byte[64];
+    private int mReceivedStart;
+    private int mReceivedEnd;
+    private final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+    private final ArrayList<UartDeviceCallback> mCallbacks = new ArrayList<>();
+    private final ArrayList<Handler> mCallbackHandlers = new ArrayList<>();
+
+    private volatile OnWriteListener mListener;
+
+    public FakeUartDevice(String name) {
+        mName = name;
+    }
+
+    public void setOnWriteListener(OnWriteListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Make the next calls made by the driver throw an IOException.
+     */
+    public synchronized void failNext(int calls) {
+        mFailures = calls;
+    }
+
+    /**
+     * Number of calls the driver has made on the UART.
+     */
+    public synchronized int getCallCount() {
+        return mCalls;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    public synchronized int getBaudrate() {
+        return mBaudrate;
+    }
+
+    public synchronized int getDataSize() {
+        return mDataSize;
+    }
+
+    public synchronized int getParity() {
+        return mParity;
+    }
+
+    public synchronized int getStopBits() {
+        return mStopBits;
+    }
+
+    public synchronized int getHardwareFlowControl() {
+        return mHardwareFlowControl;
+    }
+
+    /**
+     * Number of received bytes the driver hasn't read yet.
+     */
+    public synchronized int getPendingCount() {
+        return mReceivedEnd - mReceivedStart;
+    }
+
+    /**
+     * Return the bytes written by the driver since the last call, and forget them.
+     */
+    public synchronized byte[] takeWritten() {
+        byte[] written = mWritten.toByteArray();
+        mWritten.reset();
+        return written;
+    }
+
+    /**
+     * Queue bytes sent by the device, and tell the callbacks they are available.
+     */
+    public void receive(byte[] data) {
+        receive(data, 0, data.length);
+    }
+
+    public void receive(byte[] data, int offset, int length) {
+        ArrayList<Runnable> notify = new ArrayList<>();
+        synchronized (this) {
+            if (mClosed) return;
+            if (mReceivedEnd + length > mReceived.length) {
+                // Compact, and grow if that's not enough
+                int pending = mReceivedEnd - mReceivedStart;
+                byte[] buffer = pending + length > mReceived.length
+                        ? new byte[Math.max(mReceived.length * 2, pending + length)]
+                        : mReceived;
+                System.arraycopy(mReceived, mReceivedStart, buffer, 0, pending);
+                mReceived = buffer;
+                mReceivedStart = 0;
+                mReceivedEnd = pending;
+            }
+            System.arraycopy(data, offset, mReceived, mReceivedEnd, length);
+            mReceivedEnd += length;
+            for (int i = 0; i < mCallbacks.size(); i++) {
+                final UartDeviceCallback callback = mCallbacks.get(i);
+                Handler handler = mCallbackHandlers.get(i);
+                Runnable dispatch = new Runnable() {
+                    @Override
+                    public void run() {
+                        // Like the real device, no callbacks once unregistered
+                        if (!isRegistered(callback)) return;
+                        if (!callback.onUartDeviceDataAvailable(FakeUartDevice.this)) {
+                            unregisterUartDeviceCallback(callback);
+                        }
+                    }
+                };
+                if (handler != null) {
+                    handler.post(dispatch);
+                } else {
+                    notify.add(dispatch);
+                }
+            }
+        }
+        // Outside the lock, so callbacks can read
+        for (Runnable dispatch : notify) {
+            dispatch.run();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mCallbacks.clear();
+        mCallbackHandlers.clear();
+    }
+
+    @Override
+    public synchronized void setBaudrate(int rate) throws IOException {
+        call();
+        mBaudrate = rate;
+    }
+
+    @Override
+    public synchronized void setDataSize(int size) throws IOException {
+        call();
+        mDataSize = size;
+    }
+
+    @Override
+    public synchronized void setParity(int mode) throws IOException {
+        call();
+        mParity = mode;
+    }
+
+    @Override
+    public synchronized void setStopBits(int bits) throws IOException {
+        call();
+        mStopBits = bits;
+    }
+
+    @Override
+    public synchronized void setHardwareFlowControl(int mode) throws IOException {
+        call();
+        mHardwareFlowControl = mode;
+    }
+
+    @Override
+    public synchronized void setModemControl(int lines) throws IOException {
+        call();
+        mModemControl |= lines;
+    }
+
+    @Override
+    public synchronized void clearModemControl(int lines) throws IOException {
+        call();
+        mModemControl &= ~lines;
+    }
+
+    @Override
+    public synchronized int getModemControl() throws IOException {
+        call();
+        return mModemControl;
+    }
+
+    @Override
+    public synchronized void sendBreak(int duration) throws IOException {
+        call();
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int length) throws IOException {
+        call();
+        int count = Math.min(length, mReceivedEnd - mReceivedStart);
+        System.arraycopy(mReceived, mReceivedStart, buffer, 0, count);
+        mReceivedStart += count;
+        if (mReceivedStart == mReceivedEnd) {
+            mReceivedStart = 0;
+            mReceivedEnd = 0;
+        }
+        return count;
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) throws IOException {
+        byte[] data = Arrays.copyOf(buffer, length);
+        synchronized (this) {
+            call();
+            mWritten.write(data, 0, length);
+        }
+        // Outside the lock, so the listener can answer
+        OnWriteListener listener = mListener;
+        if (listener != null) listener.onWrite(this, data);
+        return length;
+    }
+
+    @Override
+    public synchronized void flush(int direction) throws IOException {
+        call();
+        if (direction == FLUSH_IN || direction == FLUSH_IN_OUT) {
+            mReceivedStart = 0;
+            mReceivedEnd = 0;
+        }
+    }
+
+    @Override
+    public void registerUartDeviceCallback(UartDeviceCallback callback) throws IOException {
+        registerUartDeviceCallback(null, callback);
+    }
+
+    @Override
+    public synchronized void registerUartDeviceCallback(Handler handler,
+            UartDeviceCallback callback) throws IOException {
+        call();
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback must not be null");
+        }
+        mCallbacks.add(callback);
+        mCallbackHandlers.add(handler);
+    }
+
+    @Override
+    public synchronized void unregisterUartDeviceCallback(UartDeviceCallback callback) {
+        int i = mCallbacks.indexOf(callback);
+        if (i < 0) return;
+        mCallbacks.remove(i);
+        mCallbackHandlers.remove(i);
+    }
+
+    private synchronized boolean isRegistered(UartDeviceCallback callback) {
+        return mCallbacks.contains(callback);
+    }
+
+    // Must be called with the lock held
+    private void call() throws IOException {
+        mCalls++;
+        if (mClosed) {
+            throw new IOException(mName + " is closed");
+        }
+        if (mFailures > 0) {
+            mFailures--;
+            throw new IOException(mName + ": injected failure");
+        }
+    }
+}
@@ -2,9 +2,13 @@ package net.jpuderer.android.things.drivers.ds3231;
 
 import android.util.Log;
 
-import com.google.android.things.device.TimeManager;
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
+
+import net.jpuderer.android.things.drivers.common.AndroidThingsPeripherals;
+import net.jpuderer.android.things.drivers.common.Counter;
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+import net.jpuderer.android.things.drivers.common.LatencyHistogram;
+import net.jpuderer.android.things.drivers.common.PeripheralProvider;
 
 import java.io.IOException;
 import java.time.LocalDateTime;
@@ -25,12 +29,26 @@ public class Ds3231Rtc implements AutoCloseable {
 
     private I2cDevice mDevice;
 
+    private final DriverMetrics mMetrics;
+    private final Counter mI2cErrors;
+    private final LatencyHistogram mTransactions;
 
     public Ds3231Rtc(String i2cDeviceName) throws IOException {
+        this(AndroidThingsPeripherals.getInstance(), i2cDeviceName);
+    }
+
+    /**
+     * Create a driver for an RTC on an I2C bus opened with the given provider, such as
+     * in-memory fakes to run off-device.
+     */
+    public Ds3231Rtc(PeripheralProvider peripherals, String i2cDeviceName) throws IOException {
+        mMetrics = new DriverMetrics(TAG + ":" + i2cDeviceName);
+        mI2cErrors = mMetrics.counter(DriverMetrics.I2C_ERRORS);
+        mTransactions = mMetrics.histogram(DriverMetrics.TRANSACTION);
+
         // Attempt to access the I2C device
         try {
-            PeripheralManager manager = PeripheralManager.getInstance();
-            mDevice = manager.openI2cDevice(i2cDeviceName, I2C_ADDRESS);
+            mDevice = peripherals.openI2cDevice(i2cDeviceName, I2C_ADDRESS);
         } catch (IOException e) {
             Log.e(TAG, "Unable to access I2C device", e);
             return;
@@ -42,6 +60,37 @@ public class Ds3231Rtc implements AutoCloseable {
         mDevice.close();
     }
 
+    /**
+     * Return the driver's metrics: I2C errors, and the time taken by each I2C transaction.
+     */
+    public DriverMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private void readRegBuffer(int reg, byte[] data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            mDevice.readRegBuffer(reg, data, data.length);
+        } catch (IOException e) {
+            mI2cErrors.increment();
+            throw e;
+        } finally {
+            mTransactions.recordSince(start);
+        }
+    }
+
+    private void writeRegBuffer(int reg, byte[] data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            mDevice.writeRegBuffer(reg, data, data.length);
+        } catch (IOException e) {
+            mI2cErrors.increment();
+            throw e;
+        } finally {
+            mTransactions.recordSince(start);
+        }
+    }
+
     private static int bcdToDec(byte bcd) {
         return ((bcd >>> 4) * 10) + (bcd & 0x0f);
     }
@@ -52,9 +101,7 @@ public class Ds3231Rtc implements AutoCloseable {
 
     public LocalDateTime getUtcDateTime() throws IOException {
         byte[] data = new byte[7];
-        mDevice.readRegBuffer(DS3231_TIME_REGS, data, data.length);
-
-        TimeManager timeManager = TimeManager.getInstance();
+        readRegBuffer(DS3231_TIME_REGS, data);
 
         int second = bcdToDec(data[0]);
         int minute = bcdToDec(data[1]);
@@ -89,7 +136,7 @@ public class Ds3231Rtc implements AutoCloseable {
         data[5] += ((localDateTime.getYear() - 1900) / 100) << 7;
         data[6] = decToBcd(localDateTime.getYear() % 100);
 
-        mDevice.writeRegBuffer(DS3231_TIME_REGS, data, data.length);
+        writeRegBuffer(DS3231_TIME_REGS, data);
     }
 
     public void setEpochTimeMillis(long timestamp) throws IOException {
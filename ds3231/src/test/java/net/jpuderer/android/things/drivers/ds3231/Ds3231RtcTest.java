@@ -0,0 +1,82 @@
+package net.jpuderer.android.things.drivers.ds3231;
+
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+import net.jpuderer.android.things.drivers.common.FakeI2cDevice;
+import net.jpuderer.android.things.drivers.common.FakePeripherals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Ds3231RtcTest {
+    private static final String I2C_BUS = "I2C1";
+    private static final int I2C_ADDRESS = 0x68;
+
+    // 2026-10-18 12:34:56, a Sunday, in the time registers.  Bit 7 of the month is the century.
+    private static final LocalDateTime TIME = LocalDateTime.of(2026, 10, 18, 12, 34, 56);
+    private static final byte[] TIME_REGS = {
+            0x56, 0x34, 0x12, 0x07, 0x18, (byte) 0x90, 0x26
+    };
+
+    private FakeI2cDevice mDevice;
+    private Ds3231Rtc mRtc;
+
+    @Before
+    public void setUp() throws IOException {
+        FakePeripherals peripherals = new FakePeripherals();
+        mDevice = peripherals.getI2cDevice(I2C_BUS, I2C_ADDRESS);
+        mRtc = new Ds3231Rtc(peripherals, I2C_BUS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mRtc.close();
+    }
+
+    @Test
+    public void readsTime() throws IOException {
+        mDevice.setRegisters(0, TIME_REGS);
+        assertEquals(TIME, mRtc.getUtcDateTime());
+        assertEquals(TIME.toEpochSecond(ZoneOffset.UTC) * 1000, mRtc.getEpochTimeMillis());
+    }
+
+    @Test
+    public void writesTime() throws IOException {
+        mRtc.setUtcDateTime(TIME);
+        assertArrayEquals(TIME_REGS, mDevice.getRegisters(0, TIME_REGS.length));
+    }
+
+    @Test
+    public void epochTimeRoundTrips() throws IOException {
+        long millis = TIME.toEpochSecond(ZoneOffset.UTC) * 1000;
+        mRtc.setEpochTimeMillis(millis + 999);
+        // The RTC only keeps whole seconds
+        assertEquals(millis, mRtc.getEpochTimeMillis());
+    }
+
+    @Test
+    public void countsI2cErrors() throws IOException {
+        mDevice.failNext(1);
+        try {
+            mRtc.getUtcDateTime();
+            fail("Expected the injected failure");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, mRtc.getMetrics().counter(DriverMetrics.I2C_ERRORS).get());
+    }
+
+    @Test
+    public void closeClosesDevice() throws IOException {
+        mRtc.close();
+        assertTrue(mDevice.isClosed());
+    }
+}
@@ -0,0 +1,134 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a capture file written by {@link HpmCaptureWriter}, either at the pace the data
+ * was originally received, or as fast as possible.  Has no Android dependencies, so captures
+ * from the field can be fed through {@link HpmFrameDecoder} on a workstation.
+ */
+public class HpmCaptureReplay implements Closeable {
+    /**
+     * Receives each chunk of the capture, in the order it was recorded.
+     */
+    public interface Listener {
+        /**
+         * @param timestampNanos Time the chunk was originally read from the UART.
+         * @param buffer Chunk data.  The array is reused for the next chunk.
+         * @param count Number of bytes in the chunk.
+         */
+        void onChunk(long timestampNanos, byte[] buffer, int count);
+    }
+
+    private FileChannel mChannel;
+    private final MappedByteBuffer mBuffer;
+
+    private byte[] mChunk = new byte[HpmFrameDecoder.LENGTH_DATA_FRAME * 2];
+
+    public HpmCaptureReplay(File file) throws IOException {
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = mChannel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Capture file too large");
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            checkHeader(mBuffer);
+        } catch (IOException|RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } finally {
+                mChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Feed the capture through a decoder.
+     * @param realtime If true, reproduce the original timing between chunks.
+     * @return The number of chunks replayed.
+     */
+    public int replay(final HpmFrameDecoder decoder, boolean realtime)
+            throws InterruptedException {
+        return replay(new Listener() {
+            @Override
+            public void onChunk(long timestampNanos, byte[] buffer, int count) {
+                decoder.feed(buffer, 0, count);
+            }
+        }, realtime);
+    }
+
+    /**
+     * Replay the capture from the beginning.
+     * @param realtime If true, reproduce the original timing between chunks.
+     * @return The number of chunks replayed.
+     */
+    public int replay(Listener listener, boolean realtime) throws InterruptedException {
+        long firstTimestamp = 0;
+        long startTime = System.nanoTime();
+        int chunks = 0;
+
+        mBuffer.position(HpmCaptureWriter.HEADER_SIZE);
+        while (mBuffer.remaining() >= HpmCaptureWriter.RECORD_HEADER_SIZE) {
+            long timestamp = mBuffer.getLong();
+            int count = mBuffer.getInt();
+            if (count <= 0 || count > mBuffer.remaining()) break;
+            if (count > mChunk.length) mChunk = new byte[count];
+            mBuffer.get(mChunk, 0, count);
+
+            if (chunks == 0) {
+                firstTimestamp = timestamp;
+            } else if (realtime) {
+                long delay = startTime + (timestamp - firstTimestamp) - System.nanoTime();
+                if (delay > 0) TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            listener.onChunk(timestamp, mChunk, count);
+            chunks++;
+        }
+        return chunks;
+    }
+
+    private static void checkHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HpmCaptureWriter.HEADER_SIZE
+                || buffer.getInt(0) != HpmCaptureWriter.MAGIC) {
+            throw new IOException("Not an HPM capture file");
+        }
+        if (buffer.getInt(4) != HpmCaptureWriter.VERSION) {
+            throw new IOException("Unsupported capture version: " + buffer.getInt(4));
+        }
+    }
+
+    // Find the position following the last complete record in a capture file
+    static long findEnd(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HpmCaptureWriter.RECORD_HEADER_SIZE);
+        header.limit(HpmCaptureWriter.HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        checkHeader(header);
+
+        long size = channel.size();
+        long position = HpmCaptureWriter.HEADER_SIZE;
+        while (size - position >= HpmCaptureWriter.RECORD_HEADER_SIZE) {
+            header.clear();
+            channel.read(header, position);
+            int count = header.getInt(8);
+            long next = position + HpmCaptureWriter.RECORD_HEADER_SIZE + count;
+            if (count <= 0 || next > size) break;
+            position = next;
+        }
+        return position;
+    }
+}
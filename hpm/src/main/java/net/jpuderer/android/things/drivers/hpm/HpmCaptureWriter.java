@@ -0,0 +1,104 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends raw data read from the HPM sensor's UART to a capture file, so that it can be
+ * replayed later with {@link HpmCaptureReplay}.
+ *
+ * The file is written through a memory mapped window that is moved forward as it fills up,
+ * so appending a chunk is just a couple of memory copies.  If the file already contains a
+ * capture, new chunks are appended after the existing ones.
+ *
+ * File format (big endian):
+ * <pre>
+ *   int    magic ("HPMC")
+ *   int    version
+ *   repeated:
+ *     long   timestamp of the chunk in nanoseconds (elapsed realtime on the device)
+ *     int    length of the chunk in bytes
+ *     byte[] chunk data
+ * </pre>
+ * A record with a length of zero (or the end of the file) marks the end of the capture.
+ *
+ * {@link #append} and {@link #close} hold the writer's lock, so the window is never released
+ * in the middle of a write.  Appending after the writer was closed throws an IOException.
+ */
+public class HpmCaptureWriter implements Closeable {
+    static final int MAGIC = 0x48504d43;
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 12;
+
+    // Size of the window mapped at the end of the file
+    private static final int MAP_SIZE = 1 << 20;
+
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+
+    // File position of the start of the mapped window
+    private long mMapStart;
+
+    public HpmCaptureWriter(File file) throws IOException {
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (mChannel.size() == 0) {
+                map(0, MAP_SIZE);
+                mBuffer.putInt(MAGIC);
+                mBuffer.putInt(VERSION);
+            } else {
+                map(HpmCaptureReplay.findEnd(mChannel), MAP_SIZE);
+            }
+        } catch (IOException|RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Append a chunk of data read from the sensor.
+     * @param timestampNanos Time the data was read.
+     */
+    public synchronized void append(long timestampNanos, byte[] buffer, int offset, int count)
+            throws IOException {
+        if (mChannel == null) throw new IOException("Capture file is closed");
+        if (count <= 0) return;
+        int size = RECORD_HEADER_SIZE + count;
+        if (mBuffer.remaining() < size) {
+            map(mMapStart + mBuffer.position(), Math.max(MAP_SIZE, size));
+        }
+        mBuffer.putLong(timestampNanos);
+        mBuffer.putInt(count);
+        mBuffer.put(buffer, offset, count);
+    }
+
+    /**
+     * Flush the capture and truncate the file to the data actually written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mChannel == null) return;
+        try {
+            long end = mMapStart + mBuffer.position();
+            mBuffer.force();
+            mBuffer = null;
+            mChannel.truncate(end);
+        } finally {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    // Dirty pages of the previous window are written back by the kernel once unmapped
+    private void map(long position, int size) throws IOException {
+        mMapStart = position;
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+    }
+}
@@ -0,0 +1,182 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.jpuderer.android.things.drivers.common.Counter;
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+import net.jpuderer.android.things.drivers.common.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends commands to the HPM sensor one at a time, waiting for the ACK (or NACK) of each
+ * command before sending the next.  Commands that are rejected or not acknowledged in time
+ * are retried a few times before their future fails.
+ *
+ * Commands are written on the handler thread, and responses may be delivered from any thread.
+ */
+class HpmCommandQueue {
+    private static final String TAG = HpmCommandQueue.class.getSimpleName();
+
+    // Time to wait for the sensor to respond to a command
+    static final int COMMAND_TIMEOUT_MS = 500;
+
+    // Number of times a command is sent before giving up
+    static final int COMMAND_ATTEMPTS = 3;
+
+    interface Transport {
+        /**
+         * Write the command to the sensor.
+         * @return Number of bytes written.
+         */
+        int write(byte[] command) throws IOException;
+    }
+
+    private static class Command {
+        final byte[] bytes;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        int attempts;
+        long sentNanos;
+
+        Command(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Transport mTransport;
+
+    private final Counter mTimeouts;
+    private final LatencyHistogram mResponseLatency;
+
+    private final ArrayDeque<Command> mQueue = new ArrayDeque<>();
+
+    // Command that was sent and is waiting for a response
+    private Command mPending;
+
+    private final Runnable mSendNext = new Runnable() {
+        @Override
+        public void run() {
+            sendNext();
+        }
+    };
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    HpmCommandQueue(Handler handler, Transport transport, DriverMetrics metrics) {
+        mHandler = handler;
+        mTransport = transport;
+        mTimeouts = metrics.counter(DriverMetrics.TIMEOUTS);
+        // For the HPM, the "result" of a command is its response
+        mResponseLatency = metrics.histogram(DriverMetrics.COMMAND_TO_DATA_READY);
+    }
+
+    /**
+     * Queue a command to be sent to the sensor.
+     * @return Future that completes once the sensor has acknowledged the command.
+     */
+    CompletableFuture<Void> enqueue(byte[] command) {
+        Command c = new Command(command);
+        synchronized (this) {
+            mQueue.add(c);
+            if (mPending == null) mHandler.post(mSendNext);
+        }
+        return c.future;
+    }
+
+    /**
+     * Fail any queued or pending commands.
+     */
+    void cancel(IOException reason) {
+        ArrayDeque<Command> failed = new ArrayDeque<>();
+        synchronized (this) {
+            mHandler.removeCallbacks(mSendNext);
+            mHandler.removeCallbacks(mTimeout);
+            if (mPending != null) failed.add(mPending);
+            failed.addAll(mQueue);
+            mPending = null;
+            mQueue.clear();
+        }
+        for (Command c : failed) {
+            c.future.completeExceptionally(reason);
+        }
+    }
+
+    /**
+     * Called with each command response received from the sensor.
+     */
+    void onCommandResponse(boolean ok) {
+        Command done;
+        synchronized (this) {
+            if (mPending == null) {
+                Log.w(TAG, "Ignoring unexpected command response from sensor.");
+                return;
+            }
+            mHandler.removeCallbacks(mTimeout);
+            mResponseLatency.recordSince(mPending.sentNanos);
+            if (!ok) {
+                retryOrFail(new IOException("Sensor rejected command"));
+                return;
+            }
+            done = mPending;
+            mPending = null;
+            if (!mQueue.isEmpty()) mHandler.post(mSendNext);
+        }
+        done.future.complete(null);
+    }
+
+    private void onTimeout() {
+        synchronized (this) {
+            if (mPending == null) return;
+            mTimeouts.increment();
+            retryOrFail(new IOException("Timeout waiting for command response from sensor"));
+        }
+    }
+
+    // Must be called with the lock held, and a pending command
+    private void retryOrFail(final IOException e) {
+        final Command c = mPending;
+        if (c.attempts < COMMAND_ATTEMPTS) {
+            Log.w(TAG, e.getMessage() + ".  Retrying.");
+            mQueue.addFirst(c);
+        } else {
+            // Fail outside of the lock, once we're done with the queue
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    c.future.completeExceptionally(e);
+                }
+            });
+        }
+        mPending = null;
+        mHandler.post(mSendNext);
+    }
+
+    private void sendNext() {
+        synchronized (this) {
+            if (mPending != null || mQueue.isEmpty()) return;
+            mPending = mQueue.poll();
+            mPending.attempts++;
+            mPending.sentNanos = System.nanoTime();
+            try {
+                int count = mTransport.write(mPending.bytes);
+                if (count != mPending.bytes.length) {
+                    throw new IOException("Short write sending command to sensor");
+                }
+            } catch (IOException e) {
+                retryOrFail(e);
+                return;
+            }
+            mHandler.postAtTime(mTimeout, SystemClock.uptimeMillis() + COMMAND_TIMEOUT_MS);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.jpuderer.android.things.drivers.common.DriverScheduler;
+
+import java.io.IOException;
+
+/**
+ * Runs the HPM sensor's fan and laser for a warm-up and sampling window, and turns them off
+ * between windows to save power.  The off interval adapts to how much the particle counts
+ * are changing: short while air quality is changing, long while it is stable.
+ *
+ * All state changes happen on the handler thread, which must also be the sensor's handler.
+ */
+class HpmDutyCycle implements HpmSensor.OnReadingListener {
+    private static final String TAG = HpmDutyCycle.class.getSimpleName();
+
+    // Variability (relative standard deviation within a window, or relative change of the
+    // mean between windows) at which the shortest off interval is used.
+    static final float VARIABILITY_HIGH = 0.25f;
+
+    private static final int STATE_STOPPED = 0;
+    private static final int STATE_WARMUP = 1;
+    private static final int STATE_SAMPLING = 2;
+    private static final int STATE_OFF = 3;
+
+    private final HpmSensor mDevice;
+    private final Handler mHandler;
+
+    private final long mWarmupMs;
+    private final long mSampleMs;
+    private final long mMinOffMs;
+    private final long mMaxOffMs;
+
+    // Schedules the state changes, which run on mHandler.  Only held while started.
+    private DriverScheduler mScheduler;
+
+    // How late state changes may happen, so they can share wakeups with other drivers.
+    // Windows are seconds long, so this hardly changes them.
+    private static final long SLACK_MS = 250;
+
+    private int mState = STATE_STOPPED;
+
+    // Running mean and sum of squared differences (Welford) for the current window
+    private int mCount;
+    private double mMean25;
+    private double mM2Pm25;
+    private double mMean10;
+    private double mM2Pm10;
+
+    // Means from the previous window, or negative if there isn't one
+    private double mPreviousMean25 = -1;
+    private double mPreviousMean10 = -1;
+
+    // Last reading taken during a sampling window.  Guarded by itself.
+    private final HpmReading mReading = new HpmReading();
+    private boolean mHasReading;
+
+    private final Runnable mPowerOn = new Runnable() {
+        @Override
+        public void run() {
+            if (!isStarted()) return;
+            try {
+                mDevice.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to start sensor", e);
+            }
+            mState = STATE_WARMUP;
+            schedule(mBeginSampling, mWarmupMs);
+        }
+    };
+
+    private final Runnable mBeginSampling = new Runnable() {
+        @Override
+        public void run() {
+            if (!isStarted()) return;
+            mCount = 0;
+            mMean25 = mM2Pm25 = 0;
+            mMean10 = mM2Pm10 = 0;
+            mState = STATE_SAMPLING;
+            schedule(mPowerOff, mSampleMs);
+        }
+    };
+
+    private final Runnable mPowerOff = new Runnable() {
+        @Override
+        public void run() {
+            if (!isStarted()) return;
+            try {
+                mDevice.stop();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to stop sensor", e);
+            }
+            long offMs = mMinOffMs;
+            if (mCount > 0) {
+                float variability = Math.max(
+                        variability(mCount, mMean25, mM2Pm25, mPreviousMean25),
+                        variability(mCount, mMean10, mM2Pm10, mPreviousMean10));
+                offMs = computeOffInterval(variability, mMinOffMs, mMaxOffMs);
+                mPreviousMean25 = mMean25;
+                mPreviousMean10 = mMean10;
+            }
+            mState = STATE_OFF;
+            schedule(mPowerOn, offMs);
+        }
+    };
+
+    private final Runnable mStart = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == STATE_STOPPED) mPowerOn.run();
+        }
+    };
+
+    private final Runnable mPowerDown = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == STATE_WARMUP || mState == STATE_SAMPLING) {
+                try {
+                    mDevice.stop();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to stop sensor", e);
+                }
+            }
+            mState = STATE_STOPPED;
+        }
+    };
+
+    HpmDutyCycle(HpmSensor device, Handler handler, long warmupMs, long sampleMs,
+            long minOffMs, long maxOffMs) {
+        if (warmupMs < 0 || sampleMs < HpmSensor.HPM_MEASUREMENT_INTERVAL / 1000) {
+            throw new IllegalArgumentException("Invalid warm-up or sampling window");
+        }
+        if (minOffMs <= 0 || maxOffMs < minOffMs) {
+            throw new IllegalArgumentException("Invalid off interval");
+        }
+        mDevice = device;
+        mHandler = handler;
+        mWarmupMs = warmupMs;
+        mSampleMs = sampleMs;
+        mMinOffMs = minOffMs;
+        mMaxOffMs = maxOffMs;
+    }
+
+    /**
+     * Longest time between the sampling windows of two consecutive cycles.
+     */
+    long getMaxPeriodMs() {
+        return mWarmupMs + mSampleMs + mMaxOffMs;
+    }
+
+    synchronized void start() {
+        if (mScheduler == null) {
+            mScheduler = DriverScheduler.acquire();
+        }
+        cancel();
+        mScheduler.postAtTime(mHandler, mStart, SystemClock.uptimeMillis(), 0);
+    }
+
+    synchronized void stop() {
+        if (mScheduler != null) {
+            cancel();
+            DriverScheduler.release();
+            mScheduler = null;
+        }
+        mHandler.post(mPowerDown);
+    }
+
+    // State changes check this before acting, in case one was already running or about to
+    // run when the duty cycle was stopped.  mPowerDown then leaves the sensor stopped.
+    private synchronized boolean isStarted() {
+        return mScheduler != null;
+    }
+
+    // Schedule a state change on the handler, after the given delay.  Ignored once stopped.
+    private synchronized void schedule(Runnable change, long delayMs) {
+        if (mScheduler == null) return;
+        mScheduler.postAtTime(mHandler, change, SystemClock.uptimeMillis() + delayMs, SLACK_MS);
+    }
+
+    // Must be called with the lock held
+    private void cancel() {
+        mScheduler.removeCallbacks(mStart);
+        mScheduler.removeCallbacks(mPowerOn);
+        mScheduler.removeCallbacks(mBeginSampling);
+        mScheduler.removeCallbacks(mPowerOff);
+        // Any already handed to the handler
+        mHandler.removeCallbacks(mStart);
+        mHandler.removeCallbacks(mPowerOn);
+        mHandler.removeCallbacks(mBeginSampling);
+        mHandler.removeCallbacks(mPowerOff);
+    }
+
+    /**
+     * Copy the last reading taken during a sampling window.
+     * @throws IOException No sampling window has completed a reading yet.
+     */
+    HpmReading readReading(HpmReading reading) throws IOException {
+        synchronized (mReading) {
+            if (!mHasReading) throw new IOException("No data available");
+            reading.copyFrom(mReading);
+        }
+        return reading;
+    }
+
+    @Override
+    public void onReading(HpmReading reading) {
+        // Readings taken while the fan is spinning up aren't reliable
+        if (mState != STATE_SAMPLING) return;
+
+        mCount++;
+        double delta = reading.getPm25() - mMean25;
+        mMean25 += delta / mCount;
+        mM2Pm25 += delta * (reading.getPm25() - mMean25);
+        delta = reading.getPm10() - mMean10;
+        mMean10 += delta / mCount;
+        mM2Pm10 += delta * (reading.getPm10() - mMean10);
+
+        synchronized (mReading) {
+            mReading.copyFrom(reading);
+            mHasReading = true;
+        }
+    }
+
+    // Largest of the relative standard deviation within the window, and the relative change
+    // of the mean since the previous window.  Counts below 1 ug/m3 are treated as 1.
+    static float variability(int count, double mean, double m2, double previousMean) {
+        double scale = Math.max(mean, 1);
+        double variability = Math.sqrt(m2 / count) / scale;
+        if (previousMean >= 0) {
+            variability = Math.max(variability,
+                    Math.abs(mean - previousMean) / Math.max(previousMean, 1));
+        }
+        return (float) variability;
+    }
+
+    static long computeOffInterval(float variability, long minOffMs, long maxOffMs) {
+        float fraction = Math.min(1f, variability / VARIABILITY_HIGH);
+        return maxOffMs - (long) ((maxOffMs - minOffMs) * fraction);
+    }
+}
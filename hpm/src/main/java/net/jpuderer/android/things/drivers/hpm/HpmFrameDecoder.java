@@ -0,0 +1,161 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+/**
+ * Incremental decoder for the byte stream sent by the HPM sensor.
+ *
+ * Bytes are copied into a small fixed size ring buffer and scanned for the data frame
+ * (0x424d) and command response (0xA5A5/0x9696) headers.  Unexpected bytes and frames with a
+ * bad checksum only cost us a single byte, so the decoder re-synchronizes on the next
+ * candidate header instead of discarding everything it has buffered.  Nothing is allocated
+ * once the decoder has been created.
+ *
+ * This class is not thread safe, and has no Android dependencies.
+ */
+public class HpmFrameDecoder {
+    static final int RESPONSE_ACK_OK = 0xA5A5;
+    static final int RESPONSE_ACK_ERROR = 0x9696;
+    static final int RESPONSE_DATA_FRAME = 0x424d;
+
+    public static final int LENGTH_DATA_FRAME = 32;
+
+    // Must be a power of two, and at least twice the length of a data frame, so that
+    // there is always room to copy in more data after decoding what we have.
+    private static final int RING_SIZE = LENGTH_DATA_FRAME * 2;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    /**
+     * Receives the frames and events found by the decoder.  Callbacks are invoked on the
+     * thread calling {@link #feed(byte[], int, int)}.
+     */
+    public interface Callback {
+        /**
+         * A data frame with a valid checksum was received.  The array is reused by the
+         * decoder, and is only valid for the duration of the call.
+         */
+        void onDataFrame(byte[] frame);
+
+        /**
+         * A command response was received.
+         * @param ok True for an ACK, false for a NACK.
+         */
+        void onCommandResponse(boolean ok);
+
+        /**
+         * A data frame header was found, but the checksum didn't match.
+         */
+        void onChecksumError();
+
+        /**
+         * Bytes were skipped while searching for the next valid header.
+         * @param count Number of bytes skipped.
+         */
+        void onResync(int count);
+    }
+
+    private final Callback mCallback;
+
+    private final byte[] mRing = new byte[RING_SIZE];
+    private int mHead;
+    private int mCount;
+
+    // Number of bytes skipped since the last valid header
+    private int mSkipped;
+
+    // Reused for each data frame handed to the callback
+    private final byte[] mFrame = new byte[LENGTH_DATA_FRAME];
+
+    public HpmFrameDecoder(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Discard any buffered bytes.
+     */
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+        mSkipped = 0;
+    }
+
+    /**
+     * Feed bytes received from the sensor to the decoder.
+     */
+    public void feed(byte[] buffer, int offset, int count) {
+        while (count > 0) {
+            // Decoding always leaves less than a frame in the ring, so there is always room.
+            int n = Math.min(count, RING_SIZE - mCount);
+            int tail = (mHead + mCount) & RING_MASK;
+            int first = Math.min(n, RING_SIZE - tail);
+            System.arraycopy(buffer, offset, mRing, tail, first);
+            if (first < n) {
+                System.arraycopy(buffer, offset + first, mRing, 0, n - first);
+            }
+            mCount += n;
+            offset += n;
+            count -= n;
+            decode();
+        }
+    }
+
+    private void decode() {
+        while (mCount >= 2) {
+            int word = (peek(0) << 8) | peek(1);
+            if (word == RESPONSE_DATA_FRAME) {
+                if (mCount < LENGTH_DATA_FRAME) {
+                    // Wait for the rest of the frame
+                    return;
+                }
+                if (isChecksumValid()) {
+                    finishSkipping();
+                    for (int i = 0; i < LENGTH_DATA_FRAME; i++) {
+                        mFrame[i] = mRing[(mHead + i) & RING_MASK];
+                    }
+                    drop(LENGTH_DATA_FRAME);
+                    mCallback.onDataFrame(mFrame);
+                } else {
+                    // Most likely noise that happened to look like a header, or a corrupt
+                    // frame.  Either way, the next real header could be inside this one.
+                    mCallback.onChecksumError();
+                    skip();
+                }
+            } else if (word == RESPONSE_ACK_OK || word == RESPONSE_ACK_ERROR) {
+                finishSkipping();
+                drop(2);
+                mCallback.onCommandResponse(word == RESPONSE_ACK_OK);
+            } else {
+                skip();
+            }
+        }
+    }
+
+    private boolean isChecksumValid() {
+        int checksum = (peek(LENGTH_DATA_FRAME - 2) << 8) | peek(LENGTH_DATA_FRAME - 1);
+        int calculatedChecksum = 0;
+        for (int i = 0; i < LENGTH_DATA_FRAME - 2; i++) {
+            calculatedChecksum += peek(i);
+        }
+        return checksum == calculatedChecksum;
+    }
+
+    private int peek(int index) {
+        return mRing[(mHead + index) & RING_MASK] & 0xFF;
+    }
+
+    private void drop(int count) {
+        mHead = (mHead + count) & RING_MASK;
+        mCount -= count;
+    }
+
+    private void skip() {
+        drop(1);
+        mSkipped++;
+    }
+
+    private void finishSkipping() {
+        if (mSkipped > 0) {
+            int skipped = mSkipped;
+            mSkipped = 0;
+            mCallback.onResync(skipped);
+        }
+    }
+}
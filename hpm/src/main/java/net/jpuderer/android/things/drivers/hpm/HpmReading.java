@@ -0,0 +1,161 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+/**
+ * A complete data frame received from the HPM sensor, along with the time it arrived.
+ *
+ * Readings are mutable so that they can be reused.  Either keep a reading around and pass it
+ * to {@link HpmSensor#readReading(HpmReading)}, or use {@link #obtain()} and
+ * {@link #recycle()} to take readings from a small shared pool.
+ */
+public class HpmReading {
+    // Number of 16 bit data words in a data frame
+    public static final int DATA_WORDS = 13;
+
+    // Data word indexes
+    public static final int DATA_PM25 = 1;
+    public static final int DATA_PM10 = 2;
+
+    private static final int MAX_POOL_SIZE = 8;
+
+    private static final Object sPoolLock = new Object();
+    private static HpmReading sPool;
+    private static int sPoolSize;
+
+    private HpmReading mNext;
+    // Set when the reading is recycled, and cleared when it is obtained again, like the in-use
+    // flag of android.os.Message.  Readings dropped because the pool was full keep it too.
+    // Guarded by sPoolLock.
+    private boolean mRecycled;
+
+    private long mTimestamp;
+    private int mFrameLength;
+    private final int[] mData = new int[DATA_WORDS];
+    private int mChecksum;
+
+    // Output of the spike filter, or the raw values if there isn't one
+    private int mFilteredPm25;
+    private int mFilteredPm10;
+
+    /**
+     * Return a reading from the pool, or a new one if the pool is empty.
+     */
+    public static HpmReading obtain() {
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                HpmReading reading = sPool;
+                sPool = reading.mNext;
+                reading.mNext = null;
+                reading.mRecycled = false;
+                sPoolSize--;
+                return reading;
+            }
+        }
+        return new HpmReading();
+    }
+
+    /**
+     * Return the reading to the pool.  The reading must not be used after calling this.
+     * @throws IllegalStateException The reading was already recycled.
+     */
+    public void recycle() {
+        synchronized (sPoolLock) {
+            if (mRecycled) {
+                throw new IllegalStateException("Reading was already recycled");
+            }
+            mRecycled = true;
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    public void copyFrom(HpmReading other) {
+        mTimestamp = other.mTimestamp;
+        mFrameLength = other.mFrameLength;
+        System.arraycopy(other.mData, 0, mData, 0, DATA_WORDS);
+        mChecksum = other.mChecksum;
+        mFilteredPm25 = other.mFilteredPm25;
+        mFilteredPm10 = other.mFilteredPm10;
+    }
+
+    // Fill in from a data frame that has already been validated
+    void set(byte[] frame, long timestampNanos) {
+        mTimestamp = timestampNanos;
+        mFrameLength = readWord(frame, 2);
+        for (int i = 0; i < DATA_WORDS; i++) {
+            mData[i] = readWord(frame, 4 + i * 2);
+        }
+        mChecksum = readWord(frame, 4 + DATA_WORDS * 2);
+        mFilteredPm25 = getPm25();
+        mFilteredPm10 = getPm10();
+    }
+
+    void setFiltered(int pm25, int pm10) {
+        mFilteredPm25 = pm25;
+        mFilteredPm10 = pm10;
+    }
+
+    private static int readWord(byte[] frame, int offset) {
+        return ((frame[offset] & 0xFF) << 8) | (frame[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Time the frame arrived, in nanoseconds of elapsed realtime.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Length field of the frame (the number of bytes following it).
+     */
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /**
+     * Data word from the frame.  Depending on the sensor model, words other than
+     * {@link #DATA_PM25} and {@link #DATA_PM10} are either reserved or contain other
+     * particle sizes.
+     * @param index Index of the word, from 0 to {@link #DATA_WORDS} - 1.
+     */
+    public int getData(int index) {
+        return mData[index];
+    }
+
+    public int getChecksum() {
+        return mChecksum;
+    }
+
+    /**
+     * PM2.5 particle count in ug/m3, as sent by the sensor.
+     */
+    public int getPm25() {
+        return mData[DATA_PM25];
+    }
+
+    /**
+     * PM10 particle count in ug/m3, as sent by the sensor.
+     */
+    public int getPm10() {
+        return mData[DATA_PM10];
+    }
+
+    /**
+     * PM2.5 particle count in ug/m3, with spikes removed by the sensor's
+     * {@link HpmSpikeFilter}.  Same as {@link #getPm25()} if there is no filter.
+     */
+    public int getFilteredPm25() {
+        return mFilteredPm25;
+    }
+
+    /**
+     * PM10 particle count in ug/m3, with spikes removed by the sensor's
+     * {@link HpmSpikeFilter}.  Same as {@link #getPm10()} if there is no filter.
+     */
+    public int getFilteredPm10() {
+        return mFilteredPm10;
+    }
+}
@@ -1,17 +1,28 @@
 package net.jpuderer.android.things.drivers.hpm;
 
 import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.android.things.pio.PeripheralManager;
 import com.google.android.things.pio.UartDevice;
 import com.google.android.things.pio.UartDeviceCallback;
 
+import net.jpuderer.android.things.drivers.common.AcquisitionPlanner;
+import net.jpuderer.android.things.drivers.common.AndroidThingsPeripherals;
+import net.jpuderer.android.things.drivers.common.Counter;
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+import net.jpuderer.android.things.drivers.common.LatencyHistogram;
+import net.jpuderer.android.things.drivers.common.PeripheralProvider;
+
+import java.io.File;
 import java.io.IOException;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 import java.lang.Byte;
 
@@ -23,11 +34,15 @@ public class HpmSensor implements AutoCloseable {
     private static final byte[] CMD_START_PARTICLE_MEASUREMENT = { 0x68, 0x01, 0x01, (byte)0x96 };
     private static final byte[] CMD_STOP_PARTICLE_MEASUREMENT = { 0x68, 0x01, 0x02, (byte)0x95 };
 
-    private static final short RESPONSE_ACK_OK = (short) 0xA5A5;
-    private static final short RESPONSE_ACK_ERROR = (short) 0x9696;
-    private static final short RESPONSE_DATA_FRAME = (short) 0x424d;
+    private static final int LENGTH_DATA_FRAME = HpmFrameDecoder.LENGTH_DATA_FRAME;
+
+    // How long close() waits for the sensor to acknowledge the stop commands
+    private static final long CLOSE_TIMEOUT_MS = 2 * HpmCommandQueue.COMMAND_ATTEMPTS
+            * HpmCommandQueue.COMMAND_TIMEOUT_MS;
 
-    private static final int LENGTH_DATA_FRAME = 32;
+    // Time given the sensor to take in a command before the next one is written, when
+    // commands are written without waiting for their ACK
+    private static final long COMMAND_GAP_MS = 20;
 
     private static final boolean DEBUG = false;
 
@@ -37,25 +52,135 @@ public class HpmSensor implements AutoCloseable {
     public static final float HPM_PARTICLE_MAX = 1000f;
     public static final float HPM_POWER_CONSUMPTION_UA = 80000;
 
+    // Time to receive a data frame at 9600 baud, 10 bits per byte, in ms
+    static final long HPM_FRAME_TIME_MS = (LENGTH_DATA_FRAME * 10 * 1000 + 9599) / 9600;
+
     private UartDevice mDevice;
+    // Serializes reads with close(), which can run while data is still being drained
+    private final Object mDeviceLock = new Object();
+    // Guarded by mDeviceLock
+    private boolean mDeviceClosed;
 
     private Handler mHandler;
 
     // Is the sensor started (making measurements)?
     private boolean mStarted;
+    private CompletableFuture<Void> mStartFuture;
+
+    // Is mUartCallback registered?  It stays registered after stop() until the
+    // sensor has responded to the stop commands.
+    private boolean mCallbackRegistered;
+
+    private HpmCommandQueue mCommandQueue;
 
-    // If set, contains a stored exception to throw when user asks for data
+    // Latest reading, and (if set) a stored exception to throw when user asks for data.
+    // Both are guarded by mReading, so readers always see a complete frame.
+    private final HpmReading mReading = new HpmReading();
     private IOException mLastException;
 
-    private int mPm25;
-    private int mPm10;
+    /**
+     * Notified of each valid data frame received from the sensor.
+     */
+    public interface OnReadingListener {
+        /**
+         * Called on the sensor's handler thread.  The reading is reused, and is only valid
+         * for the duration of the call.
+         */
+        void onReading(HpmReading reading);
+    }
+
+    private volatile OnReadingListener mListener;
+    private volatile AcquisitionPlanner.Reservation mReservation;
+    // Guarded by itself when frames are decoded on a shared reader's thread
+    private final HpmReading mListenerReading = new HpmReading();
+
+    // Delivers the latest reading to the listener on our handler, when frames are
+    // decoded on a shared reader's thread.
+    private final Runnable mDispatchReading = new Runnable() {
+        @Override
+        public void run() {
+            OnReadingListener listener = mListener;
+            synchronized (mListenerReading) {
+                mDispatchPending = false;
+                if (listener != null) listener.onReading(mListenerReading);
+            }
+        }
+    };
+    // Guarded by mListenerReading
+    private boolean mDispatchPending;
+
+    private final DriverMetrics mMetrics;
+    private final Counter mFrames;
+    private final Counter mBytes;
+    private final Counter mChecksumErrors;
+    private final Counter mResyncs;
+    private final Counter mOverflows;
+    private final LatencyHistogram mCallbackProcessing;
+
+    // If set, the UART is read on the shared reader's thread instead of our handler
+    private final HpmUartReader mReader;
+
+    // Optional filter run on every frame
+    private volatile HpmSpikeFilter mSpikeFilter;
+
+    // Rolling statistics, updated with every frame.  Null if disabled.
+    private volatile HpmStatistics mStatistics = new HpmStatistics();
+
+    // Arrival time of the chunk of UART data currently being decoded
+    private long mChunkTimestamp;
+
+    // If set, raw UART data is appended to this capture file
+    private final AtomicReference<HpmCaptureWriter> mCaptureWriter = new AtomicReference<>();
+
+    // Maximum amount of data to read at one time.  Not used with a shared reader,
+    // which has its own buffer.
+    private final byte[] mReadBuffer;
+
+    // Owned by the thread the UART callback is registered on: the shared reader's thread, or
+    // the handler's.  Data is only read, decoded and the decoder reset there, so it isn't
+    // locked.
+    private final HpmFrameDecoder mDecoder = new HpmFrameDecoder(new HpmFrameDecoder.Callback() {
+        @Override
+        public void onDataFrame(byte[] frame) {
+            processDataFrame(frame);
+        }
+
+        @Override
+        public void onCommandResponse(boolean ok) {
+            if (!ok) Log.w(TAG, "Received ERROR command response from sensor.");
+            mCommandQueue.onCommandResponse(ok);
+        }
+
+        @Override
+        public void onChecksumError() {
+            mChecksumErrors.increment();
+            Log.e(TAG, "Checksum error in data frame.  Ignoring.");
+        }
+
+        @Override
+        public void onResync(int count) {
+            mResyncs.increment();
+            Log.w(TAG, "Ignoring " + count + " unexpected bytes from sensor.");
+        }
+    });
+
+    private final Runnable mResetDecoder = new Runnable() {
+        @Override
+        public void run() {
+            mDecoder.reset();
+        }
+    };
 
     private UartDeviceCallback mUartCallback = new UartDeviceCallback() {
         @Override
         public boolean onUartDeviceDataAvailable(UartDevice uart) {
             // Read available data from the UART device
+            if (mReader != null) {
+                mReader.drain(HpmSensor.this);
+                return true;
+            }
             try {
-                readUartBuffer(uart);
+                drainUart(mReadBuffer);
             } catch (IOException e) {
                 Log.w(TAG, "Unable to access UART device", e);
             }
@@ -71,11 +196,51 @@ public class HpmSensor implements AutoCloseable {
     };
 
     public HpmSensor(String uartName, Handler handler) throws IOException {
-        mHandler = handler;
+        this(uartName, handler, null);
+    }
+
+    /**
+     * Create a new HPM sensor connected to the given UART.
+     * @param uartName Name of UART device the sensor is connected to.
+     * @param handler Handler for command timeouts and {@link OnReadingListener} callbacks.
+     * @param reader Shared reader to read and decode the UART on, or null to do it on
+     *               the handler.
+     * @throws IOException Unable to open the UART.
+     */
+    public HpmSensor(String uartName, Handler handler, HpmUartReader reader)
+            throws IOException {
+        this(AndroidThingsPeripherals.getInstance(), uartName, handler, reader);
+    }
+
+    /**
+     * Create a new HPM sensor connected to a UART opened with the given provider, such as
+     * in-memory fakes to run off-device.
+     * @param peripherals Provider to open the UART with.
+     * @see #HpmSensor(String, Handler, HpmUartReader)
+     */
+    public HpmSensor(PeripheralProvider peripherals, String uartName, Handler handler,
+            HpmUartReader reader) throws IOException {
+        mHandler = handler != null ? handler : new Handler(Looper.myLooper());
+        mReader = reader;
+        mReadBuffer = reader == null ? new byte[LENGTH_DATA_FRAME * 2] : null;
+
+        mMetrics = new DriverMetrics(TAG + ":" + uartName);
+        mFrames = mMetrics.counter(DriverMetrics.FRAMES);
+        mBytes = mMetrics.counter(DriverMetrics.BYTES);
+        mChecksumErrors = mMetrics.counter(DriverMetrics.CHECKSUM_ERRORS);
+        mResyncs = mMetrics.counter(DriverMetrics.RESYNCS);
+        mOverflows = mMetrics.counter(DriverMetrics.OVERFLOWS);
+        mCallbackProcessing = mMetrics.histogram(DriverMetrics.CALLBACK_PROCESSING);
+
+        mCommandQueue = new HpmCommandQueue(mHandler, new HpmCommandQueue.Transport() {
+            @Override
+            public int write(byte[] command) throws IOException {
+                return sendCommand(command);
+            }
+        }, mMetrics);
 
         // Open and setup UARTdevice
-        PeripheralManager manager = PeripheralManager.getInstance();
-        mDevice = manager.openUartDevice(uartName);
+        mDevice = peripherals.openUartDevice(uartName);
         mDevice.setBaudrate(9600);
         mDevice.setDataSize(8);
         mDevice.setParity(UartDevice.PARITY_NONE);
@@ -96,134 +261,353 @@ public class HpmSensor implements AutoCloseable {
     @Override
     public void close() throws Exception {
         try {
-            stop();
+            if (Looper.myLooper() == mHandler.getLooper()) {
+                // The command queue runs on this thread, so it can't send anything before
+                // the device is closed.  Write the stop commands directly instead.
+                stopImmediately();
+            } else {
+                // Give the sensor a chance to acknowledge
+                CompletableFuture<Void> stopped = stopAsync();
+                try {
+                    stopped.get(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException|TimeoutException e) {
+                    Log.w(TAG, "Sensor did not acknowledge stop", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         } finally {
-            if (mDevice != null) mDevice.close();
+            mCommandQueue.cancel(new IOException("Sensor closed"));
+            try {
+                stopCapture();
+            } finally {
+                unregisterCallback();
+                if (mDevice != null) {
+                    synchronized (mDeviceLock) {
+                        mDeviceClosed = true;
+                        mDevice.close();
+                    }
+                }
+            }
         }
     }
 
+    /**
+     * Start making measurements.  Does not wait for the sensor to respond.
+     * @throws IOException Unable to listen for data from the UART.
+     * @see #startAsync()
+     */
     public void start() throws IOException {
+        startAsync();
+    }
+
+    /**
+     * Start making measurements, with automatic sending of data frames.
+     * @return Future that completes once the sensor has acknowledged all the commands
+     * needed to start it.
+     * @throws IOException Unable to listen for data from the UART.
+     */
+    public synchronized CompletableFuture<Void> startAsync() throws IOException {
         if (DEBUG) Log.d(TAG, "Start");
-        if (mStarted) return;
+        if (mStarted) return mStartFuture;
 
         // Keep an exception, in case data is requested before it is available;
-        mLastException = new IOException("No data available");
+        synchronized (mReading) {
+            mLastException = new IOException("No data available");
+        }
 
         // Begin listening for interrupt events
-        mDevice.registerUartDeviceCallback(mHandler, mUartCallback);
-
-        // Turn on autosend (to get regular sensor readings)
-        sendCommand(CMD_START_PARTICLE_MEASUREMENT);
-        SystemClock.sleep(20);
-        sendCommand(CMD_ENABLE_AUTO_SEND);
+        registerCallback();
+
+        // Turn on autosend (to get regular sensor readings).  Each command is only sent
+        // once the previous one has been acknowledged, and is retried if it isn't.
+        mStartFuture = CompletableFuture.allOf(
+                mCommandQueue.enqueue(CMD_START_PARTICLE_MEASUREMENT),
+                mCommandQueue.enqueue(CMD_ENABLE_AUTO_SEND));
+        mStartFuture.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                if (error == null) return;
+                Log.e(TAG, "Unable to start sensor", error);
+                synchronized (mReading) {
+                    if (mLastException != null) {
+                        mLastException = new IOException("Unable to start sensor", error);
+                    }
+                }
+            }
+        });
         mStarted = true;
+        return mStartFuture;
     }
 
+    /**
+     * Stop making measurements.  Does not wait for the sensor to respond.
+     * @see #stopAsync()
+     */
     public void stop() throws IOException {
+        stopAsync();
+    }
+
+    /**
+     * Stop making measurements.
+     * @return Future that completes once the sensor has acknowledged all the commands
+     * needed to stop it.
+     * @throws IOException Unable to listen for data from the UART.
+     */
+    public synchronized CompletableFuture<Void> stopAsync() throws IOException {
         if (DEBUG) Log.d(TAG, "Stop");
-        if (mDevice == null) return;
-        // FIXME: If I stop the sensor, it doesn't seem to turn back on.
-        sendCommand(CMD_STOP_PARTICLE_MEASUREMENT);
-        SystemClock.sleep(20);
+        mStarted = false;
+        mStartFuture = null;
+
+        // We need to listen for the responses, even if we never started.
+        registerCallback();
+
+        // Stop the data stream first, so the responses aren't mixed in with data frames.
+        CompletableFuture<Void> stopped = CompletableFuture.allOf(
+                mCommandQueue.enqueue(CMD_STOP_AUTO_SEND),
+                mCommandQueue.enqueue(CMD_STOP_PARTICLE_MEASUREMENT));
+        stopped.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                if (error != null) Log.w(TAG, "Unable to stop sensor", error);
+                synchronized (HpmSensor.this) {
+                    if (!mStarted) unregisterCallback();
+                }
+            }
+        });
+        return stopped;
+    }
+
+    // Write the stop commands without waiting for them to be acknowledged
+    private synchronized void stopImmediately() throws IOException {
+        if (DEBUG) Log.d(TAG, "Stop immediately");
+        mStarted = false;
+        mStartFuture = null;
         sendCommand(CMD_STOP_AUTO_SEND);
+        SystemClock.sleep(COMMAND_GAP_MS);
+        sendCommand(CMD_STOP_PARTICLE_MEASUREMENT);
+    }
+
+    // While the callback stays registered, the decoder is in use (for example, for the ACKs
+    // of the stop commands), and is left alone.
+    private synchronized void registerCallback() throws IOException {
+        if (mCallbackRegistered) return;
+        Handler handler = mReader != null ? mReader.getHandler() : mHandler;
+        // Throw away anything left over from a previous session.  The decoder is only used
+        // on the thread data is decoded on, so it is reset there, before any new data.
+        handler.post(mResetDecoder);
+        if (mReader != null) mReader.register(this);
+        mDevice.registerUartDeviceCallback(handler, mUartCallback);
+        mCallbackRegistered = true;
+    }
+
+    private synchronized void unregisterCallback() {
+        if (!mCallbackRegistered) return;
         mDevice.unregisterUartDeviceCallback(mUartCallback);
-        mStarted = false;
+        if (mReader != null) mReader.unregister(this);
+        mCallbackRegistered = false;
     }
 
-    private void sendCommand(byte[] command) throws IOException {
-        if (DEBUG) Log.d(TAG, "sendCommand");
-        int count = mDevice.write(command, command.length);
+    private int sendCommand(byte[] command) throws IOException {
+        if (DEBUG) Log.d(TAG, "sendCommand: " + bytesToHex(command));
+        return mDevice.write(command, command.length);
     }
 
-    private void readUartBuffer(UartDevice uart) throws IOException {
-        // Maximum amount of data to read at one time
-        byte[] buffer = new byte[LENGTH_DATA_FRAME * 2];
-        int count;
-        while ((count = uart.read(buffer, buffer.length)) > 0) {
-            processBuffer(buffer, count);
-        }
+    /**
+     * Start appending all data received from the sensor to a capture file, which can be
+     * replayed later using {@link HpmCaptureReplay}.
+     * @param file Capture file.  Appended to if it already exists.
+     * @throws IOException Unable to open the capture file.
+     */
+    public void startCapture(File file) throws IOException {
+        HpmCaptureWriter previous = mCaptureWriter.getAndSet(new HpmCaptureWriter(file));
+        if (previous != null) previous.close();
     }
 
     /**
-     * Traverse each buffer received from the UART, looking for
-     * a valid message frame.
+     * Stop capturing data, and close the capture file.
      */
-    private ByteBuffer mMessageBuffer = ByteBuffer.allocate(LENGTH_DATA_FRAME * 16);
-    private static int STATE_IDLE = 0;
-    private static int STATE_READING_DATA_FRAME = 1;
+    public void stopCapture() throws IOException {
+        HpmCaptureWriter writer = mCaptureWriter.getAndSet(null);
+        if (writer != null) writer.close();
+    }
 
-    private int mState = STATE_IDLE;
-    private void processBuffer(byte[] buffer, int count) {
-        for (int i = 0; i < count; i++) {
-            try {
-                mMessageBuffer.put(buffer[i]);
-            } catch (BufferOverflowException e) {
-                // If we overrun our buffer, we have some catch up to do.  Just clear the data
-                // and start again.  Hopefully we'll catch up to a valid frame shortly.
-                mMessageBuffer.clear();
-                return;
-            }
+    /**
+     * Return the driver's metrics: frames, bytes, checksum errors, resyncs, overflows of
+     * readings waiting for the listener, command timeouts, command response latency and
+     * UART callback processing time.
+     */
+    public DriverMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    // Read and decode everything available from the UART
+    void drainUart(byte[] buffer) throws IOException {
+        long start = System.nanoTime();
+        try {
+            readAndDecode(buffer);
+        } finally {
+            mCallbackProcessing.recordSince(start);
         }
-        if (mMessageBuffer.position() < 2)
-            // We can't do anything until we have at least a word
-            return;
-        if (mState == STATE_IDLE) {
-            short word = mMessageBuffer.getShort(0);
-            if (word == RESPONSE_DATA_FRAME) {
-                mState = STATE_READING_DATA_FRAME;
-            } else if (word == RESPONSE_ACK_OK) {
-                mMessageBuffer.clear();
-            } else if (word == RESPONSE_ACK_ERROR) {
-                Log.w(TAG, "Received ERROR command response from sensor.");
-                mMessageBuffer.clear();
-            } else {
-                // Ignore bytes.  Empty buffer.
-                Log.w(TAG, "Ignoring unexpected bytes from sensor.");
-                mMessageBuffer.clear();
+    }
+
+    // Must be called on the thread that owns the decoder
+    private void readAndDecode(byte[] buffer) throws IOException {
+        int count;
+        while ((count = read(buffer)) > 0) {
+            mBytes.add(count);
+            mChunkTimestamp = SystemClock.elapsedRealtimeNanos();
+            HpmCaptureWriter writer = mCaptureWriter.get();
+            if (writer != null) {
+                try {
+                    writer.append(mChunkTimestamp, buffer, 0, count);
+                } catch (IOException e) {
+                    // If the writer was replaced or stopped meanwhile, the append just lost the
+                    // race with its close, and the new capture must be left alone
+                    if (mCaptureWriter.compareAndSet(writer, null)) {
+                        Log.e(TAG, "Unable to write capture file.  Stopping capture.", e);
+                        try {
+                            writer.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
             }
+            mDecoder.feed(buffer, 0, count);
         }
-        if (mState == STATE_READING_DATA_FRAME) {
-            if (mMessageBuffer.position() >= LENGTH_DATA_FRAME) {
-                int extraBytes = mMessageBuffer.position() - LENGTH_DATA_FRAME;
-                byte[] dataframe = new byte[LENGTH_DATA_FRAME];
-                mMessageBuffer.position(0);
-                mMessageBuffer.get(dataframe, 0, dataframe.length);
-                processDataFrame(dataframe);
-                mMessageBuffer.position(LENGTH_DATA_FRAME);
-                mMessageBuffer.compact();
-                mMessageBuffer.position(extraBytes);
-                mState = STATE_IDLE;
-            }
+    }
+
+    // Read from the UART, or nothing once it is closed
+    private int read(byte[] buffer) throws IOException {
+        synchronized (mDeviceLock) {
+            if (mDeviceClosed) return 0;
+            return mDevice.read(buffer, buffer.length);
         }
     }
 
+    // Called by the decoder with each data frame that has a valid checksum
     void processDataFrame(byte[] dataframe) {
         if (DEBUG) Log.d(TAG, "dataframe: " + bytesToHex(dataframe));
+        mFrames.increment();
+        AcquisitionPlanner.Reservation reservation = mReservation;
+        if (reservation != null) reservation.mark();
+
+        HpmSpikeFilter filter = mSpikeFilter;
+        synchronized (mReading) {
+            mReading.set(dataframe, mChunkTimestamp);
+            if (filter != null) filter.filter(mReading);
+            // Clear exception
+            mLastException = null;
+        }
 
-        int checksum = (Byte.toUnsignedInt(dataframe[30]) << 8) + Byte.toUnsignedInt(dataframe[31]);
-        int calculatedChecksum = 0;
-        for (int i = 0; i < 30; i++) {
-            calculatedChecksum += Byte.toUnsignedInt(dataframe[i]);
+        HpmStatistics statistics = mStatistics;
+        if (statistics != null) statistics.add(mReading);
+
+        OnReadingListener listener = mListener;
+        if (listener == null) return;
+        if (mReader == null) {
+            mListenerReading.copyFrom(mReading);
+            listener.onReading(mListenerReading);
+        } else {
+            // Only the latest reading is delivered if the handler falls behind
+            synchronized (mListenerReading) {
+                mListenerReading.copyFrom(mReading);
+                if (mDispatchPending) {
+                    mOverflows.increment();
+                    return;
+                }
+                mDispatchPending = true;
+            }
+            mHandler.post(mDispatchReading);
         }
-        if (checksum != calculatedChecksum) {
-            Log.e(TAG, "Checksum error in data frame.  Ignoring.");
-            return;
+    }
+
+    /**
+     * Set a filter to remove spikes from the readings, or null to remove it.  The filtered
+     * values are available from {@link HpmReading#getFilteredPm25()} and
+     * {@link HpmReading#getFilteredPm10()}, alongside the raw values.
+     */
+    public void setSpikeFilter(HpmSpikeFilter filter) {
+        // The filter's window is only touched on the decoding thread, so start it empty
+        if (filter != null) filter.reset();
+        mSpikeFilter = filter;
+    }
+
+    /**
+     * Return the rolling statistics of the readings received, or null if disabled.  The
+     * statistics are kept up to date as frames arrive, and can be queried from any thread.
+     */
+    public HpmStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * Replace the rolling statistics, for example to use different windows, or set to null
+     * to stop keeping statistics.
+     */
+    public void setStatistics(HpmStatistics statistics) {
+        mStatistics = statistics;
+    }
+
+    /**
+     * Reserve the time the sensor spends sending data frames in the planner's period, so that
+     * acquisitions of other sensors are planned around it.  Frames arrive on the sensor's own
+     * schedule, once every {@link #HPM_MEASUREMENT_INTERVAL}.
+     */
+    public void reserveFrames(AcquisitionPlanner planner) {
+        AcquisitionPlanner.Reservation previous = mReservation;
+        if (previous != null) planner.removeReservation(previous);
+        mReservation = planner.addReservation(HPM_FRAME_TIME_MS,
+                TimeUnit.MICROSECONDS.toMillis(HPM_MEASUREMENT_INTERVAL));
+    }
+
+    /**
+     * Set a listener to be notified of each data frame received, or null to remove it.
+     */
+    public void setOnReadingListener(OnReadingListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Copy the most recent complete data frame into the given reading.
+     * @param reading Reading to fill in.
+     * @return The reading passed in.
+     * @throws IOException No data is available.
+     */
+    public HpmReading readReading(HpmReading reading) throws IOException {
+        synchronized (mReading) {
+            if (mLastException != null) throw mLastException;
+            reading.copyFrom(mReading);
         }
-        // Assign PM2.5 and PM10 values
-        mPm25 = (Byte.toUnsignedInt(dataframe[6]) << 8) + Byte.toUnsignedInt(dataframe[7]);
-        mPm10 = (Byte.toUnsignedInt(dataframe[8]) << 8) + Byte.toUnsignedInt(dataframe[9]);
+        return reading;
+    }
 
-        // Clear exception
-        mLastException = null;
+    /**
+     * Return the most recent complete data frame.  The reading is taken from a pool, and
+     * should be returned with {@link HpmReading#recycle()} when no longer needed.
+     * @throws IOException No data is available.
+     */
+    public HpmReading readReading() throws IOException {
+        HpmReading reading = HpmReading.obtain();
+        try {
+            return readReading(reading);
+        } catch (IOException e) {
+            reading.recycle();
+            throw e;
+        }
     }
 
     public int readPm25() throws IOException {
-        if (mLastException != null) throw mLastException;
-        return mPm25;
-    };
+        synchronized (mReading) {
+            if (mLastException != null) throw mLastException;
+            return mReading.getPm25();
+        }
+    }
 
     public int readPm10() throws IOException {
-        if (mLastException != null) throw mLastException;
-        return mPm10;
-    };
+        synchronized (mReading) {
+            if (mLastException != null) throw mLastException;
+            return mReading.getPm10();
+        }
+    }
 }
@@ -9,6 +9,8 @@ import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
 import com.google.android.things.userdriver.sensor.UserSensorReading;
 
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+
 import java.io.IOException;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -25,11 +27,24 @@ public class HpmSensorDriver implements AutoCloseable {
     // The maximum value seems pretty arbitrary, so we just say every ten seconds,
     private static final int DRIVER_MAX_DELAY_US = (int) TimeUnit.SECONDS.toMicros(10);
 
+    // Duty cycle defaults.  The sensor takes a few seconds to produce stable readings
+    // after the fan starts.
+    public static final long DEFAULT_DUTY_CYCLE_WARMUP_MS = TimeUnit.SECONDS.toMillis(10);
+    public static final long DEFAULT_DUTY_CYCLE_SAMPLE_MS = TimeUnit.SECONDS.toMillis(10);
+    public static final long DEFAULT_DUTY_CYCLE_MIN_OFF_MS = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_DUTY_CYCLE_MAX_OFF_MS = TimeUnit.MINUTES.toMillis(10);
+
     public static final String SENSOR_STRING_TYPE = "net.jpuderer.android.things.driver.hpm";
 
     private HpmSensor mDevice;
     private ParticleCountUserDriver mUserDriver;
 
+    // If set, the sensor is only powered on periodically
+    private HpmDutyCycle mDutyCycle;
+
+    // If set, sensor events carry filtered as well as raw values
+    private volatile boolean mSpikeFilterEnabled;
+
     Handler mHandler;
 
     /**
@@ -56,8 +71,25 @@ public class HpmSensorDriver implements AutoCloseable {
      * @see #registerParticleSensor()
      */
     public HpmSensorDriver(String uartDevice, Handler handler) throws IOException {
+        this(uartDevice, handler, null);
+    }
+
+    /**
+     * Create a new HPM sensor driver connected to the given UART, that is read on a
+     * shared reader's thread along with other HPM sensors.
+     * The driver emits {@link Sensor} with PM2.5 and PM10 particle
+     * could when registered.
+     *
+     * @param uartDevice Name of UART device the sensor is connected to.
+     * @param handler Handler for the driver's callbacks.
+     * @param reader Shared reader for the UART, or null to read it on the handler.
+     * @throws IOException Sensor error
+     * @see #registerParticleSensor()
+     */
+    public HpmSensorDriver(String uartDevice, Handler handler, HpmUartReader reader)
+            throws IOException {
         mHandler = new Handler(handler == null ? Looper.myLooper() : handler.getLooper());
-        mDevice = new HpmSensor(uartDevice, mHandler);
+        mDevice = new HpmSensor(uartDevice, mHandler, reader);
     }
 
     /**
@@ -67,6 +99,9 @@ public class HpmSensorDriver implements AutoCloseable {
     @Override
     public void close() throws IOException {
         unregisterParticleSensor();
+        if (mDutyCycle != null) {
+            mDutyCycle.stop();
+        }
         if (mDevice != null) {
             try {
                 mDevice.stop();
@@ -76,6 +111,101 @@ public class HpmSensorDriver implements AutoCloseable {
         }
     }
 
+    /**
+     * Power the sensor on only periodically while the particle sensor is enabled, using the
+     * default duty cycle parameters.
+     * @see #enableDutyCycle(long, long, long, long)
+     */
+    public void enableDutyCycle() {
+        enableDutyCycle(DEFAULT_DUTY_CYCLE_WARMUP_MS, DEFAULT_DUTY_CYCLE_SAMPLE_MS,
+                DEFAULT_DUTY_CYCLE_MIN_OFF_MS, DEFAULT_DUTY_CYCLE_MAX_OFF_MS);
+    }
+
+    /**
+     * Power the sensor on only periodically while the particle sensor is enabled.  Each
+     * cycle the sensor is started, readings are ignored for the warm-up time and collected
+     * for the sampling window, and then the sensor is stopped.  The time it stays off is
+     * between the minimum and maximum, depending on how much the readings are changing.
+     * Between windows the last reading from the sampling window is reported.
+     *
+     * Must be called before {@link #registerParticleSensor()}, since the maximum delay
+     * of the registered sensor depends on the duty cycle.
+     *
+     * @param warmupMs Time to wait for the readings to stabilize after starting the sensor.
+     * @param sampleMs Length of the sampling window.
+     * @param minOffMs Shortest time the sensor is left off, while the readings are changing.
+     * @param maxOffMs Longest time the sensor is left off, while the readings are stable.
+     */
+    public void enableDutyCycle(long warmupMs, long sampleMs, long minOffMs, long maxOffMs) {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot configure closed driver");
+        }
+        if (mUserDriver != null) {
+            throw new IllegalStateException("cannot change duty cycle of registered sensor");
+        }
+        mDutyCycle = new HpmDutyCycle(mDevice, mHandler, warmupMs, sampleMs, minOffMs, maxOffMs);
+        mDevice.setOnReadingListener(mDutyCycle);
+    }
+
+    /**
+     * Keep the sensor running continuously while the particle sensor is enabled (the default).
+     * Must be called before {@link #registerParticleSensor()}.
+     */
+    public void disableDutyCycle() {
+        if (mUserDriver != null) {
+            throw new IllegalStateException("cannot change duty cycle of registered sensor");
+        }
+        if (mDutyCycle != null) {
+            mDevice.setOnReadingListener(null);
+            mDutyCycle = null;
+        }
+    }
+
+    /**
+     * Remove single frame spikes from the reported particle counts, using a Hampel filter
+     * with the default window.  While the filter is enabled, sensor events have four values:
+     * filtered PM2.5 and PM10, followed by the raw PM2.5 and PM10 sent by the sensor.
+     * @see #setSpikeFilter(HpmSpikeFilter)
+     */
+    public void enableSpikeFilter() {
+        setSpikeFilter(new HpmSpikeFilter());
+    }
+
+    /**
+     * Set the filter used to remove spikes from the reported particle counts, or null to
+     * report the raw values only.
+     * @see #enableSpikeFilter()
+     */
+    public void setSpikeFilter(HpmSpikeFilter filter) {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot configure closed driver");
+        }
+        mDevice.setSpikeFilter(filter);
+        mSpikeFilterEnabled = filter != null;
+    }
+
+    /**
+     * Return the rolling statistics of the particle counts (moving average, and mean,
+     * minimum, maximum and percentiles over the last minute, 15 minutes, hour and day).
+     * @see HpmSensor#getStatistics()
+     */
+    public HpmStatistics getStatistics() {
+        if (mDevice == null) {
+            throw new IllegalStateException("driver is closed");
+        }
+        return mDevice.getStatistics();
+    }
+
+    /**
+     * @see HpmSensor#getMetrics()
+     */
+    public DriverMetrics getMetrics() {
+        if (mDevice == null) {
+            throw new IllegalStateException("driver is closed");
+        }
+        return mDevice.getMetrics();
+    }
+
     /**
      * Register a {@link UserSensor} that pipes particle count readings into the
      * Android SensorManager.
@@ -104,9 +234,17 @@ public class HpmSensorDriver implements AutoCloseable {
 
     private void maybeStop() throws IOException {
         if (mUserDriver == null || !mUserDriver.isEnabled()) {
-            mDevice.stop();
+            if (mDutyCycle != null) {
+                mDutyCycle.stop();
+            } else {
+                mDevice.stop();
+            }
         } else {
-            mDevice.start();
+            if (mDutyCycle != null) {
+                mDutyCycle.start();
+            } else {
+                mDevice.start();
+            }
         }
     }
 
@@ -116,8 +254,17 @@ public class HpmSensorDriver implements AutoCloseable {
         private boolean mEnabled;
         private UserSensor mUserSensor;
 
+        // Reused for every read, so PM2.5 and PM10 always come from the same frame
+        private final HpmReading mReading = new HpmReading();
+
         private UserSensor getUserSensor() {
             if (mUserSensor == null) {
+                // When duty cycling, new data only arrives once per cycle
+                int maxDelayUs = DRIVER_MAX_DELAY_US;
+                if (mDutyCycle != null) {
+                    maxDelayUs = (int) Math.max(maxDelayUs,
+                            TimeUnit.MILLISECONDS.toMicros(mDutyCycle.getMaxPeriodMs()));
+                }
                 mUserSensor = new UserSensor.Builder()
                         .setCustomType(Sensor.TYPE_DEVICE_PRIVATE_BASE,
                                 SENSOR_STRING_TYPE,
@@ -129,7 +276,7 @@ public class HpmSensorDriver implements AutoCloseable {
                         .setResolution(HpmSensor.HPM_PARTICLE_RESOLUTION)
                         .setPower(HpmSensor.HPM_POWER_CONSUMPTION_UA)
                         .setMinDelay(DRIVER_MIN_DELAY_US)
-                        .setMaxDelay(DRIVER_MAX_DELAY_US)
+                        .setMaxDelay(maxDelayUs)
                         .setUuid(UUID.randomUUID())
                         .setDriver(this)
                         .build();
@@ -139,7 +286,17 @@ public class HpmSensorDriver implements AutoCloseable {
 
         @Override
         public UserSensorReading read() throws IOException {
-            return new UserSensorReading(new float[]{mDevice.readPm25(), mDevice.readPm10()});
+            if (mDutyCycle != null) {
+                mDutyCycle.readReading(mReading);
+            } else {
+                mDevice.readReading(mReading);
+            }
+            if (mSpikeFilterEnabled) {
+                return new UserSensorReading(new float[]{
+                        mReading.getFilteredPm25(), mReading.getFilteredPm10(),
+                        mReading.getPm25(), mReading.getPm10()});
+            }
+            return new UserSensorReading(new float[]{mReading.getPm25(), mReading.getPm10()});
         }
 
         @Override
@@ -0,0 +1,146 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+/**
+ * Removes single frame spikes (insects, bursts of dust) from HPM readings.
+ *
+ * Keeps the last few PM2.5 and PM10 values of each channel in a ring, along with a sorted
+ * copy, both fixed size primitive arrays.  In {@link #MODE_MEDIAN} the filtered value is the
+ * median of the window.  In {@link #MODE_HAMPEL} the raw value is kept unless it is further
+ * from the median than the threshold times the (scaled) median absolute deviation of the
+ * window, in which case it is replaced with the median.  The cost per reading depends only on
+ * the window size, and nothing is allocated.
+ *
+ * Not thread safe.  The filter is run on the thread decoding the sensor's frames.
+ */
+public class HpmSpikeFilter {
+    public static final int MODE_MEDIAN = 0;
+    public static final int MODE_HAMPEL = 1;
+
+    public static final int DEFAULT_WINDOW_SIZE = 5;
+    public static final float DEFAULT_THRESHOLD = 3f;
+
+    // Scales the median absolute deviation to a standard deviation, for normal data
+    private static final float MAD_SCALE = 1.4826f;
+
+    private final int mMode;
+    private final float mThreshold;
+    private final Channel mPm25;
+    private final Channel mPm10;
+
+    private static class Channel {
+        final int[] ring;
+        final int[] sorted;
+        int head;
+        int count;
+
+        Channel(int windowSize) {
+            ring = new int[windowSize];
+            sorted = new int[windowSize];
+        }
+
+        void add(int value) {
+            if (count == ring.length) {
+                remove(ring[head]);
+            } else {
+                count++;
+            }
+            ring[head] = value;
+            head = (head + 1) % ring.length;
+            insert(value);
+        }
+
+        // Remove a value from the sorted window (count is unchanged by the caller)
+        private void remove(int value) {
+            int i = 0;
+            while (sorted[i] != value) i++;
+            System.arraycopy(sorted, i + 1, sorted, i, count - i - 1);
+        }
+
+        // Insert a value into the sorted window, which has count - 1 values in it
+        private void insert(int value) {
+            int i = count - 1;
+            while (i > 0 && sorted[i - 1] > value) {
+                sorted[i] = sorted[i - 1];
+                i--;
+            }
+            sorted[i] = value;
+        }
+
+        int median() {
+            return sorted[count / 2];
+        }
+
+        // Median absolute deviation from the median.  The deviations on either side of the
+        // median are already in order, so merge outwards until we reach the middle one.
+        int medianAbsoluteDeviation() {
+            int mid = count / 2;
+            int median = sorted[mid];
+            int lower = mid - 1;
+            int upper = mid + 1;
+            int deviation = 0;
+            for (int k = 0; k < count / 2; k++) {
+                int lowerDeviation = lower >= 0 ? median - sorted[lower] : Integer.MAX_VALUE;
+                int upperDeviation = upper < count ? sorted[upper] - median : Integer.MAX_VALUE;
+                if (lowerDeviation <= upperDeviation) {
+                    deviation = lowerDeviation;
+                    lower--;
+                } else {
+                    deviation = upperDeviation;
+                    upper++;
+                }
+            }
+            return deviation;
+        }
+    }
+
+    /**
+     * Create a Hampel filter with the default window size and threshold.
+     */
+    public HpmSpikeFilter() {
+        this(MODE_HAMPEL, DEFAULT_WINDOW_SIZE, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param mode {@link #MODE_MEDIAN} or {@link #MODE_HAMPEL}.
+     * @param windowSize Number of readings in the window.  Must be odd, and at least 3.
+     * @param threshold Number of (scaled) median absolute deviations from the median a
+     *                  reading can be before it's replaced.  Only used by the Hampel filter.
+     */
+    public HpmSpikeFilter(int mode, int windowSize, float threshold) {
+        if (mode != MODE_MEDIAN && mode != MODE_HAMPEL) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        if (windowSize < 3 || windowSize % 2 == 0) {
+            throw new IllegalArgumentException("Window size must be odd, and at least 3");
+        }
+        mMode = mode;
+        mThreshold = threshold;
+        mPm25 = new Channel(windowSize);
+        mPm10 = new Channel(windowSize);
+    }
+
+    /**
+     * Forget the readings in the window.
+     */
+    public void reset() {
+        mPm25.count = mPm25.head = 0;
+        mPm10.count = mPm10.head = 0;
+    }
+
+    /**
+     * Add a reading to the window, and set its filtered values.
+     */
+    public void filter(HpmReading reading) {
+        reading.setFiltered(filter(mPm25, reading.getPm25()), filter(mPm10, reading.getPm10()));
+    }
+
+    private int filter(Channel channel, int value) {
+        channel.add(value);
+        int median = channel.median();
+        if (mMode == MODE_MEDIAN) return median;
+
+        // Don't treat a change of a single ug/m3 as a spike when the window is flat
+        float limit = mThreshold * Math.max(1f, MAD_SCALE * channel.medianAbsoluteDeviation());
+        return Math.abs(value - median) > limit ? median : value;
+    }
+}
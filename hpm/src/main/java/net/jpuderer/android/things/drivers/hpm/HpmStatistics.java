@@ -0,0 +1,291 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming statistics for the PM2.5 and PM10 readings of an HPM sensor.
+ *
+ * Maintains an exponentially weighted moving average of each channel, and the count, mean,
+ * minimum, maximum and approximate percentiles over a number of sliding windows.  Each window
+ * is split into {@link #BUCKETS} buckets, each holding a summary and a histogram of the
+ * readings that fell into it, so adding a reading is constant time and memory use doesn't
+ * depend on the length of the windows.  Windows slide one bucket at a time, and cover the
+ * readings up to the most recent one added.
+ *
+ * Everything is stored in primitive arrays, and queries work directly on them.  Methods are
+ * synchronized, so statistics can be queried from any thread while readings are added.
+ */
+public class HpmStatistics {
+    public static final int CHANNEL_PM25 = 0;
+    public static final int CHANNEL_PM10 = 1;
+    private static final int CHANNELS = 2;
+
+    // Number of buckets each window is divided into
+    public static final int BUCKETS = 60;
+
+    public static final long[] DEFAULT_WINDOWS_MS = {
+            TimeUnit.MINUTES.toMillis(1),
+            TimeUnit.MINUTES.toMillis(15),
+            TimeUnit.HOURS.toMillis(1),
+            TimeUnit.HOURS.toMillis(24),
+    };
+
+    public static final long DEFAULT_EWMA_TIME_CONSTANT_MS = TimeUnit.MINUTES.toMillis(1);
+
+    // Histogram bins.  One bin per ug/m3 for small values, then growing by 20% per bin
+    // up to the maximum reading, which gives percentiles within about 10%.
+    private static final int[] BIN_LOWER_BOUND;
+    private static final byte[] BIN_FOR_VALUE = new byte[(int) HpmSensor.HPM_PARTICLE_MAX + 1];
+    private static final int BINS;
+
+    static {
+        int[] bounds = new int[64];
+        int count = 0;
+        for (int bound = 0; bound <= HpmSensor.HPM_PARTICLE_MAX;
+                bound = Math.max(bound + 1, (int) Math.ceil(bound * 1.2))) {
+            bounds[count++] = bound;
+        }
+        BINS = count;
+        BIN_LOWER_BOUND = Arrays.copyOf(bounds, count);
+        int bin = 0;
+        for (int value = 0; value < BIN_FOR_VALUE.length; value++) {
+            if (bin + 1 < BINS && value >= BIN_LOWER_BOUND[bin + 1]) bin++;
+            BIN_FOR_VALUE[value] = (byte) bin;
+        }
+    }
+
+    private final long[] mWindowsMs;
+    private final long mEwmaTimeConstantMs;
+
+    private final double[] mEwma = new double[CHANNELS];
+    private boolean mHasEwma;
+    private long mLastTimestampMs;
+
+    // Per window: bucket duration, and the bucket number (time / duration) of the newest bucket
+    private final long[] mBucketMs;
+    private final long[] mNewestBucket;
+
+    // Per window and bucket (index window * BUCKETS + bucket)
+    private final int[] mBucketCount;
+
+    // Per window, channel and bucket (index (window * CHANNELS + channel) * BUCKETS + bucket)
+    private final long[] mBucketSum;
+    private final int[] mBucketMin;
+    private final int[] mBucketMax;
+
+    // Per window, channel, bucket and bin, plus the sum over all buckets of each window and
+    // channel (index (window * CHANNELS + channel) * BINS + bin).
+    private final int[] mBucketHistogram;
+    private final int[] mWindowHistogram;
+
+    public HpmStatistics() {
+        this(DEFAULT_WINDOWS_MS, DEFAULT_EWMA_TIME_CONSTANT_MS);
+    }
+
+    /**
+     * @param windowsMs Lengths of the windows to keep statistics for.
+     * @param ewmaTimeConstantMs Time constant of the moving average.  A reading contributes
+     *                           1/e of its initial weight after this much time.
+     */
+    public HpmStatistics(long[] windowsMs, long ewmaTimeConstantMs) {
+        if (ewmaTimeConstantMs <= 0) {
+            throw new IllegalArgumentException("Time constant must be positive");
+        }
+        mWindowsMs = windowsMs.clone();
+        mEwmaTimeConstantMs = ewmaTimeConstantMs;
+
+        int windows = mWindowsMs.length;
+        mBucketMs = new long[windows];
+        mNewestBucket = new long[windows];
+        for (int w = 0; w < windows; w++) {
+            if (mWindowsMs[w] < BUCKETS) {
+                throw new IllegalArgumentException("Window too short: " + mWindowsMs[w]);
+            }
+            mBucketMs[w] = mWindowsMs[w] / BUCKETS;
+        }
+        mBucketCount = new int[windows * BUCKETS];
+        mBucketSum = new long[windows * CHANNELS * BUCKETS];
+        mBucketMin = new int[windows * CHANNELS * BUCKETS];
+        mBucketMax = new int[windows * CHANNELS * BUCKETS];
+        mBucketHistogram = new int[windows * CHANNELS * BUCKETS * BINS];
+        mWindowHistogram = new int[windows * CHANNELS * BINS];
+    }
+
+    public int getWindowCount() {
+        return mWindowsMs.length;
+    }
+
+    public long getWindowMs(int window) {
+        return mWindowsMs[window];
+    }
+
+    /**
+     * Forget all readings.
+     */
+    public synchronized void reset() {
+        mHasEwma = false;
+        Arrays.fill(mBucketCount, 0);
+        Arrays.fill(mBucketSum, 0);
+        Arrays.fill(mBucketHistogram, 0);
+        Arrays.fill(mWindowHistogram, 0);
+    }
+
+    public void add(HpmReading reading) {
+        add(reading.getTimestamp(), reading.getPm25(), reading.getPm10());
+    }
+
+    /**
+     * Add a reading.  Readings should be added in time order.  One that arrives late is
+     * counted in the newest bucket, and doesn't move the windows or the average back in time.
+     * @param timestampNanos Time of the reading, in nanoseconds.
+     */
+    public synchronized void add(long timestampNanos, int pm25, int pm10) {
+        long timestampMs = TimeUnit.NANOSECONDS.toMillis(timestampNanos);
+
+        if (!mHasEwma) {
+            mEwma[CHANNEL_PM25] = pm25;
+            mEwma[CHANNEL_PM10] = pm10;
+            mHasEwma = true;
+            mLastTimestampMs = timestampMs;
+            for (int w = 0; w < mWindowsMs.length; w++) {
+                mNewestBucket[w] = timestampMs / mBucketMs[w];
+            }
+        } else {
+            long elapsedMs = Math.max(0, timestampMs - mLastTimestampMs);
+            double alpha = 1 - Math.exp(-(double) elapsedMs / mEwmaTimeConstantMs);
+            mEwma[CHANNEL_PM25] += alpha * (pm25 - mEwma[CHANNEL_PM25]);
+            mEwma[CHANNEL_PM10] += alpha * (pm10 - mEwma[CHANNEL_PM10]);
+            mLastTimestampMs = Math.max(mLastTimestampMs, timestampMs);
+        }
+
+        for (int w = 0; w < mWindowsMs.length; w++) {
+            long bucket = timestampMs / mBucketMs[w];
+            // Expire the buckets we've moved past.  At most BUCKETS of them, however long
+            // it has been since the last reading.
+            long expired = Math.min(bucket - mNewestBucket[w], BUCKETS);
+            for (long b = bucket - expired + 1; b <= bucket; b++) {
+                clearBucket(w, (int) (b % BUCKETS));
+            }
+            if (bucket > mNewestBucket[w]) mNewestBucket[w] = bucket;
+
+            int slot = (int) (mNewestBucket[w] % BUCKETS);
+            boolean first = mBucketCount[w * BUCKETS + slot]++ == 0;
+            addToBucket(w, CHANNEL_PM25, slot, pm25, first);
+            addToBucket(w, CHANNEL_PM10, slot, pm10, first);
+        }
+    }
+
+    private void addToBucket(int window, int channel, int slot, int value, boolean first) {
+        int index = (window * CHANNELS + channel) * BUCKETS + slot;
+        mBucketSum[index] += value;
+        if (first || value < mBucketMin[index]) mBucketMin[index] = value;
+        if (first || value > mBucketMax[index]) mBucketMax[index] = value;
+
+        int bin = BIN_FOR_VALUE[Math.max(0, Math.min(value, BIN_FOR_VALUE.length - 1))];
+        mBucketHistogram[index * BINS + bin]++;
+        mWindowHistogram[(window * CHANNELS + channel) * BINS + bin]++;
+    }
+
+    private void clearBucket(int window, int slot) {
+        if (mBucketCount[window * BUCKETS + slot] == 0) return;
+        mBucketCount[window * BUCKETS + slot] = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            int index = (window * CHANNELS + channel) * BUCKETS + slot;
+            mBucketSum[index] = 0;
+            int windowBins = (window * CHANNELS + channel) * BINS;
+            for (int bin = 0; bin < BINS; bin++) {
+                mWindowHistogram[windowBins + bin] -= mBucketHistogram[index * BINS + bin];
+                mBucketHistogram[index * BINS + bin] = 0;
+            }
+        }
+    }
+
+    /**
+     * Exponentially weighted moving average of the channel, or NaN if there are no readings.
+     */
+    public synchronized float getEwma(int channel) {
+        return mHasEwma ? (float) mEwma[channel] : Float.NaN;
+    }
+
+    /**
+     * Number of readings in the window.
+     */
+    public synchronized int getCount(int window) {
+        int count = 0;
+        for (int slot = 0; slot < BUCKETS; slot++) {
+            count += mBucketCount[window * BUCKETS + slot];
+        }
+        return count;
+    }
+
+    /**
+     * Mean of the channel over the window, or NaN if there are no readings.
+     */
+    public synchronized float getMean(int channel, int window) {
+        int count = getCount(window);
+        if (count == 0) return Float.NaN;
+        long sum = 0;
+        int base = (window * CHANNELS + channel) * BUCKETS;
+        for (int slot = 0; slot < BUCKETS; slot++) {
+            sum += mBucketSum[base + slot];
+        }
+        return (float) sum / count;
+    }
+
+    /**
+     * Minimum of the channel over the window, or NaN if there are no readings.
+     */
+    public synchronized float getMin(int channel, int window) {
+        float min = Float.NaN;
+        int base = (window * CHANNELS + channel) * BUCKETS;
+        for (int slot = 0; slot < BUCKETS; slot++) {
+            if (mBucketCount[window * BUCKETS + slot] == 0) continue;
+            if (!(min <= mBucketMin[base + slot])) min = mBucketMin[base + slot];
+        }
+        return min;
+    }
+
+    /**
+     * Maximum of the channel over the window, or NaN if there are no readings.
+     */
+    public synchronized float getMax(int channel, int window) {
+        float max = Float.NaN;
+        int base = (window * CHANNELS + channel) * BUCKETS;
+        for (int slot = 0; slot < BUCKETS; slot++) {
+            if (mBucketCount[window * BUCKETS + slot] == 0) continue;
+            if (!(max >= mBucketMax[base + slot])) max = mBucketMax[base + slot];
+        }
+        return max;
+    }
+
+    /**
+     * Approximate percentile of the channel over the window, or NaN if there are no readings.
+     * @param percentile Percentile between 0 and 100.
+     */
+    public synchronized float getPercentile(int channel, int window, float percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        int count = getCount(window);
+        if (count == 0) return Float.NaN;
+
+        // Find the bin containing the requested rank, and interpolate within it
+        float rank = percentile / 100 * count;
+        int base = (window * CHANNELS + channel) * BINS;
+        int below = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            int inBin = mWindowHistogram[base + bin];
+            if (inBin > 0 && below + inBin >= rank) {
+                int lower = BIN_LOWER_BOUND[bin];
+                // The last bin holds everything up to the maximum reading
+                int upper = bin + 1 < BINS ? BIN_LOWER_BOUND[bin + 1] - 1
+                        : BIN_FOR_VALUE.length - 1;
+                float value = lower + (upper - lower) * ((rank - below) / inBin);
+                return Math.max(getMin(channel, window), Math.min(value, getMax(channel, window)));
+            }
+            below += inBin;
+        }
+        return getMax(channel, window);
+    }
+}
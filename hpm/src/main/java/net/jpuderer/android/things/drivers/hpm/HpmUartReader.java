@@ -0,0 +1,84 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads and decodes the UARTs of any number of HPM sensors on a single I/O thread.
+ *
+ * When a UART has data available, only that UART is drained into its sensor's decoder,
+ * through one read buffer shared by all sensors.  Each burst of data costs one wakeup and
+ * the reads of the UART it arrived on, however many sensors there are.  What the reader
+ * saves is a thread and a read buffer per sensor, and it keeps decoding off the sensors'
+ * handlers, which only receive the readings.
+ *
+ * Pass the reader to {@link HpmSensor} or {@link HpmSensorDriver} when creating them, and
+ * close it once all of its sensors have been closed.
+ */
+public class HpmUartReader implements AutoCloseable {
+    private static final String TAG = HpmUartReader.class.getSimpleName();
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Copied on write, so that it can be iterated without locking or allocating
+    private volatile HpmSensor[] mSensors = new HpmSensor[0];
+
+    // Shared by all sensors, since they are all read on our thread
+    private final byte[] mReadBuffer = new byte[HpmFrameDecoder.LENGTH_DATA_FRAME * 2];
+
+    public HpmUartReader() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Stop the I/O thread.
+     */
+    @Override
+    public void close() {
+        mThread.quitSafely();
+    }
+
+    // Handler that UART callbacks are registered with
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    synchronized void register(HpmSensor sensor) {
+        for (HpmSensor s : mSensors) {
+            if (s == sensor) return;
+        }
+        HpmSensor[] sensors = Arrays.copyOf(mSensors, mSensors.length + 1);
+        sensors[sensors.length - 1] = sensor;
+        mSensors = sensors;
+    }
+
+    synchronized void unregister(HpmSensor sensor) {
+        HpmSensor[] sensors = new HpmSensor[mSensors.length];
+        int count = 0;
+        for (HpmSensor s : mSensors) {
+            if (s != sensor) sensors[count++] = s;
+        }
+        mSensors = Arrays.copyOf(sensors, count);
+    }
+
+    // Called on our thread when the sensor's UART has data available.  A callback that was
+    // queued before the sensor unregistered is ignored.
+    void drain(HpmSensor sensor) {
+        for (HpmSensor s : mSensors) {
+            if (s != sensor) continue;
+            try {
+                sensor.drainUart(mReadBuffer);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to access UART device", e);
+            }
+            return;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+import net.jpuderer.android.things.drivers.common.FakePeripherals;
+import net.jpuderer.android.things.drivers.common.FakeUartDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Retries of the commands sent by {@link HpmSensor}, with the responses of the sensor played
+ * by a {@link FakeUartDevice}.
+ */
+public class HpmCommandQueueTest {
+    private static final String UART_NAME = "UART0";
+    // Long enough for every attempt of both start commands to time out
+    private static final long TIMEOUT_MS = 2 * HpmCommandQueue.COMMAND_ATTEMPTS
+            * HpmCommandQueue.COMMAND_TIMEOUT_MS + 2000;
+
+    private static final byte[] ACK = { (byte) 0xA5, (byte) 0xA5 };
+    private static final byte[] NACK = { (byte) 0x96, (byte) 0x96 };
+    private static final byte[] NO_RESPONSE = {};
+
+    private static final byte[] START_PARTICLE_MEASUREMENT = { 0x68, 0x01, 0x01, (byte) 0x96 };
+    private static final byte[] ENABLE_AUTO_SEND = { 0x68, 0x01, 0x40, 0x57 };
+
+    private HandlerThread mThread;
+    private FakeUartDevice mUart;
+    private HpmSensor mSensor;
+
+    // Responses to the next commands, and to every command after them.  Guarded by this.
+    private final ArrayDeque<byte[]> mResponses = new ArrayDeque<>();
+    private byte[] mDefaultResponse = ACK;
+    // Every command written, in order
+    private final ArrayList<byte[]> mCommands = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mThread = new HandlerThread("HpmCommandQueueTest");
+        mThread.start();
+
+        FakePeripherals peripherals = new FakePeripherals();
+        mUart = peripherals.getUartDevice(UART_NAME);
+        mUart.setOnWriteListener(new FakeUartDevice.OnWriteListener() {
+            @Override
+            public void onWrite(FakeUartDevice uart, byte[] data) {
+                byte[] response;
+                synchronized (HpmCommandQueueTest.this) {
+                    mCommands.add(data);
+                    response = mResponses.isEmpty() ? mDefaultResponse : mResponses.poll();
+                }
+                if (response.length > 0) uart.receive(response);
+            }
+        });
+        mSensor = new HpmSensor(peripherals, UART_NAME, new Handler(mThread.getLooper()), null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Let the stop commands through
+        respond(ACK);
+        if (mSensor != null) mSensor.close();
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void retriesAfterMissingAck() throws Exception {
+        respond(NO_RESPONSE, ACK);
+        mSensor.startAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertCommands(START_PARTICLE_MEASUREMENT, START_PARTICLE_MEASUREMENT,
+                ENABLE_AUTO_SEND);
+        assertEquals(1, mSensor.getMetrics().counter(DriverMetrics.TIMEOUTS).get());
+    }
+
+    @Test
+    public void retriesAfterNack() throws Exception {
+        respond(NACK, ACK);
+        mSensor.startAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertCommands(START_PARTICLE_MEASUREMENT, START_PARTICLE_MEASUREMENT,
+                ENABLE_AUTO_SEND);
+        assertEquals(0, mSensor.getMetrics().counter(DriverMetrics.TIMEOUTS).get());
+    }
+
+    @Test
+    public void failsAfterRepeatedNacks() throws Exception {
+        respond(NACK);
+        IOException e = startAndFail();
+        assertTrue(e.getMessage(), e.getMessage().contains("rejected"));
+        assertEquals(2 * HpmCommandQueue.COMMAND_ATTEMPTS, commandCount());
+    }
+
+    @Test
+    public void failsWithoutAck() throws Exception {
+        respond(NO_RESPONSE);
+        IOException e = startAndFail();
+        assertTrue(e.getMessage(), e.getMessage().contains("Timeout"));
+
+        // Each command was sent every time it timed out, and then given up on
+        assertEquals(2 * HpmCommandQueue.COMMAND_ATTEMPTS, commandCount());
+        assertEquals(2 * HpmCommandQueue.COMMAND_ATTEMPTS,
+                mSensor.getMetrics().counter(DriverMetrics.TIMEOUTS).get());
+    }
+
+    // Respond to every command with the last response, after the others
+    private synchronized void respond(byte[]... responses) {
+        mResponses.clear();
+        mResponses.addAll(Arrays.asList(responses).subList(0, responses.length - 1));
+        mDefaultResponse = responses[responses.length - 1];
+    }
+
+    private synchronized int commandCount() {
+        return mCommands.size();
+    }
+
+    private synchronized void assertCommands(byte[]... expected) {
+        assertEquals(expected.length, mCommands.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], mCommands.get(i));
+        }
+    }
+
+    private IOException startAndFail() throws Exception {
+        try {
+            mSensor.startAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            return (IOException) e.getCause();
+        }
+        fail("Expected the start commands to fail");
+        return null;
+    }
+}
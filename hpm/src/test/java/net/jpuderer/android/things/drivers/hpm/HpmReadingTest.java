@@ -0,0 +1,44 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+public class HpmReadingTest {
+    @Test
+    public void rejectsDoubleRecycle() {
+        HpmReading reading = HpmReading.obtain();
+        reading.recycle();
+        try {
+            reading.recycle();
+            fail("Expected a second recycle to throw");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void canBeRecycledAgainOnceObtained() {
+        HpmReading reading = HpmReading.obtain();
+        reading.recycle();
+        // Taken from the pool again, whether or not it is the same object
+        HpmReading again = HpmReading.obtain();
+        again.recycle();
+    }
+
+    @Test
+    public void rejectsDoubleRecycleWhenPoolIsFull() {
+        HpmReading[] readings = new HpmReading[20];
+        for (int i = 0; i < readings.length; i++) {
+            readings[i] = HpmReading.obtain();
+        }
+        for (HpmReading reading : readings) {
+            reading.recycle();
+        }
+        // The pool was full by the time the last one was recycled, so it was dropped
+        try {
+            readings[readings.length - 1].recycle();
+            fail("Expected a second recycle to throw");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
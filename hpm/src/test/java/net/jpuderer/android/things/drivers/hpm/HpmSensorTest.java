@@ -0,0 +1,199 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.google.android.things.pio.UartDevice;
+
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+import net.jpuderer.android.things.drivers.common.FakePeripherals;
+import net.jpuderer.android.things.drivers.common.FakeUartDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HpmSensorTest {
+    private static final String UART_NAME = "UART0";
+    private static final long TIMEOUT_MS = 2000;
+
+    private static final byte[] ACK = { (byte) 0xA5, (byte) 0xA5 };
+    // Start particle measurement, then enable auto send
+    private static final byte[] START_COMMANDS = {
+            0x68, 0x01, 0x01, (byte) 0x96, 0x68, 0x01, 0x40, 0x57
+    };
+    // Stop auto send, then stop particle measurement
+    private static final byte[] STOP_COMMANDS = {
+            0x68, 0x01, 0x20, 0x77, 0x68, 0x01, 0x02, (byte) 0x95
+    };
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private FakeUartDevice mUart;
+    private HpmSensor mSensor;
+
+    @Before
+    public void setUp() throws IOException {
+        mThread = new HandlerThread("HpmSensorTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        FakePeripherals peripherals = new FakePeripherals();
+        mUart = peripherals.getUartDevice(UART_NAME);
+        // Acknowledge every command, like the sensor does
+        mUart.setOnWriteListener(new FakeUartDevice.OnWriteListener() {
+            @Override
+            public void onWrite(FakeUartDevice uart, byte[] data) {
+                uart.receive(ACK);
+            }
+        });
+        mSensor = new HpmSensor(peripherals, UART_NAME, mHandler, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mSensor != null) mSensor.close();
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void configuresUart() {
+        assertEquals(9600, mUart.getBaudrate());
+        assertEquals(8, mUart.getDataSize());
+        assertEquals(UartDevice.PARITY_NONE, mUart.getParity());
+        assertEquals(1, mUart.getStopBits());
+    }
+
+    @Test
+    public void startSendsCommandsAndReadsFrames() throws Exception {
+        mSensor.startAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(START_COMMANDS, mUart.takeWritten());
+        try {
+            mSensor.readPm25();
+            fail("Expected no data before the first frame");
+        } catch (IOException expected) {
+        }
+
+        receiveAndWait(frame(12, 34));
+        assertEquals(12, mSensor.readPm25());
+        assertEquals(34, mSensor.readPm10());
+        assertEquals(1, mSensor.getMetrics().counter(DriverMetrics.FRAMES).get());
+    }
+
+    @Test
+    public void skipsCorruptFrames() throws Exception {
+        mSensor.startAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        byte[] corrupt = frame(99, 99);
+        corrupt[corrupt.length - 1]++;
+        mUart.receive(corrupt);
+
+        receiveAndWait(frame(5, 6));
+        assertEquals(5, mSensor.readPm25());
+        assertEquals(6, mSensor.readPm10());
+        DriverMetrics metrics = mSensor.getMetrics();
+        assertEquals(1, metrics.counter(DriverMetrics.CHECKSUM_ERRORS).get());
+        assertEquals(1, metrics.counter(DriverMetrics.FRAMES).get());
+    }
+
+    @Test
+    public void restartWaitsForStopAcks() throws Exception {
+        mSensor.startAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mUart.takeWritten();
+
+        // Started again while the stop commands are still being acknowledged
+        CompletableFuture<Void> stopped = mSensor.stopAsync();
+        CompletableFuture<Void> started = mSensor.startAsync();
+        stopped.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        started.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        byte[] written = mUart.takeWritten();
+        byte[] expected = new byte[STOP_COMMANDS.length + START_COMMANDS.length];
+        System.arraycopy(STOP_COMMANDS, 0, expected, 0, STOP_COMMANDS.length);
+        System.arraycopy(START_COMMANDS, 0, expected, STOP_COMMANDS.length,
+                START_COMMANDS.length);
+        assertArrayEquals(expected, written);
+        assertEquals(0, mSensor.getMetrics().counter(DriverMetrics.TIMEOUTS).get());
+    }
+
+    @Test
+    public void closeSendsStopCommands() throws Exception {
+        mSensor.startAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mUart.takeWritten();
+
+        mSensor.close();
+        mSensor = null;
+        assertArrayEquals(STOP_COMMANDS, mUart.takeWritten());
+        assertTrue(mUart.isClosed());
+    }
+
+    @Test
+    public void closeOnHandlerThreadSendsStopCommands() throws Exception {
+        mSensor.startAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mUart.takeWritten();
+
+        final HpmSensor sensor = mSensor;
+        mSensor = null;
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sensor.close();
+                } catch (Exception e) {
+                    error.set(e);
+                }
+                closed.countDown();
+            }
+        });
+        assertTrue(closed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(error.get());
+        assertArrayEquals(STOP_COMMANDS, mUart.takeWritten());
+        assertTrue(mUart.isClosed());
+    }
+
+    // Receive bytes from the sensor, and wait for the reading they contain
+    private void receiveAndWait(byte[] data) throws InterruptedException {
+        final CountDownLatch received = new CountDownLatch(1);
+        mSensor.setOnReadingListener(new HpmSensor.OnReadingListener() {
+            @Override
+            public void onReading(HpmReading reading) {
+                received.countDown();
+            }
+        });
+        mUart.receive(data);
+        assertTrue(received.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    // A data frame with a valid checksum
+    static byte[] frame(int pm25, int pm10) {
+        byte[] frame = new byte[HpmFrameDecoder.LENGTH_DATA_FRAME];
+        putWord(frame, 0, HpmFrameDecoder.RESPONSE_DATA_FRAME);
+        putWord(frame, 2, frame.length - 4);
+        putWord(frame, 4 + HpmReading.DATA_PM25 * 2, pm25);
+        putWord(frame, 4 + HpmReading.DATA_PM10 * 2, pm10);
+        int checksum = 0;
+        for (int i = 0; i < frame.length - 2; i++) {
+            checksum += frame[i] & 0xFF;
+        }
+        putWord(frame, frame.length - 2, checksum);
+        return frame;
+    }
+
+    private static void putWord(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >> 8);
+        frame[offset + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,114 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class HpmSpikeFilterTest {
+    private static final int WINDOW_SIZE = HpmSpikeFilter.DEFAULT_WINDOW_SIZE;
+    private static final float THRESHOLD = HpmSpikeFilter.DEFAULT_THRESHOLD;
+
+    // Same scale as the filter's
+    private static final float MAD_SCALE = 1.4826f;
+
+    private final HpmReading mReading = new HpmReading();
+
+    @Test
+    public void medianStaysSortedWhenDuplicatesAreEvicted() {
+        HpmSpikeFilter filter = new HpmSpikeFilter(HpmSpikeFilter.MODE_MEDIAN, WINDOW_SIZE, 0);
+        // Few distinct values, so the window is full of duplicates
+        Random random = new Random(1);
+        int[] values = new int[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(4);
+            filter(filter, values[i]);
+            int[] window = window(values, i);
+            assertEquals("Reading " + i, window[window.length / 2],
+                    mReading.getFilteredPm25());
+        }
+    }
+
+    @Test
+    public void hampelMatchesBruteForce() {
+        HpmSpikeFilter filter = new HpmSpikeFilter(HpmSpikeFilter.MODE_HAMPEL, WINDOW_SIZE,
+                THRESHOLD);
+        Random random = new Random(2);
+        int[] values = new int[1000];
+        for (int i = 0; i < values.length; i++) {
+            // Mostly noise around a level, with the odd spike
+            values[i] = random.nextInt(10) < 9 ? 20 + random.nextInt(8) : random.nextInt(200);
+            filter(filter, values[i]);
+            assertEquals("Reading " + i, hampel(window(values, i), values[i]),
+                    mReading.getFilteredPm25());
+        }
+    }
+
+    @Test
+    public void hampelReplacesSingleSpike() {
+        HpmSpikeFilter filter = new HpmSpikeFilter();
+        int[] values = { 10, 11, 10, 12, 11, 10, 250, 11, 12, 10 };
+        for (int i = 0; i < values.length; i++) {
+            filter(filter, values[i]);
+            if (values[i] == 250) {
+                assertEquals(11, mReading.getFilteredPm25());
+            } else {
+                assertEquals("Reading " + i, values[i], mReading.getFilteredPm25());
+            }
+        }
+    }
+
+    @Test
+    public void hampelFollowsStepChange() {
+        HpmSpikeFilter filter = new HpmSpikeFilter();
+        for (int value : new int[] { 10, 11, 10, 12, 11 }) {
+            filter(filter, value);
+        }
+        // A real change in air quality.  Once most of the window is at the new level, the
+        // readings are passed through.
+        int[] values = { 80, 82, 81, 80, 83, 82, 81 };
+        for (int i = 0; i < values.length; i++) {
+            filter(filter, values[i]);
+            if (i >= WINDOW_SIZE / 2) {
+                assertEquals("Reading " + i, values[i], mReading.getFilteredPm25());
+            }
+        }
+    }
+
+    @Test
+    public void resetForgetsWindow() {
+        HpmSpikeFilter filter = new HpmSpikeFilter(HpmSpikeFilter.MODE_MEDIAN, WINDOW_SIZE, 0);
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            filter(filter, 100);
+        }
+        filter.reset();
+        filter(filter, 5);
+        assertEquals(5, mReading.getFilteredPm25());
+    }
+
+    private void filter(HpmSpikeFilter filter, int pm25) {
+        mReading.set(HpmSensorTest.frame(pm25, pm25), 0);
+        filter.filter(mReading);
+    }
+
+    // The window of readings up to and including reading i, sorted
+    private static int[] window(int[] values, int i) {
+        int[] window = Arrays.copyOfRange(values, Math.max(0, i - WINDOW_SIZE + 1), i + 1);
+        Arrays.sort(window);
+        return window;
+    }
+
+    private static int hampel(int[] sorted, int value) {
+        int median = sorted[sorted.length / 2];
+        int[] deviations = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            deviations[i] = Math.abs(sorted[i] - median);
+        }
+        Arrays.sort(deviations);
+        int mad = deviations[deviations.length / 2];
+        float limit = THRESHOLD * Math.max(1f, MAD_SCALE * mad);
+        return Math.abs(value - median) > limit ? median : value;
+    }
+}
@@ -0,0 +1,126 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HpmStatisticsTest {
+    private static final long WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long EWMA_TIME_CONSTANT_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int PM25 = HpmStatistics.CHANNEL_PM25;
+
+    // Start well away from zero, so buckets don't line up with the first reading by accident
+    private static final long START_MS = 123456789;
+
+    private HpmStatistics mStatistics;
+
+    @Before
+    public void setUp() {
+        mStatistics = new HpmStatistics(new long[] { WINDOW_MS }, EWMA_TIME_CONSTANT_MS);
+    }
+
+    @Test
+    public void expiresReadingsAfterGapLongerThanWindow() {
+        for (int i = 0; i < 10; i++) {
+            add(START_MS + i * 1000, 100 + i);
+        }
+        assertEquals(10, mStatistics.getCount(0));
+
+        // Everything in the window is older than the window by the next reading
+        add(START_MS + 3 * WINDOW_MS, 7);
+        assertEquals(1, mStatistics.getCount(0));
+        assertEquals(7, mStatistics.getMean(PM25, 0), 0);
+        assertEquals(7, mStatistics.getMin(PM25, 0), 0);
+        assertEquals(7, mStatistics.getMax(PM25, 0), 0);
+        assertEquals(7, mStatistics.getPercentile(PM25, 0, 50), 0);
+    }
+
+    @Test
+    public void keepsReadingsForLengthOfWindow() {
+        long bucketMs = WINDOW_MS / HpmStatistics.BUCKETS;
+        long start = START_MS - START_MS % bucketMs;
+        add(start, 10);
+        add(start + WINDOW_MS - 1, 20);
+        assertEquals(2, mStatistics.getCount(0));
+
+        // The window has moved past the bucket of the first reading
+        add(start + WINDOW_MS, 30);
+        assertEquals(2, mStatistics.getCount(0));
+        assertEquals(20, mStatistics.getMin(PM25, 0), 0);
+    }
+
+    @Test
+    public void countsLateReadingWithoutMovingBack() {
+        add(START_MS, 10);
+        add(START_MS - 10000, 20);
+        assertEquals(2, mStatistics.getCount(0));
+        assertEquals(20, mStatistics.getMax(PM25, 0), 0);
+
+        // The average only decays for the time since the newest reading
+        add(START_MS + 500, 30);
+        assertEquals(3, mStatistics.getCount(0));
+        double alpha = 1 - Math.exp(-500.0 / EWMA_TIME_CONSTANT_MS);
+        assertEquals(10 + alpha * 20, mStatistics.getEwma(PM25), 0.001);
+
+        // The window still ends at the newest reading, so the late one expires with it
+        add(START_MS + WINDOW_MS + 1000, 40);
+        assertEquals(1, mStatistics.getCount(0));
+    }
+
+    @Test
+    public void percentilesAreCloseToExactValues() {
+        Random random = new Random(42);
+        int[] values = new int[500];
+        for (int i = 0; i < values.length; i++) {
+            // Mostly low readings, with a long tail like real ones
+            values[i] = (int) Math.min(HpmSensor.HPM_PARTICLE_MAX,
+                    Math.exp(random.nextDouble() * 7));
+            add(START_MS + i * 100, values[i]);
+        }
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        float[] percentiles = { 0, 1, 10, 25, 50, 75, 90, 99, 100 };
+        for (float percentile : percentiles) {
+            int rank = Math.max(1, (int) Math.ceil(percentile / 100 * sorted.length));
+            int exact = sorted[rank - 1];
+            float estimate = mStatistics.getPercentile(PM25, 0, percentile);
+            // Within the width of the histogram bin the exact value is in
+            float tolerance = Math.max(1, exact * 0.2f);
+            assertEquals("Percentile " + percentile, exact, estimate, tolerance);
+            assertTrue(estimate >= sorted[0] && estimate <= sorted[sorted.length - 1]);
+        }
+        assertEquals(sorted[0], mStatistics.getPercentile(PM25, 0, 0), 0);
+        assertEquals(sorted[sorted.length - 1], mStatistics.getPercentile(PM25, 0, 100), 0);
+    }
+
+    @Test
+    public void resetForgetsReadings() {
+        for (int i = 0; i < 10; i++) {
+            add(START_MS + i * 1000, 50);
+        }
+        mStatistics.reset();
+        assertEquals(0, mStatistics.getCount(0));
+        assertTrue(Float.isNaN(mStatistics.getEwma(PM25)));
+        assertTrue(Float.isNaN(mStatistics.getMean(PM25, 0)));
+        assertTrue(Float.isNaN(mStatistics.getMin(PM25, 0)));
+        assertTrue(Float.isNaN(mStatistics.getMax(PM25, 0)));
+        assertTrue(Float.isNaN(mStatistics.getPercentile(PM25, 0, 50)));
+
+        // Starts over from the next reading, even an earlier one, as when replaying a capture
+        add(START_MS - WINDOW_MS, 5);
+        assertEquals(1, mStatistics.getCount(0));
+        assertEquals(5, mStatistics.getEwma(PM25), 0);
+        assertEquals(5, mStatistics.getPercentile(PM25, 0, 50), 0);
+    }
+
+    private void add(long timestampMs, int pm25) {
+        mStatistics.add(TimeUnit.MILLISECONDS.toNanos(timestampMs), pm25, pm25 * 2);
+    }
+}
@@ -0,0 +1,104 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import net.jpuderer.android.things.drivers.common.FakePeripherals;
+import net.jpuderer.android.things.drivers.common.FakeUartDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HpmUartReaderTest {
+    private static final int SENSOR_COUNT = 3;
+    private static final long TIMEOUT_MS = 2000;
+
+    private static final byte[] ACK = { (byte) 0xA5, (byte) 0xA5 };
+
+    private HandlerThread mThread;
+    private HpmUartReader mReader;
+    private final FakeUartDevice[] mUarts = new FakeUartDevice[SENSOR_COUNT];
+    private final HpmSensor[] mSensors = new HpmSensor[SENSOR_COUNT];
+
+    @Before
+    public void setUp() throws Exception {
+        mThread = new HandlerThread("HpmUartReaderTest");
+        mThread.start();
+        Handler handler = new Handler(mThread.getLooper());
+        mReader = new HpmUartReader();
+
+        FakePeripherals peripherals = new FakePeripherals();
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            mUarts[i] = peripherals.getUartDevice("UART" + i);
+            mUarts[i].setOnWriteListener(new FakeUartDevice.OnWriteListener() {
+                @Override
+                public void onWrite(FakeUartDevice uart, byte[] data) {
+                    uart.receive(ACK);
+                }
+            });
+            mSensors[i] = new HpmSensor(peripherals, "UART" + i, handler, mReader);
+            mSensors[i].startAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (HpmSensor sensor : mSensors) {
+            if (sensor != null) sensor.close();
+        }
+        mReader.close();
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void readsOnlyTheUartWithData() throws Exception {
+        int[] calls = new int[SENSOR_COUNT];
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            calls[i] = mUarts[i].getCallCount();
+        }
+
+        receiveAndWait(0, HpmSensorTest.frame(7, 8));
+        assertEquals(7, mSensors[0].readPm25());
+        for (int i = 1; i < SENSOR_COUNT; i++) {
+            assertEquals(calls[i], mUarts[i].getCallCount());
+            try {
+                mSensors[i].readPm25();
+                fail("Expected no data on UART" + i);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void decodesEachSensorSeparately() throws Exception {
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            receiveAndWait(i, HpmSensorTest.frame(10 + i, 20 + i));
+        }
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            assertEquals(10 + i, mSensors[i].readPm25());
+            assertEquals(20 + i, mSensors[i].readPm10());
+        }
+    }
+
+    // Receive bytes on one UART, and wait for its sensor's reading
+    private void receiveAndWait(int index, byte[] data) throws InterruptedException {
+        final CountDownLatch received = new CountDownLatch(1);
+        mSensors[index].setOnReadingListener(new HpmSensor.OnReadingListener() {
+            @Override
+            public void onReading(HpmReading reading) {
+                received.countDown();
+            }
+        });
+        mUarts[index].receive(data);
+        assertTrue(received.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,112 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Replays a capture file through {@link HpmFrameDecoder} as fast as possible.  Scores are
+ * per replay of the whole capture, so compare them against the same capture file only.
+ */
+@State(Scope.Thread)
+public class HpmCaptureReplayBenchmark {
+    // Capture file to replay.  If empty, a synthetic capture is generated.
+    @Param({""})
+    public String capture;
+
+    private File mTempFile;
+    private HpmCaptureReplay mReplay;
+    private HpmFrameDecoder mDecoder;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        mBlackhole = blackhole;
+        File file;
+        if (capture.isEmpty()) {
+            mTempFile = File.createTempFile("hpm", ".capture");
+            writeSyntheticCapture(mTempFile);
+            file = mTempFile;
+        } else {
+            file = new File(capture);
+        }
+        mReplay = new HpmCaptureReplay(file);
+
+        mDecoder = new HpmFrameDecoder(new HpmFrameDecoder.Callback() {
+            @Override
+            public void onDataFrame(byte[] frame) {
+                mBlackhole.consume(((frame[6] & 0xFF) << 8) + (frame[7] & 0xFF));
+                mBlackhole.consume(((frame[8] & 0xFF) << 8) + (frame[9] & 0xFF));
+            }
+
+            @Override
+            public void onCommandResponse(boolean ok) {
+                mBlackhole.consume(ok);
+            }
+
+            @Override
+            public void onChecksumError() {
+                mBlackhole.consume(-1);
+            }
+
+            @Override
+            public void onResync(int count) {
+                mBlackhole.consume(count);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mReplay.close();
+        if (mTempFile != null) mTempFile.delete();
+    }
+
+    @Benchmark
+    public int replay() throws InterruptedException {
+        return mReplay.replay(mDecoder, false);
+    }
+
+    // An hour of frames at one per second, arriving in reads of up to 8 bytes
+    private static void writeSyntheticCapture(File file) throws IOException {
+        Random random = new Random(42);
+        byte[] frame = new byte[HpmFrameDecoder.LENGTH_DATA_FRAME];
+        long timestamp = 0;
+        try (HpmCaptureWriter writer = new HpmCaptureWriter(file)) {
+            for (int i = 0; i < 3600; i++) {
+                fillDataFrame(frame, random.nextInt(1000), random.nextInt(1000));
+                for (int offset = 0; offset < frame.length; ) {
+                    int count = Math.min(1 + random.nextInt(8), frame.length - offset);
+                    writer.append(timestamp, frame, offset, count);
+                    offset += count;
+                    timestamp += 1000000;
+                }
+                timestamp += 990000000;
+            }
+        }
+    }
+
+    private static void fillDataFrame(byte[] frame, int pm25, int pm10) {
+        frame[0] = 0x42;
+        frame[1] = 0x4d;
+        frame[3] = (byte) (frame.length - 4);
+        frame[6] = (byte) (pm25 >>> 8);
+        frame[7] = (byte) pm25;
+        frame[8] = (byte) (pm10 >>> 8);
+        frame[9] = (byte) pm10;
+        int checksum = 0;
+        for (int i = 0; i < frame.length - 2; i++) {
+            checksum += frame[i] & 0xFF;
+        }
+        frame[frame.length - 2] = (byte) (checksum >>> 8);
+        frame[frame.length - 1] = (byte) checksum;
+    }
+}
@@ -0,0 +1,158 @@
+package net.jpuderer.android.things.drivers.hpm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Feeds synthetic HPM byte streams through {@link HpmFrameDecoder}.  Every invocation
+ * decodes {@link #FRAMES} data frames, so scores are reported per frame.
+ */
+@State(Scope.Thread)
+public class HpmFrameDecoderBenchmark {
+    private static final int FRAMES = 256;
+
+    private static final int LENGTH_DATA_FRAME = HpmFrameDecoder.LENGTH_DATA_FRAME;
+
+    // The largest read done by HpmSensor.drainUart()
+    private static final int MAX_READ = LENGTH_DATA_FRAME * 2;
+
+    /**
+     * CLEAN: back to back data frames.
+     * ACKS: an ACK or NACK response after every data frame.
+     * NOISE: up to 8 random bytes before every data frame.
+     * CHECKSUM_ERRORS: every fourth frame has a corrupt payload.
+     */
+    @Param({"CLEAN", "ACKS", "NOISE", "CHECKSUM_ERRORS"})
+    public String stream;
+
+    private byte[] mData;
+
+    // Read sizes that split frames at every possible offset
+    private int[] mSplitReads;
+
+    private HpmFrameDecoder mDecoder;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mData = createStream(stream, new Random(42));
+
+        int reads = 0;
+        int[] sizes = new int[mData.length];
+        for (int offset = 0, size = 1; offset < mData.length; offset += size, size++) {
+            if (size > MAX_READ) size = 1;
+            sizes[reads++] = Math.min(size, mData.length - offset);
+        }
+        mSplitReads = new int[reads];
+        System.arraycopy(sizes, 0, mSplitReads, 0, reads);
+
+        mDecoder = new HpmFrameDecoder(new HpmFrameDecoder.Callback() {
+            @Override
+            public void onDataFrame(byte[] frame) {
+                // Same work as HpmSensor.processDataFrame()
+                mBlackhole.consume(((frame[6] & 0xFF) << 8) + (frame[7] & 0xFF));
+                mBlackhole.consume(((frame[8] & 0xFF) << 8) + (frame[9] & 0xFF));
+            }
+
+            @Override
+            public void onCommandResponse(boolean ok) {
+                mBlackhole.consume(ok);
+            }
+
+            @Override
+            public void onChecksumError() {
+                mBlackhole.consume(-1);
+            }
+
+            @Override
+            public void onResync(int count) {
+                mBlackhole.consume(count);
+            }
+        });
+    }
+
+    // Whole buffer in reads of the maximum size
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void fullReads() {
+        for (int offset = 0; offset < mData.length; offset += MAX_READ) {
+            mDecoder.feed(mData, offset, Math.min(MAX_READ, mData.length - offset));
+        }
+    }
+
+    // Reads of 1, 2, ... MAX_READ bytes, so frames are split across reads at every offset
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void splitReads() {
+        int offset = 0;
+        for (int size : mSplitReads) {
+            mDecoder.feed(mData, offset, size);
+            offset += size;
+        }
+    }
+
+    // One byte per read, the worst case at 9600 baud
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void singleByteReads() {
+        for (int offset = 0; offset < mData.length; offset++) {
+            mDecoder.feed(mData, offset, 1);
+        }
+    }
+
+    private static byte[] createStream(String stream, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = createDataFrame(random.nextInt(1000), random.nextInt(1000));
+            switch (stream) {
+                case "CLEAN":
+                    break;
+                case "ACKS":
+                    out.write(frame, 0, frame.length);
+                    frame = (i % 2 == 0) ?
+                            new byte[] { (byte) 0xA5, (byte) 0xA5 } :
+                            new byte[] { (byte) 0x96, (byte) 0x96 };
+                    break;
+                case "NOISE":
+                    for (int n = random.nextInt(9); n > 0; n--) {
+                        out.write(random.nextInt(256));
+                    }
+                    break;
+                case "CHECKSUM_ERRORS":
+                    if (i % 4 == 0) frame[4 + random.nextInt(26)] ^= 0x10;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown stream: " + stream);
+            }
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] createDataFrame(int pm25, int pm10) {
+        byte[] frame = new byte[LENGTH_DATA_FRAME];
+        frame[0] = 0x42;
+        frame[1] = 0x4d;
+        frame[3] = LENGTH_DATA_FRAME - 4;
+        frame[6] = (byte) (pm25 >>> 8);
+        frame[7] = (byte) pm25;
+        frame[8] = (byte) (pm10 >>> 8);
+        frame[9] = (byte) pm10;
+        int checksum = 0;
+        for (int i = 0; i < LENGTH_DATA_FRAME - 2; i++) {
+            checksum += frame[i] & 0xFF;
+        }
+        frame[LENGTH_DATA_FRAME - 2] = (byte) (checksum >>> 8);
+        frame[LENGTH_DATA_FRAME - 1] = (byte) checksum;
+        return frame;
+    }
+}
@@ -0,0 +1,591 @@
+package net.jpuderer.android.things.drivers.sht1x;
+
+import android.annotation.SuppressLint;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.android.things.pio.Gpio;
+
+import net.jpuderer.android.things.drivers.common.AndroidThingsPeripherals;
+import net.jpuderer.android.things.drivers.common.Counter;
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+import net.jpuderer.android.things.drivers.common.DriverScheduler;
+import net.jpuderer.android.things.drivers.common.EdgeTiming;
+import net.jpuderer.android.things.drivers.common.LatencyHistogram;
+import net.jpuderer.android.things.drivers.common.PeripheralProvider;
+
+import java.io.IOException;
+
+/**
+ * Several SHT1x sensors sharing one SCK pin, each with its own DATA pin.
+ *
+ * The sensors are driven in lockstep: commands are sent to all of them at once, and each
+ * clock pulse shifts a bit out of every sensor, so measuring N sensors takes about as many
+ * clock transitions as measuring one.  A sensor that fails (no ACK, timeout or bad CRC) only
+ * fails its own reading for that cycle.
+ *
+ * Sensors are measured at the same resolution and interval, timed by the
+ * {@link DriverScheduler} shared by all drivers.  The bus transfers are run by
+ * {@link Sht1xProtocol} on the I/O thread shared with {@link Sht1xSensor}.
+ */
+@SuppressLint("DefaultLocale")
+public class Sht1xBus implements AutoCloseable {
+    private static final String TAG = Sht1xBus.class.getSimpleName();
+
+    // Time to wait after a soft reset, from the datasheet
+    private static final int SOFT_RESET_TIME_MS = 11;
+
+    // Time between checks of the DATA lines once a conversion should be nearly done
+    private static final int DATA_READY_POLL_MS = 5;
+
+    public interface OnReadingListener {
+        /**
+         * Called on the bus's handler thread with each reading.  The reading is reused for
+         * the sensor's next callback, so copy anything needed after the callback returns.
+         * @param sensor Index of the sensor's DATA pin.
+         */
+        void onReading(int sensor, Sht1xReading reading);
+    }
+
+    private static final int[] COMMANDS = {
+            Sht1xSensor.SHT1X_CMD_MEASURE_TEMPERATURE,
+            Sht1xSensor.SHT1X_CMD_MEASURE_HUMIDITY,
+    };
+
+    private Gpio mGpioSck;
+    private final Gpio[] mGpioData;
+    private final float mD1;
+
+    private final Handler mHandler;
+    private DriverScheduler mScheduler;
+    private Handler mIoHandler;
+
+    private volatile boolean mStarted;
+    private boolean mRunning;
+    private int mResolution = Sht1xSensor.RESOLUTION_HIGH;
+    // Requested interval, or 0 for the default of the resolution
+    private int mMeasurementInterval;
+
+    // Per cycle state, used with the lock held, and only on the I/O thread except for
+    // setResolution() asking for a reset
+    private int mStep;
+    private long mCycleStartMillis;
+    private long mCommandMillis;
+    private boolean mNeedsReset = true;
+    private boolean mNeedsConfigure;
+    // Status register the sensors were configured with, which their CRCs depend on
+    private int mStatus;
+    // Sensors that have failed this cycle, and why
+    private final IOException[] mCycleErrors;
+    private final boolean[] mDataReady;
+    // Raw data of each sensor and step
+    private final int[] mRawData;
+    // ACKs and data of each sensor, returned by the protocol
+    private final Sht1xProtocol mProtocol;
+    private final int[] mAcks;
+    private final int[] mValues;
+
+    // Latest reading or error of each sensor.  Guarded by mPublishLock rather than this, which
+    // is held for whole bus transfers, so that readers never wait for the bus.
+    private final Object mPublishLock = new Object();
+    private final float[] mTemperatures;
+    private final float[] mHumidities;
+    private final long[] mTimestamps;
+    private final long[] mSequences;
+    private final IOException[] mErrors;
+    private long mSequence;
+
+    // Readings handed to the listener, reused on the handler thread
+    private volatile OnReadingListener mListener;
+    private final Sht1xReading[] mDispatchReadings;
+    private final boolean[] mDispatchValid;
+    // Guarded by mPublishLock
+    private boolean mDispatchPending;
+
+    private final DriverMetrics mMetrics;
+    private final Counter mFrames;
+    private final Counter mTimeouts;
+    private final Counter mGpioErrors;
+    private final Counter mChecksumErrors;
+    private final LatencyHistogram mTransactions;
+
+    // Delay between SCK edges, after allowing for the time the GPIO calls take
+    private final EdgeTiming mEdgeTiming = new EdgeTiming(Sht1xSensor.SCK_HALF_CYCLE_NANOS);
+
+    private final Runnable mStartCycle = new Runnable() {
+        @Override
+        public void run() {
+            startCycle();
+        }
+    };
+
+    private final Runnable mSendStep = new Runnable() {
+        @Override
+        public void run() {
+            sendStep();
+        }
+    };
+
+    private final Runnable mPollDataReady = new Runnable() {
+        @Override
+        public void run() {
+            pollDataReady();
+        }
+    };
+
+    private final Runnable mDispatchReading = new Runnable() {
+        @Override
+        public void run() {
+            OnReadingListener listener = mListener;
+            synchronized (mPublishLock) {
+                mDispatchPending = false;
+                if (listener == null) return;
+                for (int i = 0; i < mDispatchReadings.length; i++) {
+                    mDispatchValid[i] = mErrors[i] == null;
+                    if (!mDispatchValid[i]) continue;
+                    mDispatchReadings[i].set(mTemperatures[i], mHumidities[i], mTimestamps[i],
+                            mSequences[i]);
+                }
+            }
+            for (int i = 0; i < mDispatchReadings.length; i++) {
+                if (mDispatchValid[i]) listener.onReading(i, mDispatchReadings[i]);
+            }
+        }
+    };
+
+    /**
+     * Create a bus of SHT1x sensors powered at 3.3v.
+     * @param gpioSck Pin connected to SCK on all of the sensors.
+     * @param gpioData Pins connected to DATA on each sensor.
+     * @throws IOException Sensor error
+     */
+    public Sht1xBus(String gpioSck, String... gpioData) throws IOException {
+        this(gpioSck, gpioData, Sht1xSensor.SHT1X_VDD_TYPICAL, null);
+    }
+
+    /**
+     * Create a bus of SHT1x sensors.
+     * @param gpioSck Pin connected to SCK on all of the sensors.
+     * @param gpioData Pins connected to DATA on each sensor.
+     * @param vdd Supply voltage (Vdd) used to power the sensors.
+     * @param handler Handler for {@link OnReadingListener} callbacks.
+     * @throws IOException Sensor error
+     */
+    public Sht1xBus(String gpioSck, String[] gpioData, float vdd, Handler handler)
+            throws IOException {
+        this(AndroidThingsPeripherals.getInstance(), gpioSck, gpioData, vdd, handler);
+    }
+
+    /**
+     * Create a bus of SHT1x sensors on GPIOs opened with the given provider.
+     * @param peripherals Provider to open the GPIOs with.
+     * @see #Sht1xBus(String, String[], float, Handler)
+     */
+    public Sht1xBus(PeripheralProvider peripherals, String gpioSck, String[] gpioData,
+            float vdd, Handler handler) throws IOException {
+        if ((vdd < Sht1xSensor.SHT1X_VDD_MIN) || (vdd > Sht1xSensor.SHT1X_VDD_MAX)) {
+            String msg = String.format("Vdd must be between %.1f and %.1f",
+                    Sht1xSensor.SHT1X_VDD_MIN, Sht1xSensor.SHT1X_VDD_MAX);
+            throw new IllegalArgumentException(msg);
+        }
+        if (gpioData.length == 0) {
+            throw new IllegalArgumentException("Need at least one DATA pin");
+        }
+        mD1 = Sht1xSensor.calculateD1(vdd);
+
+        int count = gpioData.length;
+        mGpioData = new Gpio[count];
+        mCycleErrors = new IOException[count];
+        mDataReady = new boolean[count];
+        mRawData = new int[count * COMMANDS.length];
+        mAcks = new int[count];
+        mValues = new int[count];
+        mTemperatures = new float[count];
+        mHumidities = new float[count];
+        mTimestamps = new long[count];
+        mSequences = new long[count];
+        mErrors = new IOException[count];
+        mDispatchReadings = new Sht1xReading[count];
+        mDispatchValid = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            mDispatchReadings[i] = new Sht1xReading(Float.NaN, Float.NaN, 0, 0);
+        }
+
+        mMetrics = new DriverMetrics(TAG + ":" + gpioSck);
+        mFrames = mMetrics.counter(DriverMetrics.FRAMES);
+        mTimeouts = mMetrics.counter(DriverMetrics.TIMEOUTS);
+        mGpioErrors = mMetrics.counter(DriverMetrics.GPIO_ERRORS);
+        mChecksumErrors = mMetrics.counter(DriverMetrics.CHECKSUM_ERRORS);
+        mTransactions = mMetrics.histogram(DriverMetrics.TRANSACTION);
+
+        mHandler = new Handler(handler == null ? Looper.myLooper() : handler.getLooper());
+        mScheduler = DriverScheduler.acquire();
+        mIoHandler = Sht1xIoThread.acquire();
+
+        try {
+            mGpioSck = peripherals.openGpio(gpioSck);
+            mGpioSck.setActiveType(Gpio.ACTIVE_HIGH);
+            mGpioSck.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+            for (int i = 0; i < count; i++) {
+                mGpioData[i] = peripherals.openGpio(gpioData[i]);
+                mGpioData[i].setActiveType(Gpio.ACTIVE_HIGH);
+            }
+            mProtocol = new Sht1xProtocol(mTransactions, mEdgeTiming, mGpioSck, mGpioData);
+            mProtocol.calibrate(mGpioData[0]);
+        } catch (IOException|RuntimeException e) {
+            try {
+                close();
+            } catch (IOException|RuntimeException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    public int getSensorCount() {
+        return mGpioData.length;
+    }
+
+    /**
+     * Return the bus's metrics: completed sensor readings (frames), timeouts, GPIO errors,
+     * CRC errors (checksum errors) and how long each lockstep transaction took on the
+     * I/O thread.
+     */
+    public DriverMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Set the resolution of the measurements.  The sensors' status registers are written
+     * before the next measurement.  Can only be changed while the bus is stopped.
+     * @param resolution {@link Sht1xSensor#RESOLUTION_HIGH} or
+     *                   {@link Sht1xSensor#RESOLUTION_LOW}.
+     */
+    public synchronized void setResolution(int resolution) {
+        if (resolution != Sht1xSensor.RESOLUTION_HIGH
+                && resolution != Sht1xSensor.RESOLUTION_LOW) {
+            throw new IllegalArgumentException("Unknown resolution: " + resolution);
+        }
+        if (mStarted || mRunning) {
+            throw new IllegalStateException("Cannot change resolution while started");
+        }
+        if (resolution == mResolution) return;
+        mResolution = resolution;
+        // A soft reset clears the status register, which is then written if needed
+        mNeedsReset = true;
+    }
+
+    public synchronized int getResolution() {
+        return mResolution;
+    }
+
+    /**
+     * Set the time between measurements.
+     * @param intervalMs Time between measurements in milliseconds, or 0 for the default of
+     *                   the current resolution.
+     */
+    public synchronized void setMeasurementInterval(int intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("Interval must not be negative");
+        }
+        mMeasurementInterval = intervalMs;
+    }
+
+    /**
+     * Time between measurements, in milliseconds.
+     */
+    public synchronized int getMeasurementInterval() {
+        if (mMeasurementInterval != 0) return mMeasurementInterval;
+        return mResolution == Sht1xSensor.RESOLUTION_LOW
+                ? Sht1xSensor.SHT1X_MEASUREMENT_INTERVAL_LOW_RESOLUTION
+                : Sht1xSensor.SHT1X_MEASUREMENT_INTERVAL;
+    }
+
+    public void setOnReadingListener(OnReadingListener listener) {
+        mListener = listener;
+    }
+
+    // Start making sensor measurements
+    public synchronized void start() {
+        if (mStarted) return;
+        synchronized (mPublishLock) {
+            for (int i = 0; i < mErrors.length; i++) {
+                mErrors[i] = new IOException("No data available");
+            }
+        }
+        mStarted = true;
+        if (!mRunning) mIoHandler.post(mStartCycle);
+    }
+
+    // Stop making sensor measurements.  A cycle in progress is finished first.
+    public synchronized void stop() {
+        mStarted = false;
+        if (mScheduler != null) removeIo(mStartCycle);
+    }
+
+    /**
+     * Release the GPIO pins.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        stop();
+        if (mScheduler != null) {
+            removeIo(mSendStep);
+            removeIo(mPollDataReady);
+            mRunning = false;
+        }
+        try {
+            for (int i = 0; i < mGpioData.length; i++) {
+                if (mGpioData[i] != null) {
+                    try {
+                        mGpioData[i].close();
+                    } finally {
+                        mGpioData[i] = null;
+                    }
+                }
+            }
+            if (mGpioSck != null) {
+                try {
+                    mGpioSck.close();
+                } finally {
+                    mGpioSck = null;
+                }
+            }
+        } finally {
+            if (mScheduler != null) {
+                mScheduler = null;
+                mIoHandler = null;
+                DriverScheduler.release();
+                Sht1xIoThread.release();
+            }
+        }
+    }
+
+    /**
+     * Return the latest reading of a sensor, with the temperature and humidity from the same
+     * cycle.  Never waits for a bus transfer in progress.
+     * @param sensor Index of the sensor's DATA pin.
+     * @throws IOException The bus isn't started, or the sensor failed its last cycle.
+     */
+    public Sht1xReading readReading(int sensor) throws IOException {
+        if (!mStarted) {
+            throw new IOException("Sensor has not started");
+        }
+        synchronized (mPublishLock) {
+            if (mErrors[sensor] != null) throw mErrors[sensor];
+            return new Sht1xReading(mTemperatures[sensor], mHumidities[sensor],
+                    mTimestamps[sensor], mSequences[sensor]);
+        }
+    }
+
+    private synchronized void startCycle() {
+        if (!mStarted || mScheduler == null) return;
+        mRunning = true;
+        mCycleStartMillis = SystemClock.uptimeMillis();
+        for (int i = 0; i < mCycleErrors.length; i++) {
+            mCycleErrors[i] = null;
+        }
+        mStep = 0;
+        if (!mNeedsReset) {
+            sendStep();
+            return;
+        }
+
+        // Get every sensor back to a known state, including the status register that the
+        // CRCs depend on.
+        try {
+            mProtocol.connectionReset();
+            mProtocol.sendCommand(Sht1xSensor.SHT1X_SOFT_RESET, mAcks);
+        } catch (IOException e) {
+            mGpioErrors.increment();
+            failAll(e);
+            return;
+        }
+        checkAcks(Sht1xSensor.SHT1X_SOFT_RESET);
+        mNeedsReset = false;
+        // The reset leaves the status register at its default of high resolution
+        mStatus = 0;
+        mNeedsConfigure = mResolution == Sht1xSensor.RESOLUTION_LOW;
+        postIo(mSendStep, SystemClock.uptimeMillis() + SOFT_RESET_TIME_MS, 0);
+    }
+
+    private synchronized void sendStep() {
+        if (mScheduler == null) return;
+        int command = COMMANDS[mStep];
+        try {
+            if (mNeedsConfigure) {
+                configureStatus();
+                mNeedsConfigure = false;
+            }
+            mProtocol.sendCommand(command, mAcks);
+        } catch (IOException e) {
+            mGpioErrors.increment();
+            failAll(e);
+            return;
+        }
+        checkAcks(command);
+        if (activeCount() == 0) {
+            finishCycle();
+            return;
+        }
+        mCommandMillis = SystemClock.uptimeMillis();
+        for (int i = 0; i < mDataReady.length; i++) {
+            mDataReady[i] = false;
+        }
+        // Don't start looking until the conversion should be nearly done
+        int conversionMs = Sht1xSensor.getNominalConversionTime(command, mResolution);
+        postIo(mPollDataReady, mCommandMillis + conversionMs * 3 / 4, 0);
+    }
+
+    private synchronized void pollDataReady() {
+        if (mScheduler == null) return;
+        boolean waiting = false;
+        try {
+            for (int i = 0; i < mGpioData.length; i++) {
+                if (mCycleErrors[i] != null || mDataReady[i]) continue;
+                // Each sensor pulls its DATA line low once its measurement is done
+                mDataReady[i] = !mGpioData[i].getValue();
+                waiting |= !mDataReady[i];
+            }
+        } catch (IOException e) {
+            mGpioErrors.increment();
+            failAll(e);
+            return;
+        }
+
+        if (waiting) {
+            long now = SystemClock.uptimeMillis();
+            if (now - mCommandMillis < Sht1xSensor.SHT1X_MEASUREMENT_TIMEOUT) {
+                postIo(mPollDataReady, now + DATA_READY_POLL_MS, 0);
+                return;
+            }
+            for (int i = 0; i < mGpioData.length; i++) {
+                if (mCycleErrors[i] != null || mDataReady[i]) continue;
+                mTimeouts.increment();
+                mCycleErrors[i] = new IOException("Timeout waiting for "
+                        + Sht1xSensor.measurementName(COMMANDS[mStep]) + " measurement.");
+            }
+        }
+
+        try {
+            readData();
+        } catch (IOException e) {
+            mGpioErrors.increment();
+            failAll(e);
+            return;
+        }
+        if (++mStep < COMMANDS.length && activeCount() > 0) {
+            sendStep();
+        } else {
+            finishCycle();
+        }
+    }
+
+    private int activeCount() {
+        int count = 0;
+        for (IOException e : mCycleErrors) {
+            if (e == null) count++;
+        }
+        return count;
+    }
+
+    // Fail every sensor that hasn't already failed this cycle
+    private void failAll(IOException e) {
+        for (int i = 0; i < mCycleErrors.length; i++) {
+            if (mCycleErrors[i] == null) mCycleErrors[i] = e;
+        }
+        finishCycle();
+    }
+
+    // Publish the cycle's readings and errors, and schedule the next cycle
+    private void finishCycle() {
+        long timestamp = SystemClock.elapsedRealtimeNanos();
+        boolean published = false;
+        synchronized (mPublishLock) {
+            for (int i = 0; i < mGpioData.length; i++) {
+                if (mCycleErrors[i] != null) {
+                    mErrors[i] = mCycleErrors[i];
+                    // Something is wrong on the bus, so start over next time
+                    mNeedsReset = true;
+                    continue;
+                }
+                int rawTemperature = mRawData[i * COMMANDS.length];
+                int rawHumidity = mRawData[i * COMMANDS.length + 1];
+                mTemperatures[i] = Sht1xSensor.convertTemperature(mD1, rawTemperature,
+                        mResolution);
+                mHumidities[i] = Sht1xSensor.convertHumidity(mTemperatures[i], rawHumidity,
+                        mResolution);
+                mTimestamps[i] = timestamp;
+                mSequences[i] = ++mSequence;
+                mErrors[i] = null;
+                mFrames.increment();
+                published = true;
+            }
+
+            if (published && mListener != null && !mDispatchPending) {
+                mDispatchPending = true;
+                mHandler.post(mDispatchReading);
+            }
+        }
+
+        mRunning = false;
+        if (mStarted) {
+            postIo(mStartCycle, mCycleStartMillis + getMeasurementInterval(),
+                    Sht1xSensor.SHT1X_CYCLE_SLACK);
+        }
+    }
+
+    // Run a task on the I/O thread at the given time, or up to slackMillis later if that
+    // saves the scheduler a wakeup.  Must be called with the lock held.
+    private void postIo(Runnable task, long uptimeMillis, long slackMillis) {
+        mScheduler.postAtTime(mIoHandler, task, uptimeMillis, slackMillis);
+    }
+
+    // Cancel a task posted with postIo(), whether or not the scheduler has handed it to the
+    // I/O thread yet.  Must be called with the lock held.
+    private void removeIo(Runnable task) {
+        mScheduler.removeCallbacks(task);
+        mIoHandler.removeCallbacks(task);
+    }
+
+    // Write the resolution to the status register of every sensor
+    private void configureStatus() throws IOException {
+        int status = mResolution == Sht1xSensor.RESOLUTION_LOW
+                ? Sht1xSensor.SHT1X_STATUS_LOW_RESOLUTION : 0;
+        mProtocol.sendCommand(Sht1xSensor.SHT1X_CMD_WRITE_STATUS, mAcks);
+        checkAcks(Sht1xSensor.SHT1X_CMD_WRITE_STATUS);
+        mProtocol.writeByte(status, mAcks);
+        for (int i = 0; i < mAcks.length; i++) {
+            if (mCycleErrors[i] == null && mAcks[i] != Sht1xProtocol.ACK) {
+                mCycleErrors[i] = new IOException(
+                        String.format("Sensor did not ACK byte: 0x%x", status));
+            }
+        }
+        mStatus = status;
+    }
+
+    // Fail the sensors that didn't acknowledge a command
+    private void checkAcks(int command) {
+        for (int i = 0; i < mAcks.length; i++) {
+            if (mCycleErrors[i] == null && mAcks[i] != Sht1xProtocol.ACK) {
+                mCycleErrors[i] = new IOException(Sht1xProtocol.ackMessage(mAcks[i], command));
+            }
+        }
+    }
+
+    // Shift the result and CRC of the current step out of every sensor at once
+    private void readData() throws IOException {
+        int command = COMMANDS[mStep];
+        mProtocol.readBytes(3, mValues);
+        for (int i = 0; i < mValues.length; i++) {
+            if (mCycleErrors[i] != null) continue;
+            int raw = mValues[i] >>> 8;
+            mRawData[i * COMMANDS.length + mStep] = raw;
+            if (!Sht1xCrc.check(mStatus, command, raw, mValues[i] & 0xFF)) {
+                mChecksumErrors.increment();
+                mCycleErrors[i] = new IOException("CRC error in "
+                        + Sht1xSensor.measurementName(command) + " measurement.");
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package net.jpuderer.android.things.drivers.sht1x;
+
+/**
+ * CRC-8 used by the SHT1x to protect its responses.
+ *
+ * The checksum covers the command byte and every byte sent back for it, using the polynomial
+ * x^8 + x^5 + x^4 + 1.  The CRC register starts with the low nibble of the status register
+ * (bit reversed), and the sensor sends the result with its bits reversed.
+ */
+class Sht1xCrc {
+    private static final int POLYNOMIAL = 0x31;
+
+    private static final byte[] TABLE = new byte[256];
+    private static final byte[] REVERSED = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+            }
+            TABLE[i] = (byte) crc;
+            REVERSED[i] = (byte) (Integer.reverse(i) >>> 24);
+        }
+    }
+
+    private Sht1xCrc() {
+    }
+
+    /**
+     * Initial value of the CRC register for the given status register.
+     */
+    static int init(int status) {
+        return REVERSED[status & 0x0F] & 0xFF;
+    }
+
+    /**
+     * Add a byte to the CRC.
+     */
+    static int update(int crc, int value) {
+        return TABLE[(crc ^ value) & 0xFF] & 0xFF;
+    }
+
+    /**
+     * Check the checksum sent by the sensor for a command and its 16 bit result.
+     * @param received Checksum byte as it was shifted in from the sensor.
+     */
+    static boolean check(int status, int command, int word, int received) {
+        int crc = update(init(status), command);
+        crc = update(crc, word >> 8);
+        crc = update(crc, word);
+        return crc == (REVERSED[received & 0xFF] & 0xFF);
+    }
+
+    /**
+     * Check the checksum sent by the sensor for a command and its 8 bit result.
+     */
+    static boolean checkByte(int status, int command, int value, int received) {
+        int crc = update(update(init(status), command), value);
+        return crc == (REVERSED[received & 0xFF] & 0xFF);
+    }
+}
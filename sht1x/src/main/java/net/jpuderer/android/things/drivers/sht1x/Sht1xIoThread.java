@@ -0,0 +1,51 @@
+package net.jpuderer.android.things.drivers.sht1x;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import net.jpuderer.android.things.drivers.common.DriverScheduler;
+
+/**
+ * Single I/O thread shared by all open SHT1x drivers, which bit-bang their GPIOs on it.
+ *
+ * A transfer takes dozens of blocking GPIO calls, so running it on the
+ * {@link DriverScheduler}'s thread would make every other driver's tasks late.  The
+ * scheduler still decides when the work runs, and hands each task to this thread when it is
+ * due, at the cost of one more thread and a message per task.  The thread is started when
+ * the first driver is opened, and stopped when the last one is closed.
+ */
+class Sht1xIoThread {
+    private static final String TAG = Sht1xIoThread.class.getSimpleName();
+
+    private static HandlerThread sThread;
+    private static Handler sHandler;
+    private static int sUsers;
+
+    private Sht1xIoThread() {
+    }
+
+    /**
+     * Return the handler of the I/O thread, starting it if needed.  Each call must be
+     * matched by a call to {@link #release()}.
+     */
+    static synchronized Handler acquire() {
+        if (sUsers++ == 0) {
+            sThread = new HandlerThread(TAG);
+            sThread.start();
+            sHandler = new Handler(sThread.getLooper());
+        }
+        return sHandler;
+    }
+
+    static synchronized void release() {
+        if (sUsers == 0) {
+            throw new IllegalStateException("I/O thread released more often than acquired");
+        }
+        if (--sUsers == 0) {
+            // Let anything already posted (like unregistering callbacks) finish first
+            sThread.quitSafely();
+            sThread = null;
+            sHandler = null;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package net.jpuderer.android.things.drivers.sht1x;
+
+import com.google.android.things.pio.Gpio;
+
+import net.jpuderer.android.things.drivers.common.EdgeTiming;
+import net.jpuderer.android.things.drivers.common.GpioTransaction;
+import net.jpuderer.android.things.drivers.common.LatencyHistogram;
+
+import java.io.IOException;
+
+/**
+ * The SHT1x serial protocol, for one or more sensors sharing an SCK pin, each with its own
+ * DATA pin.  With several sensors they are driven in lockstep: each SCK pulse shifts a bit
+ * in or out of every sensor at once.
+ *
+ * Each operation is recorded into a reused {@link GpioTransaction} and run in one go.  ACKs
+ * and data are returned for each sensor, and the caller decides what a missing ACK or bad CRC
+ * means.  Not thread safe.
+ */
+class Sht1xProtocol {
+    // ACK results of a command or written byte, for each sensor
+    static final int ACK = 0;
+    static final int NO_ACK = 1;
+    static final int NO_MEASUREMENT_ACK = 2;
+
+    // Index of SCK in the transaction.  DATA pins follow it.
+    private static final int PIN_SCK = 0;
+
+    // Most bits an operation reads from each sensor (two data bytes and a CRC)
+    private static final int MAX_BITS = 24;
+
+    private final int mSensorCount;
+    private final GpioTransaction mTransaction;
+    private final EdgeTiming mEdgeTiming;
+    // Levels sampled by the last operation, one per sensor for each bit
+    private final boolean[] mSamples;
+    private int mSckDelay;
+
+    /**
+     * @param timing Histogram to record the duration of each operation in, or null.
+     * @param edgeTiming Spacing of SCK edges, which the achieved clock is recorded in.
+     */
+    Sht1xProtocol(LatencyHistogram timing, EdgeTiming edgeTiming, Gpio sck, Gpio... data) {
+        mSensorCount = data.length;
+        Gpio[] pins = new Gpio[data.length + 1];
+        pins[PIN_SCK] = sck;
+        System.arraycopy(data, 0, pins, 1, data.length);
+        mTransaction = new GpioTransaction(timing, pins);
+        mEdgeTiming = edgeTiming;
+        mSckDelay = edgeTiming.getDelayNanos();
+        mSamples = new boolean[MAX_BITS * data.length];
+    }
+
+    /**
+     * Measure how long the GPIO calls take, to space the SCK edges accordingly.
+     */
+    void calibrate(Gpio pin) throws IOException {
+        mEdgeTiming.calibrate(pin);
+        mSckDelay = mEdgeTiming.getDelayNanos();
+    }
+
+    static String ackMessage(int ack, int command) {
+        return String.format(ack == NO_MEASUREMENT_ACK
+                ? "Sensor did not send measurement ACK for command: 0x%x"
+                : "Sensor did not send command ACK: 0x%x", command);
+    }
+
+    /**
+     * Send a command to every sensor.
+     * @param acks Receives {@link #ACK}, {@link #NO_ACK} or {@link #NO_MEASUREMENT_ACK} for
+     *             each sensor.
+     */
+    void sendCommand(int command, int[] acks) throws IOException {
+        GpioTransaction transaction = mTransaction.clear();
+        outputData(transaction, true);
+        transaction.output(PIN_SCK, true)
+                .delay(mSckDelay);
+
+        // Send "Transmission start sequence"
+        writeData(transaction, false);
+        transaction.clear(PIN_SCK).delay(mSckDelay)
+                .set(PIN_SCK).delay(mSckDelay);
+        writeData(transaction, true);
+        transaction.clear(PIN_SCK).delay(mSckDelay);
+
+        // Send the command
+        shiftOutByte(transaction, command);
+
+        // Sensors should acknowledge the command by changing the DATA line
+        // from high to low when we pulse SCK.
+        inputData(transaction);
+        transaction.set(PIN_SCK).delay(mSckDelay);
+        readData(transaction);
+        transaction.clear(PIN_SCK).delay(mSckDelay);
+        // When reading the status, the sensor starts sending it straight away.  Otherwise it
+        // releases DATA until the measurement is done.
+        boolean measurement = command != Sht1xSensor.SHT1X_CMD_READ_STATUS;
+        if (measurement) readData(transaction);
+        execute();
+
+        for (int i = 0; i < mSensorCount; i++) {
+            if (mSamples[i]) {
+                acks[i] = NO_ACK;
+            } else if (measurement && !mSamples[mSensorCount + i]) {
+                acks[i] = NO_MEASUREMENT_ACK;
+            } else {
+                acks[i] = ACK;
+            }
+        }
+    }
+
+    /**
+     * Write one byte after a command to every sensor.
+     * @param acks Receives {@link #ACK} or {@link #NO_ACK} for each sensor.
+     */
+    void writeByte(int value, int[] acks) throws IOException {
+        GpioTransaction transaction = mTransaction.clear();
+        outputData(transaction, true);
+        shiftOutByte(transaction, value);
+        inputData(transaction);
+        transaction.set(PIN_SCK).delay(mSckDelay);
+        readData(transaction);
+        transaction.clear(PIN_SCK).delay(mSckDelay);
+        execute();
+
+        for (int i = 0; i < mSensorCount; i++) {
+            acks[i] = mSamples[i] ? NO_ACK : ACK;
+        }
+    }
+
+    /**
+     * Read bytes sent by every sensor, most significant first, acknowledging all but the
+     * last, and end the transfer.
+     * @param values Receives the bytes of each sensor, as one big endian value.
+     */
+    void readBytes(int count, int[] values) throws IOException {
+        GpioTransaction transaction = mTransaction.clear();
+        inputData(transaction);
+        transaction.output(PIN_SCK, true);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sendAck(transaction);
+            shiftInByte(transaction);
+        }
+        endTransfer(transaction);
+
+        int bits = execute();
+        for (int i = 0; i < mSensorCount; i++) {
+            int value = 0;
+            for (int bit = i; bit < bits; bit += mSensorCount) {
+                value = value * 2 + (mSamples[bit] ? 1 : 0);
+            }
+            values[i] = value;
+        }
+    }
+
+    /**
+     * Reset the serial interface of every sensor.  Can be useful if a sensor has a pending
+     * result that was never retrieved, or has interpreted some line noise as an SCK pulse.
+     */
+    void connectionReset() throws IOException {
+        GpioTransaction transaction = mTransaction.clear();
+        outputData(transaction, true);
+        transaction.output(PIN_SCK, true);
+        for (int i = 0; i < 10; i++) {
+            transaction.set(PIN_SCK).delay(mSckDelay)
+                    .clear(PIN_SCK).delay(mSckDelay);
+        }
+        execute();
+    }
+
+    // Run the transaction, and keep track of the clock frequency it achieved
+    private int execute() throws IOException {
+        int read = mTransaction.execute(mSamples);
+        mEdgeTiming.recordClock(mTransaction.getLastRisingEdges(PIN_SCK),
+                mTransaction.getLastDurationNanos());
+        return read;
+    }
+
+    // Acknowledge the byte just received, so that the sensors send the next one, and get
+    // ready to receive it.
+    private void sendAck(GpioTransaction transaction) {
+        outputData(transaction, true);
+        transaction.delay(mSckDelay);
+        writeData(transaction, false);
+        transaction.set(PIN_SCK).delay(mSckDelay)
+                .clear(PIN_SCK).delay(mSckDelay);
+        inputData(transaction);
+    }
+
+    // Shift in one byte
+    private void shiftInByte(GpioTransaction transaction) {
+        for (int i = 0; i < 8; i++) {
+            transaction.set(PIN_SCK).delay(mSckDelay);
+            readData(transaction);
+            transaction.clear(PIN_SCK).delay(mSckDelay);
+        }
+    }
+
+    // Shift out one byte, with DATA already an output
+    private void shiftOutByte(GpioTransaction transaction, int value) {
+        for (int i = 0; i < 8; i++) {
+            writeData(transaction, (value & (1 << 7 - i)) != 0);
+            transaction.set(PIN_SCK).delay(mSckDelay)
+                    .clear(PIN_SCK).delay(mSckDelay);
+        }
+    }
+
+    // End the transfer by leaving DATA high for the acknowledge clock, so that the sensors
+    // don't send anything more.
+    private void endTransfer(GpioTransaction transaction) {
+        outputData(transaction, true);
+        transaction.output(PIN_SCK, true).delay(mSckDelay)
+                .clear(PIN_SCK).delay(mSckDelay);
+    }
+
+    private void outputData(GpioTransaction transaction, boolean initiallyHigh) {
+        for (int i = 1; i <= mSensorCount; i++) {
+            transaction.output(i, initiallyHigh);
+        }
+    }
+
+    private void writeData(GpioTransaction transaction, boolean value) {
+        for (int i = 1; i <= mSensorCount; i++) {
+            transaction.write(i, value);
+        }
+    }
+
+    private void inputData(GpioTransaction transaction) {
+        for (int i = 1; i <= mSensorCount; i++) {
+            transaction.input(i);
+        }
+    }
+
+    private void readData(GpioTransaction transaction) {
+        for (int i = 1; i <= mSensorCount; i++) {
+            transaction.read(i);
+        }
+    }
+}
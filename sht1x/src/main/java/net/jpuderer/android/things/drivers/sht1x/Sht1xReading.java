@@ -0,0 +1,52 @@
+package net.jpuderer.android.things.drivers.sht1x;
+
+/**
+ * Temperature and humidity measured together in one cycle of an SHT1x sensor.
+ */
+public class Sht1xReading {
+    private float mTemperature;
+    private float mHumidity;
+    private long mTimestamp;
+    private long mSequence;
+
+    Sht1xReading(float temperature, float humidity, long timestampNanos, long sequence) {
+        set(temperature, humidity, timestampNanos, sequence);
+    }
+
+    // Only for readings the driver reuses, before handing them out again
+    void set(float temperature, float humidity, long timestampNanos, long sequence) {
+        mTemperature = temperature;
+        mHumidity = humidity;
+        mTimestamp = timestampNanos;
+        mSequence = sequence;
+    }
+
+    /**
+     * Temperature in degrees Celsius.
+     */
+    public float getTemperature() {
+        return mTemperature;
+    }
+
+    /**
+     * Relative humidity in percent.
+     */
+    public float getHumidity() {
+        return mHumidity;
+    }
+
+    /**
+     * Time the measurement completed, in nanoseconds of elapsed realtime.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Number of the reading.  Increases by one with each reading the sensor publishes, so
+     * readings with the same number are the same reading.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+}
@@ -7,31 +7,47 @@ import android.os.SystemClock;
 
 import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.GpioCallback;
-import com.google.android.things.pio.PeripheralManager;
+
+import net.jpuderer.android.things.drivers.common.AcquisitionPlanner;
+import net.jpuderer.android.things.drivers.common.AndroidThingsPeripherals;
+import net.jpuderer.android.things.drivers.common.Counter;
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+import net.jpuderer.android.things.drivers.common.DriverScheduler;
+import net.jpuderer.android.things.drivers.common.EdgeTiming;
+import net.jpuderer.android.things.drivers.common.LatencyHistogram;
+import net.jpuderer.android.things.drivers.common.PeripheralProvider;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-// TODO Note: Assumptions: 12bit mode, measurements in Celcius.
+// TODO Note: Assumptions: measurements in Celcius.
 // TODO: Good sensor docs for MMA7660FC
 @SuppressLint("DefaultLocale")
-public class Sht1xSensor implements AutoCloseable {
+public class Sht1xSensor implements AutoCloseable, AcquisitionPlanner.Task {
     private static final String TAG = Sht1xSensor.class.getSimpleName();
 
-    private static final int SHT1X_CMD_MEASURE_TEMPERATURE = 0b00000011;
-    private static final int SHT1X_CMD_MEASURE_HUMIDITY = 0b00000101;
-    private static final int SHT1X_CMD_READ_STATUS = 0b00000111;
-    private static final int SHT1X_CMD_WRITE_STATUS = 0b00000110;
-    private static final int SHT1X_SOFT_RESET = 0b00011110;
+    static final int SHT1X_CMD_MEASURE_TEMPERATURE = 0b00000011;
+    static final int SHT1X_CMD_MEASURE_HUMIDITY = 0b00000101;
+    static final int SHT1X_CMD_READ_STATUS = 0b00000111;
+    static final int SHT1X_CMD_WRITE_STATUS = 0b00000110;
+    static final int SHT1X_SOFT_RESET = 0b00011110;
 
     // Wait up to 1000ms for data from a measurement command
-    private static final int SHT1X_MEASUREMENT_TIMEOUT = 1000;
+    static final int SHT1X_MEASUREMENT_TIMEOUT = 1000;
+
+    // Time spent bit-banging commands and results each cycle, in ms, rounded up generously
+    private static final int SHT1X_TRANSFER_TIME = 5;
+
+    // How late periodic cycles and timeouts may run, so that they can share wakeups of the
+    // scheduler with other drivers.  Data ready polling is never delayed.
+    static final int SHT1X_CYCLE_SLACK = 20;
+    static final int SHT1X_TIMEOUT_SLACK = 100;
 
     // Vdd ranges from the data sheet
-    private static final float SHT1X_VDD_MIN = 2.4f;
-    private static final float SHT1X_VDD_TYPICAL = 3.3f;
-    private static final float SHT1X_VDD_MAX = 5.5f;
+    static final float SHT1X_VDD_MIN = 2.4f;
+    static final float SHT1X_VDD_TYPICAL = 3.3f;
+    static final float SHT1X_VDD_MAX = 5.5f;
 
     // Constants from data sheet for calculating temperature and humidity
     // in Celsius with 18bit sensor resolution.
@@ -42,41 +58,238 @@ public class Sht1xSensor implements AutoCloseable {
     private static final float T2 = 0.00008f;
     private static final float D2 = 0.01f;
 
+    // Constants for the low resolution mode (12bit temperature, 8bit humidity).
+    // C1, T1 and D1 are the same in both modes.
+    private static final float C2_LOW = 0.5872f;
+    private static final float C3_LOW = -4.0845e-4f;
+    private static final float T2_LOW = 0.00128f;
+    private static final float D2_LOW = 0.04f;
+
+    // Status register bits
+    static final int SHT1X_STATUS_LOW_RESOLUTION = 0b00000001;
+    private static final int SHT1X_STATUS_WRITABLE = 0b00000111;
+
+    /**
+     * 14 bit temperature and 12 bit humidity measurements.  The sensor's default.
+     */
+    public static final int RESOLUTION_HIGH = 0;
+
+    /**
+     * 12 bit temperature and 8 bit humidity measurements.  Conversions are about four times
+     * faster, so the sensor can be sampled more often without heating itself up.
+     */
+    public static final int RESOLUTION_LOW = 1;
+
     // According to the datasheet, the sensor should not be active for
     // more than 10% of the time to prevent self heating.  Sampling every
     // 5 seconds gives us lots of room to spare.
     public static final int SHT1X_MEASUREMENT_INTERVAL = 5000;
+    // Conversions are four times faster in low resolution mode
+    public static final int SHT1X_MEASUREMENT_INTERVAL_LOW_RESOLUTION = 1250;
+
+    public static final float SHT1X_DEFAULT_ACTIVE_BUDGET = 0.1f;
+
+    /**
+     * Wait for the sensor to signal data ready with a GPIO edge callback, registered for each
+     * measurement.  The default.
+     */
+    public static final int DATA_READY_EDGE = 0;
+
+    /**
+     * Learn how long each measurement takes, wait until just before it should be done, and
+     * then poll the DATA line.  Falls back to an edge callback if the data is late.
+     */
+    public static final int DATA_READY_PREDICTIVE = 1;
+
+    /**
+     * Measurements that can be made each cycle.  See {@link #setMeasurements(int...)}.
+     */
+    public static final int MEASUREMENT_TEMPERATURE = SHT1X_CMD_MEASURE_TEMPERATURE;
+    public static final int MEASUREMENT_HUMIDITY = SHT1X_CMD_MEASURE_HUMIDITY;
+
+    // Humidity is compensated from this temperature, when none has been measured
+    private static final float SHT1X_REFERENCE_TEMPERATURE = 25;
+
+    // Data ready polling: the first poll is made this fraction of the expected conversion
+    // time early (but at least 1ms), and polls are repeated every millisecond until the
+    // same amount of time after it was expected.
+    private static final int DATA_READY_GUARD_FRACTION = 16;
+    private static final int DATA_READY_POLL_INTERVAL = 1;
+
+    // Metrics only the SHT1x driver has: measurements whose data was ready when predicted,
+    // and those that needed the edge callback.
+    static final String METRIC_DATA_READY_PREDICTED = "data_ready_predicted";
+    static final String METRIC_DATA_READY_MISSED = "data_ready_missed";
+
+    // Conversion times from the datasheet, in ms.  Actual times vary by up to 15%.
+    static final int SHT1X_CONVERSION_TIME_8BIT = 20;
+    static final int SHT1X_CONVERSION_TIME_12BIT = 80;
+    static final int SHT1X_CONVERSION_TIME_14BIT = 320;
 
     public static final float SHT1X_TEMPERATURE_RESOLUTION = 0.01f;
+    public static final float SHT1X_TEMPERATURE_RESOLUTION_LOW = 0.04f;
     public static final float SHT1X_TEMPERATURE_MAX = 123.8f;
 
     public static final float SHT1X_HUMIDITY_RESOLUTION = 0.04f;
+    public static final float SHT1X_HUMIDITY_RESOLUTION_LOW = 0.4f;
     public static final float SHT1X_HUMIDITY_MAX = 100.0f;
 
     // Power consumption is a bit of a guess, since if the user has registered
     // both temperature and humidity sensors, the consumption is counted twice.
     public static final float SHT1X_POWER_CONSUMPTION_UA = 90;
 
-    private PeripheralManager mPeripheralManager;
     private Gpio mGpioData;
     private Gpio mGpioSck;
 
+    // Handler for listener callbacks
     private Handler mHandler;
-    private Timer mTimer;
+    // Scheduler shared by all drivers, which times the cycles, and the I/O thread shared by
+    // all SHT1x drivers, which all GPIO access happens on
+    private DriverScheduler mScheduler;
+    private Handler mIoHandler;
 
     // Is the sensor started (making measurements)?
-    private boolean mStarted;
+    private volatile boolean mStarted;
 
+    // Results of the current cycle, only used on the I/O thread with the lock held
     private float mTemperature;
     private float mHumidity;
 
+    // Latest reading, published at the end of each cycle and read from any thread without
+    // locking.  Written with the lock held, and mPublishCount is odd while the fields are
+    // being written, so readers retry if it was odd or changed while they were reading.
+    private volatile int mPublishCount;
+    private volatile float mPublishedTemperature;
+    private volatile float mPublishedHumidity;
+    private volatile long mPublishedTimestamp;
+    private volatile long mPublishedSequence;
     // If set, stored exception to throw when user asks for data
-    private IOException mLastException;
+    private volatile IOException mLastException;
+
+    // Readings older than this are reported as stale, unless 0
+    private volatile long mMaxAgeNanos;
+
+    private final DriverMetrics mMetrics;
+    private final Counter mFrames;
+    private final Counter mTimeouts;
+    private final Counter mGpioErrors;
+    private final Counter mChecksumErrors;
+    private final LatencyHistogram mCommandToDataReady;
+    private final LatencyHistogram mCallbackProcessing;
+    private final LatencyHistogram mTransactions;
+
+    // Minimum time SCK is held high or low, and DATA is held before an SCK edge
+    static final int SCK_HALF_CYCLE_NANOS = 100;
+
+    // Delay between SCK edges, after allowing for the time the GPIO calls take
+    private final EdgeTiming mEdgeTiming = new EdgeTiming(SCK_HALF_CYCLE_NANOS);
+
+    // Runs every bus access, and the ACKs and data it returns
+    private Sht1xProtocol mProtocol;
+    private final int[] mAcks = new int[1];
+    private final int[] mValues = new int[1];
+    private final Counter mDataReadyPredicted;
+    private final Counter mDataReadyMissed;
+
+    // Measurement state machine.  Each cycle runs the commands in mCommands in order:
+    // send the command, wait for the sensor to signal data ready, and read the data.
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_WAIT_DATA = 1;
+
+    // Commands measured each cycle, and the raw data read for each of them
+    private int[] mCommands = {
+            SHT1X_CMD_MEASURE_TEMPERATURE,
+            SHT1X_CMD_MEASURE_HUMIDITY,
+    };
+    private int[] mRawData = new int[mCommands.length];
+    // Last temperature measured, to compensate humidity measurements
+    private float mLastTemperature = Float.NaN;
+
+    private int mState = STATE_IDLE;
+    private int mStep;
+
+    // Reset the connection before the next cycle (after an error)
+    private boolean mNeedsReset;
+
+    private int mResolution = RESOLUTION_HIGH;
+    // Write (and verify) the status register before the next cycle.  Also done after an
+    // error, in case the sensor lost power and went back to its defaults.
+    private boolean mNeedsConfigure = true;
+
+    // Writable bits of the status register, which the CRC of each response depends on
+    private int mStatus;
+
+    // A measurement with a bad CRC is repeated straight away, but only this many times
+    // per cycle, so that a noisy bus can't keep the sensor converting (and heating up).
+    private static final int MAX_RETRIES_PER_CYCLE = 1;
+    private int mRetries;
+
+    // Requested time between measurements in ms, or 0 for the default
+    private int mMeasurementInterval;
+    // Largest fraction of the time the sensor may spend converting
+    private float mActiveBudget = SHT1X_DEFAULT_ACTIVE_BUDGET;
+
+    // When the current cycle started (uptime), and how long the sensor was converting in it
+    private long mCycleStartMillis;
+    private long mCycleActiveNanos;
+    // Moving average of the time the sensor is converting in each cycle
+    private long mActiveEstimateNanos;
+    // Time between cycles currently in use, and the shortest the active budget allows
+    private long mCurrentIntervalMillis;
+    private long mMinIntervalMillis;
+
+    // Completed by the next cycle, if a measurement was requested
+    private CompletableFuture<Sht1xReading> mPendingMeasurement;
+    // Timestamp for the reading of the next cycle, given by an AcquisitionPlanner, or 0
+    private long mAcquireTimestamp;
+
+    // Time the current measurement command was sent
+    private long mCommandNanos;
+
+    private int mDataReadyStrategy = DATA_READY_EDGE;
+    // Waiting for the data ready callback
+    private boolean mWaitingForEdge;
+    // Next data ready poll is the first one for the current step
+    private boolean mFirstPoll;
+    // Moving average of the conversion time of each command, and the resolution it is for
+    private long[] mConversionEstimateNanos = new long[mCommands.length];
+    private int mEstimateResolution = -1;
+
+    public interface OnReadingListener {
+        /**
+         * Called on the sensor's handler thread with each completed measurement.
+         */
+        void onReading(float temperature, float humidity);
+    }
+
+    private volatile OnReadingListener mListener;
+    // Set on the I/O thread after publishing a reading, and cleared by the dispatch before it
+    // reads the published reading, so the dispatch never misses the latest one
+    private volatile boolean mDispatchPending;
+
+    // Reads the published reading like readReading(), so that the handler never waits for
+    // the lock, which is held for whole bus transfers
+    private final Runnable mDispatchReading = new Runnable() {
+        @Override
+        public void run() {
+            OnReadingListener listener = mListener;
+            mDispatchPending = false;
+            float temperature;
+            float humidity;
+            int count;
+            do {
+                count = mPublishCount;
+                temperature = mPublishedTemperature;
+                humidity = mPublishedHumidity;
+            } while ((count & 1) != 0 || count != mPublishCount);
+            if (listener != null) listener.onReading(temperature, humidity);
+        }
+    };
 
     // We calculate the D1 constant, since it varies according to supply
     // voltage and can be represented as a simple linear formula.
     private float mD1;  // Gets assigned in the constructor
-    private float calculateD1(float vdd) {
+    static float calculateD1(float vdd) {
         return (-0.267568f * vdd + -38.756757f);
     }
 
@@ -106,33 +319,48 @@ public class Sht1xSensor implements AutoCloseable {
      * @param gpioData Pin connected to SCK on the sensor.
      * @param gpioSck Pin connected to SCK on the sensor.
      * @param vdd Supply voltage (Vdd) used to power the sensor.
-     * @param handler
+     * @param handler Handler for {@link OnReadingListener} callbacks.  GPIO access happens on
+     *                a separate I/O thread shared by all SHT1x drivers.
      * @throws IOException Sensor error
      */
     public Sht1xSensor(String gpioData, String gpioSck, float vdd, Handler handler) throws IOException {
-        if ((vdd < SHT1X_VDD_MIN) || (vdd > SHT1X_VDD_MAX)) {
-            final String msg = String.format("Vdd must be between %.1f and %.1f",
-                    SHT1X_VDD_MIN, SHT1X_VDD_MAX);
-            throw new IllegalArgumentException(msg);
-        }
-        mD1 = calculateD1(vdd);
-
-        // Get the default handler if handler is not specified
-        mHandler = new Handler(handler == null ? Looper.myLooper() : handler.getLooper());
+        this(AndroidThingsPeripherals.getInstance(), gpioData, gpioSck, vdd, handler);
+    }
 
-        // Timer for scheduling measurements.
-        mTimer = new Timer();
+    /**
+     * Create a new SHT1x sensor driver attached to GPIOs opened with the given provider, such
+     * as in-memory fakes to run off-device.
+     * @param peripherals Provider to open the GPIOs with.
+     * @see #Sht1xSensor(String, String, float, Handler)
+     */
+    public Sht1xSensor(PeripheralProvider peripherals, String gpioData, String gpioSck,
+            float vdd, Handler handler) throws IOException {
+        this(vdd, handler, gpioData + "," + gpioSck);
 
-        mPeripheralManager = PeripheralManager.getInstance();
         try {
-            mGpioData = mPeripheralManager.openGpio(gpioData);
-            mGpioData.setActiveType(Gpio.ACTIVE_HIGH);
+            mGpioData = peripherals.openGpio(gpioData);
+            mGpioSck = peripherals.openGpio(gpioSck);
+            initGpios();
+        } catch (IOException|RuntimeException e) {
+            try {
+                close();
+            } catch (IOException|RuntimeException ignored) {
+            }
+            throw e;
+        }
+    }
 
-            mGpioSck = mPeripheralManager.openGpio(gpioSck);
-            mGpioSck.setActiveType(Gpio.ACTIVE_HIGH);
+    /**
+     * Create a sensor driver using already opened GPIOs, such as those of the simulator the
+     * unit tests use.  The GPIOs are closed with the driver.
+     */
+    Sht1xSensor(Gpio gpioData, Gpio gpioSck, float vdd, Handler handler) throws IOException {
+        this(vdd, handler, gpioData.getName() + "," + gpioSck.getName());
 
-            // Reset the connection, in case the sensor is in a strange state.
-            connectionReset();
+        mGpioData = gpioData;
+        mGpioSck = gpioSck;
+        try {
+            initGpios();
         } catch (IOException|RuntimeException e) {
             try {
                 close();
@@ -142,38 +370,128 @@ public class Sht1xSensor implements AutoCloseable {
         }
     }
 
+    private Sht1xSensor(float vdd, Handler handler, String name) {
+        if ((vdd < SHT1X_VDD_MIN) || (vdd > SHT1X_VDD_MAX)) {
+            final String msg = String.format("Vdd must be between %.1f and %.1f",
+                    SHT1X_VDD_MIN, SHT1X_VDD_MAX);
+            throw new IllegalArgumentException(msg);
+        }
+        mD1 = calculateD1(vdd);
+        mActiveEstimateNanos = TimeUnit.MILLISECONDS.toNanos(getNominalActiveTime());
+
+        mMetrics = new DriverMetrics(TAG + ":" + name);
+        mFrames = mMetrics.counter(DriverMetrics.FRAMES);
+        mTimeouts = mMetrics.counter(DriverMetrics.TIMEOUTS);
+        mGpioErrors = mMetrics.counter(DriverMetrics.GPIO_ERRORS);
+        mChecksumErrors = mMetrics.counter(DriverMetrics.CHECKSUM_ERRORS);
+        mCommandToDataReady = mMetrics.histogram(DriverMetrics.COMMAND_TO_DATA_READY);
+        mCallbackProcessing = mMetrics.histogram(DriverMetrics.CALLBACK_PROCESSING);
+        mTransactions = mMetrics.histogram(DriverMetrics.TRANSACTION);
+        mDataReadyPredicted = mMetrics.counter(METRIC_DATA_READY_PREDICTED);
+        mDataReadyMissed = mMetrics.counter(METRIC_DATA_READY_MISSED);
+
+        // Get the default handler if handler is not specified
+        mHandler = new Handler(handler == null ? Looper.myLooper() : handler.getLooper());
+        mScheduler = DriverScheduler.acquire();
+        mIoHandler = Sht1xIoThread.acquire();
+    }
+
+    private void initGpios() throws IOException {
+        mProtocol = new Sht1xProtocol(mTransactions, mEdgeTiming, mGpioSck, mGpioData);
+        mProtocol.calibrate(mGpioData);
+        mGpioData.setActiveType(Gpio.ACTIVE_HIGH);
+        mGpioSck.setActiveType(Gpio.ACTIVE_HIGH);
+
+        // Reset the connection, in case the sensor is in a strange state.
+        connectionReset();
+    }
+
     // Start making sensor measurements
     public void start() {
         synchronized (this) {
             if (mStarted) return;
-            mLastException = new IOException("No data available");
+            publishError(new IOException("No data available"));
             mStarted = true;
-            mTimer = new Timer();
-            mTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    doMeasurements();
-                }
-            }, 0, SHT1X_MEASUREMENT_INTERVAL);
+            mIoHandler.post(mStartCycle);
         }
     }
 
-    // Stop making sensor measurements
+    // Stop making sensor measurements, including any requested with measure()
     public void stop() {
         synchronized (this) {
-            if (!mStarted) return;
+            if (!mStarted && mPendingMeasurement == null && mAcquireTimestamp == 0) return;
             mStarted = false;
-            mTimer.cancel();
-            mTimer = null;
+            mAcquireTimestamp = 0;
+            removeIo(mStartCycle);
+            cancelCycle();
+            completePendingMeasurement(null, new IOException("Sensor stopped"));
         }
     }
 
+    /**
+     * Measure the temperature and humidity as soon as possible, whether or not the sensor
+     * is started.  Requests made while a measurement is already in progress share its result.
+     * The measurement is delayed if needed to stay within the active budget.
+     * @return Future completed on the sensor's handler with the reading.
+     */
+    public synchronized CompletableFuture<Sht1xReading> measure() {
+        if (mScheduler == null) {
+            throw new IllegalStateException("Sensor is closed");
+        }
+        if (mPendingMeasurement == null) {
+            mPendingMeasurement = new CompletableFuture<>();
+            if (mState == STATE_IDLE) {
+                // Replaces the next periodic cycle, if there is one
+                removeIo(mStartCycle);
+                postIo(mStartCycle, Math.max(SystemClock.uptimeMillis(),
+                        mCycleStartMillis + mMinIntervalMillis), 0);
+            }
+        }
+        return mPendingMeasurement;
+    }
+
+    /**
+     * Time a measurement keeps the sensor busy, in milliseconds: its conversions (as measured
+     * so far) and transfers.  Used by {@link AcquisitionPlanner}.
+     */
+    @Override
+    public synchronized long getCostMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mActiveEstimateNanos) + SHT1X_TRANSFER_TIME;
+    }
+
+    /**
+     * Start a measurement straight away on the I/O thread, for an {@link AcquisitionPlanner}.
+     * The reading is published with the given timestamp instead of the time it completed.
+     * Does nothing if a measurement is still running, or the sensor is closed.
+     */
+    @Override
+    public synchronized void acquire(long timestampNanos) {
+        // The planner may still run the slot of a sensor that was closed
+        if (mScheduler == null) return;
+        // A cycle still running keeps its own timestamp, and this slot is skipped
+        if (mState != STATE_IDLE) return;
+        mAcquireTimestamp = timestampNanos;
+        // Start in the slot itself.  The planner already spaces acquisitions by its period.
+        // Called on the scheduler's thread, so the transfers are left to the I/O thread.
+        removeIo(mStartCycle);
+        mIoHandler.post(mStartCycle);
+    }
+
     /**
      * Release the GPIO pins
      */
     @Override
     public void close() throws IOException {
         stop();
+        // Before the pins are closed, so that a late acquire() finds the sensor closed
+        synchronized (this) {
+            if (mScheduler != null) {
+                mScheduler = null;
+                mIoHandler = null;
+                DriverScheduler.release();
+                Sht1xIoThread.release();
+            }
+        }
         if (mGpioData != null) {
             try {
                 mGpioData.close();
@@ -191,271 +509,734 @@ public class Sht1xSensor implements AutoCloseable {
         }
     }
 
-    public float readTemperature() throws IOException {
-        if (!mStarted) {
-            throw new IOException("Sensor has not started");
-        } else if (mLastException != null) {
-            throw mLastException;
+    /**
+     * Return the driver's metrics: completed measurements (frames), timeouts, GPIO errors,
+     * CRC errors (checksum errors), time from measurement command to data ready, time spent
+     * reading the result, and how long each bus transaction took on the I/O thread.  With
+     * {@link #DATA_READY_PREDICTIVE}, also how often the data was ready when predicted
+     * ({@code data_ready_predicted}) and how often it wasn't ({@code data_ready_missed}).
+     */
+    public DriverMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Average frequency of the SCK clock while transferring data, in Hz, measured from the
+     * GPIO calls actually made.  Mostly limited by how long each GPIO call takes.
+     */
+    public float getClockFrequency() {
+        return mEdgeTiming.getClockFrequency();
+    }
+
+    /**
+     * Set the resolution of the measurements.  The sensor's status register is written (and
+     * verified) before the next measurement.  Can only be changed while the sensor is stopped.
+     * @param resolution {@link #RESOLUTION_HIGH} or {@link #RESOLUTION_LOW}.
+     */
+    public synchronized void setResolution(int resolution) {
+        if (resolution != RESOLUTION_HIGH && resolution != RESOLUTION_LOW) {
+            throw new IllegalArgumentException("Unknown resolution: " + resolution);
         }
-        return mTemperature;
+        if (mStarted) {
+            throw new IllegalStateException("Cannot change resolution while started");
+        }
+        if (resolution == mResolution) return;
+        mResolution = resolution;
+        mNeedsConfigure = true;
+        mActiveEstimateNanos = TimeUnit.MILLISECONDS.toNanos(getNominalActiveTime());
     }
 
-    public float readHumidity() throws IOException {
-        if (!mStarted) {
-            throw new IOException("Sensor has not started");
-        } else if (mLastException != null) {
-            throw mLastException;
+    public synchronized int getResolution() {
+        return mResolution;
+    }
+
+    public float getTemperatureResolution() {
+        return getResolution() == RESOLUTION_LOW
+                ? SHT1X_TEMPERATURE_RESOLUTION_LOW : SHT1X_TEMPERATURE_RESOLUTION;
+    }
+
+    public float getHumidityResolution() {
+        return getResolution() == RESOLUTION_LOW
+                ? SHT1X_HUMIDITY_RESOLUTION_LOW : SHT1X_HUMIDITY_RESOLUTION;
+    }
+
+    /**
+     * Set the requested time between measurements.  Measurements are spaced further apart
+     * if needed to keep the sensor within its active budget.
+     * @param intervalMs Time between measurements in milliseconds, or 0 for the default of
+     *                   the current resolution.
+     * @see #setActiveBudget(float)
+     */
+    public synchronized void setMeasurementInterval(int intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("Interval must not be negative");
         }
-        return mHumidity;
+        mMeasurementInterval = intervalMs;
     }
 
-    private void doMeasurements() {
-        final Object timeoutToken = new Object();
+    /**
+     * Requested time between measurements, in milliseconds.
+     */
+    public synchronized int getMeasurementInterval() {
+        if (mMeasurementInterval != 0) return mMeasurementInterval;
+        return mResolution == RESOLUTION_LOW
+                ? SHT1X_MEASUREMENT_INTERVAL_LOW_RESOLUTION : SHT1X_MEASUREMENT_INTERVAL;
+    }
 
-        final GpioCallback gpioCallback = new GpioCallback() {
-            @Override
-            public boolean onGpioEdge(Gpio gpio) {
-                mHandler.removeCallbacksAndMessages(timeoutToken);
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        finishTempMeasurement();
-                    }
-                });
-                return false; // Do not listen for more events
-            }
+    /**
+     * Set the largest fraction of the time the sensor may spend converting.  The datasheet
+     * recommends no more than 10% (the default), to keep the sensor from heating itself up.
+     */
+    public synchronized void setActiveBudget(float budget) {
+        if (!(budget > 0 && budget <= 1)) {
+            throw new IllegalArgumentException("Budget must be greater than 0, and at most 1");
+        }
+        mActiveBudget = budget;
+    }
 
-            @Override
-            public void onGpioError(Gpio gpio, int error) {
-                mHandler.removeCallbacksAndMessages(timeoutToken);
-                mLastException = new IOException("GPIO error: " + error);
-            }
-        };
+    public synchronized float getActiveBudget() {
+        return mActiveBudget;
+    }
 
-        Runnable measurementTimeout = new Runnable() {
-            @Override
-            public void run() {
-                mGpioData.unregisterGpioCallback(gpioCallback);
-                mLastException = new IOException("Timeout waiting for temperature measurement.");
+    /**
+     * Set how to wait for the sensor to finish each measurement.  Takes effect from the next
+     * measurement.
+     * @param strategy {@link #DATA_READY_EDGE} or {@link #DATA_READY_PREDICTIVE}.
+     */
+    public synchronized void setDataReadyStrategy(int strategy) {
+        if (strategy != DATA_READY_EDGE && strategy != DATA_READY_PREDICTIVE) {
+            throw new IllegalArgumentException("Unknown data ready strategy: " + strategy);
+        }
+        mDataReadyStrategy = strategy;
+    }
+
+    public synchronized int getDataReadyStrategy() {
+        return mDataReadyStrategy;
+    }
+
+    /**
+     * Fraction of the measurements made with {@link #DATA_READY_PREDICTIVE} whose data was
+     * found by polling, without falling back to an edge callback, or 0 if there weren't any.
+     */
+    public float getDataReadyHitRate() {
+        long predicted = mDataReadyPredicted.get();
+        long total = predicted + mDataReadyMissed.get();
+        return total == 0 ? 0 : (float) predicted / total;
+    }
+
+    /**
+     * Shortest time between measurements the active budget allows with the datasheet
+     * conversion times, in milliseconds.
+     */
+    public synchronized int getMinMeasurementInterval() {
+        return (int) Math.ceil(getNominalActiveTime() / mActiveBudget);
+    }
+
+    /**
+     * Time between measurements the sensor is currently running at, in milliseconds, or 0 if
+     * it isn't started.  Longer than the requested interval if conversions take too long to
+     * fit in the active budget.
+     */
+    public synchronized long getCurrentMeasurementInterval() {
+        return mStarted ? mCurrentIntervalMillis : 0;
+    }
+
+    /**
+     * Set the measurements made each cycle, in order.  By default, the temperature and then
+     * the humidity.  Humidity is compensated using the last temperature measured before it
+     * (in the same or an earlier cycle), or 25C if none was.  Quantities a cycle doesn't
+     * measure are reported as NaN.  Can only be changed while the sensor is stopped.
+     * @param measurements {@link #MEASUREMENT_TEMPERATURE} and {@link #MEASUREMENT_HUMIDITY},
+     *                     in any order, and repeated if needed.
+     */
+    public synchronized void setMeasurements(int... measurements) {
+        if (measurements.length == 0) {
+            throw new IllegalArgumentException("Need at least one measurement");
+        }
+        for (int measurement : measurements) {
+            if (measurement != MEASUREMENT_TEMPERATURE && measurement != MEASUREMENT_HUMIDITY) {
+                throw new IllegalArgumentException("Unknown measurement: " + measurement);
             }
-        };
+        }
+        if (mStarted || mPendingMeasurement != null || mState != STATE_IDLE) {
+            throw new IllegalStateException("Cannot change measurements while measuring");
+        }
+        mCommands = measurements.clone();
+        mRawData = new int[mCommands.length];
+        mConversionEstimateNanos = new long[mCommands.length];
+        mEstimateResolution = -1;
+        mActiveEstimateNanos = TimeUnit.MILLISECONDS.toNanos(getNominalActiveTime());
+    }
 
-        try {
-            // Send the measurement command
-            sendCommand(SHT1X_CMD_MEASURE_TEMPERATURE);
+    public synchronized int[] getMeasurements() {
+        return mCommands.clone();
+    }
 
-            mGpioData.setDirection(Gpio.DIRECTION_IN);
-            mGpioData.setEdgeTriggerType(Gpio.EDGE_FALLING);
+    // Time the sensor spends converting each cycle, according to the datasheet
+    private int getNominalActiveTime() {
+        int time = 0;
+        for (int command : mCommands) {
+            time += getNominalConversionTime(command);
+        }
+        return time;
+    }
 
-            // Register the callback for when data is available
-            mGpioData.registerGpioCallback(mHandler, gpioCallback);
+    // Conversion time of a measurement command at the current resolution, from the datasheet
+    private int getNominalConversionTime(int command) {
+        return getNominalConversionTime(command, mResolution);
+    }
 
-            // Set a timeout, in case we don't receive data.
-            mHandler.postAtTime(measurementTimeout, timeoutToken,
-                    SystemClock.uptimeMillis() + SHT1X_MEASUREMENT_TIMEOUT);
-        } catch (IOException e) {
-            mGpioData.unregisterGpioCallback(gpioCallback);
-            mHandler.removeCallbacksAndMessages(timeoutToken);
-            mLastException = e;
+    static int getNominalConversionTime(int command, int resolution) {
+        if (command == SHT1X_CMD_MEASURE_TEMPERATURE) {
+            return resolution == RESOLUTION_LOW
+                    ? SHT1X_CONVERSION_TIME_12BIT : SHT1X_CONVERSION_TIME_14BIT;
         }
+        return resolution == RESOLUTION_LOW
+                ? SHT1X_CONVERSION_TIME_8BIT : SHT1X_CONVERSION_TIME_12BIT;
     }
 
-    // Collect the temperature measurement, and invoke the callback
-    private void finishTempMeasurement() {
-        int rawTemperature;
-        try {
-            rawTemperature = readData();
-            skipCrc();
-        } catch (IOException e) {
-            mLastException = e;
-            return;
+    /**
+     * Set a listener to be called on the sensor's handler with each completed measurement.
+     * If the handler falls behind, only the latest measurement is delivered.
+     */
+    public void setOnReadingListener(OnReadingListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Report readings older than the given age as stale, by throwing an IOException from the
+     * read methods instead of returning them.
+     * @param maxAgeMs Maximum age in milliseconds, or 0 to always return the last reading.
+     */
+    public void setMaxAge(long maxAgeMs) {
+        if (maxAgeMs < 0) {
+            throw new IllegalArgumentException("Maximum age must not be negative");
         }
-        mTemperature = (mD1 + D2 * rawTemperature);
-        getHumidityMeasurement();
+        mMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
     }
 
-    private void getHumidityMeasurement() {
-        final Object timeoutToken = new Object();
+    /**
+     * Return the latest reading, with the temperature and humidity from the same cycle.
+     * Never blocks on the sensor.  Readings made with {@link #measure()} can be read back
+     * whether or not the sensor is started.
+     * @throws IOException There is no reading yet, the last cycle failed, or the reading is
+     *                     older than the maximum age.
+     */
+    public Sht1xReading readReading() throws IOException {
+        float temperature;
+        float humidity;
+        long timestamp;
+        long sequence;
+        IOException e;
+        int count;
+        do {
+            count = mPublishCount;
+            temperature = mPublishedTemperature;
+            humidity = mPublishedHumidity;
+            timestamp = mPublishedTimestamp;
+            sequence = mPublishedSequence;
+            e = mLastException;
+        } while ((count & 1) != 0 || count != mPublishCount);
+        checkReading(timestamp, sequence, e);
+        return new Sht1xReading(temperature, humidity, timestamp, sequence);
+    }
 
-        final GpioCallback gpioCallback = new GpioCallback() {
-            @Override
-            public boolean onGpioEdge(Gpio gpio) {
-                mHandler.removeCallbacksAndMessages(timeoutToken);
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        finishMeasurements();
-                    }
-                });
-                return false; // Do not listen for more events
-            }
+    public float readTemperature() throws IOException {
+        float temperature;
+        long timestamp;
+        long sequence;
+        IOException e;
+        int count;
+        do {
+            count = mPublishCount;
+            temperature = mPublishedTemperature;
+            timestamp = mPublishedTimestamp;
+            sequence = mPublishedSequence;
+            e = mLastException;
+        } while ((count & 1) != 0 || count != mPublishCount);
+        checkReading(timestamp, sequence, e);
+        return temperature;
+    }
 
-            @Override
-            public void onGpioError(Gpio gpio, int error) {
-                mHandler.removeCallbacksAndMessages(timeoutToken);
-                mLastException = new IOException("GPIO error: " + error);
+    public float readHumidity() throws IOException {
+        float humidity;
+        long timestamp;
+        long sequence;
+        IOException e;
+        int count;
+        do {
+            count = mPublishCount;
+            humidity = mPublishedHumidity;
+            timestamp = mPublishedTimestamp;
+            sequence = mPublishedSequence;
+            e = mLastException;
+        } while ((count & 1) != 0 || count != mPublishCount);
+        checkReading(timestamp, sequence, e);
+        return humidity;
+    }
+
+    // Called periodically by the timer to start a measurement cycle on the handler
+    private final Runnable mStartCycle = new Runnable() {
+        @Override
+        public void run() {
+            startCycle();
+        }
+    };
+
+    private final Runnable mReadData = new Runnable() {
+        @Override
+        public void run() {
+            readStep();
+        }
+    };
+
+    private final Runnable mMeasurementTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onMeasurementTimeout();
+        }
+    };
+
+    private final Runnable mPollData = new Runnable() {
+        @Override
+        public void run() {
+            pollData();
+        }
+    };
+
+    private final GpioCallback mDataReadyCallback = new GpioCallback() {
+        @Override
+        public boolean onGpioEdge(Gpio gpio) {
+            synchronized (Sht1xSensor.this) {
+                // The sensor may have been closed since the edge was queued
+                if (mScheduler == null) return false;
+                // An edge queued before the callback was unregistered can arrive in a later
+                // step.  Ignore it unless we are waiting for one, and the data is ready.
+                if (mState != STATE_WAIT_DATA || !mWaitingForEdge) return false;
+                try {
+                    if (mGpioData.getValue()) return true;
+                } catch (IOException e) {
+                    mGpioErrors.increment();
+                    failCycle(e);
+                    return false;
+                }
+                mWaitingForEdge = false;
+                onDataReady(System.nanoTime() - mCommandNanos);
+                // Read the data once the callback has returned.  Posted with the lock held,
+                // so that close() can't release the I/O thread in between.
+                mIoHandler.post(mReadData);
             }
-        };
+            return false; // Do not listen for more events
+        }
 
-        Runnable measurementTimeout = new Runnable() {
-            @Override
-            public void run() {
-                mGpioData.unregisterGpioCallback(gpioCallback);
-                mLastException = new IOException("Timeout waiting for humidity measurement.");
+        @Override
+        public void onGpioError(Gpio gpio, int error) {
+            mGpioErrors.increment();
+            synchronized (Sht1xSensor.this) {
+                if (mScheduler == null || mState != STATE_WAIT_DATA) return;
+                removeIo(mMeasurementTimeout);
+                failCycle(new IOException("GPIO error: " + error));
+            }
+        }
+    };
+
+    // Start a measurement cycle, unless the last one is still running
+    private synchronized void startCycle() {
+        if (mState != STATE_IDLE) return;
+        if (!mStarted && mPendingMeasurement == null && mAcquireTimestamp == 0) return;
+        mCycleStartMillis = SystemClock.uptimeMillis();
+        mCycleActiveNanos = 0;
+        if (mNeedsReset) {
+            try {
+                connectionReset();
+            } catch (IOException e) {
+                mGpioErrors.increment();
+                failCycle(e);
+                return;
+            }
+            mNeedsReset = false;
+        }
+        if (mNeedsConfigure) {
+            try {
+                configureStatus();
+            } catch (IOException e) {
+                mGpioErrors.increment();
+                failCycle(e);
+                return;
+            }
+            mNeedsConfigure = false;
+        }
+        if (mEstimateResolution != mResolution) {
+            for (int i = 0; i < mCommands.length; i++) {
+                mConversionEstimateNanos[i] = TimeUnit.MILLISECONDS.toNanos(
+                        getNominalConversionTime(mCommands[i]));
             }
-        };
+            mEstimateResolution = mResolution;
+        }
+        mStep = 0;
+        mRetries = 0;
+        sendStep();
+    }
 
+    // Send the command for the current step, and wait for its data
+    private void sendStep() {
+        final int command = mCommands[mStep];
         try {
             // Send the measurement command
-            sendCommand(SHT1X_CMD_MEASURE_HUMIDITY);
+            sendCommand(command);
+            mCommandNanos = System.nanoTime();
 
             mGpioData.setDirection(Gpio.DIRECTION_IN);
-            mGpioData.setEdgeTriggerType(Gpio.EDGE_FALLING);
-
-            // Register the callback for when data is available
-            mGpioData.registerGpioCallback(mHandler, gpioCallback);
+            mState = STATE_WAIT_DATA;
+
+            final long now = SystemClock.uptimeMillis();
+            if (mDataReadyStrategy == DATA_READY_PREDICTIVE) {
+                // Sleep until just before the data should be ready
+                final long estimate = mConversionEstimateNanos[mStep];
+                mFirstPoll = true;
+                postIo(mPollData, now
+                        + TimeUnit.NANOSECONDS.toMillis(estimate - getDataReadyGuard(estimate)), 0);
+            } else {
+                waitForEdge();
+            }
 
             // Set a timeout, in case we don't receive data.
-            mHandler.postAtTime(measurementTimeout, timeoutToken,
-                    SystemClock.uptimeMillis() + SHT1X_MEASUREMENT_TIMEOUT);
+            postIo(mMeasurementTimeout, now + SHT1X_MEASUREMENT_TIMEOUT, SHT1X_TIMEOUT_SLACK);
         } catch (IOException e) {
-            mGpioData.unregisterGpioCallback(gpioCallback);
-            mHandler.removeCallbacksAndMessages(timeoutToken);
-            mLastException = e;
+            mGpioErrors.increment();
+            failCycle(e);
         }
     }
 
-    private void finishMeasurements() {
-        int rawHumidity;
+    // Register the callback for when data is available
+    private void waitForEdge() throws IOException {
+        mGpioData.setEdgeTriggerType(Gpio.EDGE_FALLING);
+        mGpioData.registerGpioCallback(mIoHandler, mDataReadyCallback);
+        mWaitingForEdge = true;
+    }
+
+    // Check whether the data is ready, near the time it is expected
+    private synchronized void pollData() {
+        if (mState != STATE_WAIT_DATA) return;
+        final long elapsed = System.nanoTime() - mCommandNanos;
+        final long estimate = mConversionEstimateNanos[mStep];
+        final long guard = getDataReadyGuard(estimate);
+        final boolean firstPoll = mFirstPoll;
+        mFirstPoll = false;
+        try {
+            if (!mGpioData.getValue()) {
+                mDataReadyPredicted.increment();
+                // If the data was already ready at the first poll, we don't know how long
+                // ago it became ready, so aim a little earlier next time.
+                onDataReady(elapsed, firstPoll ? elapsed - guard : elapsed);
+                readStep();
+                return;
+            }
+            if (elapsed < estimate + guard) {
+                postIo(mPollData, SystemClock.uptimeMillis() + DATA_READY_POLL_INTERVAL, 0);
+                return;
+            }
+
+            // Much later than usual, so stop polling and wait for the edge.  The data may
+            // become ready before the callback is registered, which wouldn't trigger it.
+            mDataReadyMissed.increment();
+            waitForEdge();
+            if (!mGpioData.getValue()) {
+                mGpioData.unregisterGpioCallback(mDataReadyCallback);
+                mWaitingForEdge = false;
+                onDataReady(System.nanoTime() - mCommandNanos);
+                readStep();
+            }
+        } catch (IOException e) {
+            mGpioErrors.increment();
+            failCycle(e);
+        }
+    }
+
+    // Must be called with the lock held
+    private void onDataReady(long converting) {
+        onDataReady(converting, converting);
+    }
+
+    // Account for the time the sensor spent converting, and learn how long the command takes
+    // from a sample of its conversion time.  Must be called with the lock held.
+    private void onDataReady(long converting, long sample) {
+        mCommandToDataReady.record(converting);
+        mCycleActiveNanos += converting;
+        removeIo(mMeasurementTimeout);
+        mConversionEstimateNanos[mStep] += (sample - mConversionEstimateNanos[mStep]) / 4;
+    }
+
+    // How far on either side of the expected data ready time to poll for it
+    private static long getDataReadyGuard(long estimateNanos) {
+        return Math.max(estimateNanos / DATA_READY_GUARD_FRACTION,
+                TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    // Read the data for the current step, then move on to the next step
+    private synchronized void readStep() {
+        if (mState != STATE_WAIT_DATA) return;
+        long start = System.nanoTime();
+        final int command = mCommands[mStep];
+        boolean valid;
         try {
-            rawHumidity = readData();
-            skipCrc();
+            // The data and its CRC
+            final int result = readData(3);
+            mRawData[mStep] = result >>> 8;
+            valid = Sht1xCrc.check(mStatus, command, mRawData[mStep], result & 0xFF);
         } catch (IOException e) {
-            mLastException = e;
+            mGpioErrors.increment();
+            failCycle(e);
             return;
+        } finally {
+            mCallbackProcessing.recordSince(start);
         }
-        float rhLinear = C1 + C2 * rawHumidity + C3 * rawHumidity * rawHumidity;
-        float humidity = (mTemperature - 25) * (T1 + T2 * rawHumidity) + rhLinear;
-        if (humidity > 100) {
-            humidity = 100;
-        } else if (humidity < 0) {
-            humidity = 0;
+        if (!valid) {
+            mChecksumErrors.increment();
+            if (mRetries >= MAX_RETRIES_PER_CYCLE) {
+                failCycle(new IOException("CRC error in "
+                        + measurementName(command) + " measurement."));
+                return;
+            }
+            // Measure the same thing again
+            mRetries++;
+            sendStep();
+            return;
+        }
+        if (++mStep < mCommands.length) {
+            sendStep();
+        } else {
+            mState = STATE_IDLE;
+            finishCycle();
         }
-        mHumidity = humidity;
-        // Clear exception (if present)
-        mLastException = null;
     }
 
-    private void sendCommand(int command) throws IOException {
-        // Make sure there is no edge trigger set.  See:
-        //     https://issuetracker.google.com/issues/66972799
-        mGpioData.setEdgeTriggerType(Gpio.EDGE_NONE);
+    private synchronized void onMeasurementTimeout() {
+        if (mState != STATE_WAIT_DATA) return;
+        mTimeouts.increment();
+        // Assume the sensor was busy the whole time
+        mCycleActiveNanos += TimeUnit.MILLISECONDS.toNanos(SHT1X_MEASUREMENT_TIMEOUT);
+        failCycle(new IOException("Timeout waiting for "
+                + measurementName(mCommands[mStep]) + " measurement."));
+    }
 
-        mGpioData.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
-        mGpioSck.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
-        waitSckCycle();
-
-        // Send "Transmission start sequence"
-        mGpioData.setValue(false);
-        mGpioSck.setValue(false);
-        waitSckCycle();
-        mGpioSck.setValue(true);
-        waitSckCycle();
-        mGpioData.setValue(true);
-        mGpioSck.setValue(false);
-        waitSckCycle();
-
-        // Send the command
-        for (int i = 0; i < 8; i++) {
-            final boolean bit = (command & (1 << 7 - i)) != 0;
-            mGpioData.setValue(bit);
-            mGpioSck.setValue(true);
-            waitSckCycle();
-            mGpioSck.setValue(false);
-            waitSckCycle();
-        }
-
-        // Sensor should acknowledge command by changing the DATA line
-        // from high to low when we pulse SCK.
-        mGpioData.setDirection(Gpio.DIRECTION_IN);
-        mGpioSck.setValue(true);
-        waitSckCycle();
-
-        boolean ack = !mGpioData.getValue();
-        if (!ack)
-            throw new IOException(String.format("Sensor did not send command ACK: 0x%x", command));
-
-        mGpioSck.setValue(false);
-        waitSckCycle();
-        ack = mGpioData.getValue();
-
-        if (!ack)
-            throw new IOException(
-                    String.format("Sensor did not send measurement ACK for command: 0x%x", command));
-    }
-
-    // Small busy wait of 100ns.  Busy waiting is normally not a great idea, but 100ns
-    // is a very small amount of time to wait, and can't actually wait any other way for
-    // so small an amount of time without having access to a high resolution timer.
-    private void waitSckCycle() {
-        long end = System.nanoTime() + 100;
-        long current;
-        do {
-            current = System.nanoTime();
-        } while (end >= current);
+    // Abandon the current cycle.  The connection is reset before the next one, in case the
+    // sensor is still holding on to a result.
+    private void failCycle(IOException e) {
+        cancelCycle();
+        mAcquireTimestamp = 0;
+        mNeedsReset = true;
+        mNeedsConfigure = true;
+        publishError(e);
+        completePendingMeasurement(null, e);
+        scheduleNextCycle();
     }
 
-    private int readData() throws IOException {
-        // Make sure there is no edge trigger set.  See:
-        //     https://issuetracker.google.com/issues/66972799
-        mGpioData.setEdgeTriggerType(Gpio.EDGE_NONE);
+    // Schedule the next cycle, far enough away that the sensor is converting for no more
+    // than the active budget of the time.  Uses the longer of the last cycle and the moving
+    // average, so that we back off straight away when conversions run long.
+    private void scheduleNextCycle() {
+        mActiveEstimateNanos += (mCycleActiveNanos - mActiveEstimateNanos) / 4;
+        long activeMillis = TimeUnit.NANOSECONDS.toMillis(
+                Math.max(mCycleActiveNanos, mActiveEstimateNanos));
+        mMinIntervalMillis = (long) Math.ceil(activeMillis / mActiveBudget);
+        mCurrentIntervalMillis = Math.max(getMeasurementInterval(), mMinIntervalMillis);
+        if (!mStarted) return;
+        postIo(mStartCycle, mCycleStartMillis + mCurrentIntervalMillis, SHT1X_CYCLE_SLACK);
+    }
 
-        mGpioData.setDirection(Gpio.DIRECTION_IN);
-        mGpioSck.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
+    // Run a task on the I/O thread at the given time, or up to slackMillis later if that
+    // saves the scheduler a wakeup.  Must be called with the lock held.
+    private void postIo(Runnable task, long uptimeMillis, long slackMillis) {
+        mScheduler.postAtTime(mIoHandler, task, uptimeMillis, slackMillis);
+    }
+
+    // Cancel a task posted with postIo(), whether or not the scheduler has handed it to the
+    // I/O thread yet.  Must be called with the lock held.
+    private void removeIo(Runnable task) {
+        mScheduler.removeCallbacks(task);
+        mIoHandler.removeCallbacks(task);
+    }
 
-        // Get the most significant bits
-        int value = shiftInByte();
-        value = value << 8;
+    // Complete the future of a requested measurement on the handler, outside of our lock
+    private void completePendingMeasurement(final Sht1xReading reading, final IOException e) {
+        final CompletableFuture<Sht1xReading> future = mPendingMeasurement;
+        if (future == null) return;
+        mPendingMeasurement = null;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (reading != null) {
+                    future.complete(reading);
+                } else {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+    }
 
-        // Send the required ACK
-        mGpioData.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
-        waitSckCycle();
-        mGpioData.setValue(false);
-        mGpioSck.setValue(true);
-        waitSckCycle();
-        mGpioSck.setValue(false);
-        waitSckCycle();
+    private void cancelCycle() {
+        mIoHandler.removeCallbacks(mReadData);
+        removeIo(mPollData);
+        removeIo(mMeasurementTimeout);
+        if (mWaitingForEdge) {
+            mGpioData.unregisterGpioCallback(mDataReadyCallback);
+            mWaitingForEdge = false;
+        }
+        mState = STATE_IDLE;
+    }
 
-        // Get the least significant bits
-        mGpioData.setDirection(Gpio.DIRECTION_IN);
-        value |= shiftInByte();
+    // Convert the raw data read during the cycle
+    private void finishCycle() {
+        mTemperature = Float.NaN;
+        mHumidity = Float.NaN;
+        for (int i = 0; i < mCommands.length; i++) {
+            int raw = mRawData[i];
+            switch (mCommands[i]) {
+                case SHT1X_CMD_MEASURE_TEMPERATURE:
+                    mTemperature = convertTemperature(mD1, raw, mResolution);
+                    mLastTemperature = mTemperature;
+                    break;
+                case SHT1X_CMD_MEASURE_HUMIDITY:
+                    mHumidity = convertHumidity(Float.isNaN(mLastTemperature)
+                            ? SHT1X_REFERENCE_TEMPERATURE : mLastTemperature, raw, mResolution);
+                    break;
+            }
+        }
+        mFrames.increment();
+        final long timestamp = mAcquireTimestamp != 0
+                ? mAcquireTimestamp : SystemClock.elapsedRealtimeNanos();
+        mAcquireTimestamp = 0;
+        publishReading(mTemperature, mHumidity, timestamp);
+        if (mPendingMeasurement != null) {
+            completePendingMeasurement(new Sht1xReading(mTemperature, mHumidity,
+                    timestamp, mPublishedSequence), null);
+        }
+        scheduleNextCycle();
 
-        return value;
+        if (mListener != null && !mDispatchPending) {
+            mDispatchPending = true;
+            mHandler.post(mDispatchReading);
+        }
+    }
+
+    // Must be called with the lock held
+    private void publishReading(float temperature, float humidity, long timestampNanos) {
+        mPublishCount++;
+        mPublishedTemperature = temperature;
+        mPublishedHumidity = humidity;
+        mPublishedTimestamp = timestampNanos;
+        mPublishedSequence++;
+        // Clear exception (if present)
+        mLastException = null;
+        mPublishCount++;
+    }
+
+    // Must be called with the lock held.  The last reading is kept, but not returned until
+    // the next successful cycle.
+    private void publishError(IOException e) {
+        mPublishCount++;
+        mLastException = e;
+        mPublishCount++;
+    }
+
+    // Throw if the last cycle failed, nothing was published yet, or the reading is too old
+    private void checkReading(long timestampNanos, long sequence, IOException e)
+            throws IOException {
+        if (e != null) {
+            throw e;
+        } else if (sequence == 0) {
+            throw new IOException(mStarted ? "No data available" : "Sensor has not started");
+        }
+        long maxAgeNanos = mMaxAgeNanos;
+        long ageNanos = SystemClock.elapsedRealtimeNanos() - timestampNanos;
+        if (maxAgeNanos > 0 && ageNanos > maxAgeNanos) {
+            throw new IOException("Stale data: last reading is "
+                    + TimeUnit.NANOSECONDS.toMillis(ageNanos) + "ms old");
+        }
+    }
+
+    // Temperature in Celsius from a raw measurement
+    static float convertTemperature(float d1, int raw, int resolution) {
+        return d1 + (resolution == RESOLUTION_LOW ? D2_LOW : D2) * raw;
     }
 
-    // Shift in one byte
-    private int shiftInByte() throws IOException {
-        int value = 0;
-        for (int i = 0; i < 8; i++) {
-            mGpioSck.setValue(true);
-            waitSckCycle();
-            value = value * 2 + (mGpioData.getValue() ? 1 : 0);
-            mGpioSck.setValue(false);
-            waitSckCycle();
+    // Temperature compensated relative humidity from a raw measurement
+    static float convertHumidity(float temperature, int raw, int resolution) {
+        final boolean low = resolution == RESOLUTION_LOW;
+        final float c2 = low ? C2_LOW : C2;
+        final float c3 = low ? C3_LOW : C3;
+        final float t2 = low ? T2_LOW : T2;
+        float rhLinear = C1 + c2 * raw + c3 * raw * raw;
+        float humidity = (temperature - SHT1X_REFERENCE_TEMPERATURE) * (T1 + t2 * raw)
+                + rhLinear;
+        if (humidity > 100) {
+            humidity = 100;
+        } else if (humidity < 0) {
+            humidity = 0;
         }
-        return value;
+        return humidity;
     }
 
-    private void skipCrc() throws IOException {
+    static String measurementName(int command) {
+        return command == SHT1X_CMD_MEASURE_TEMPERATURE ? "temperature" : "humidity";
+    }
+
+    // Make sure the status register matches the requested resolution, only writing it if
+    // it doesn't already.
+    private void configureStatus() throws IOException {
+        final int status = readStatus() & SHT1X_STATUS_WRITABLE;
+        final int wanted = mResolution == RESOLUTION_LOW
+                ? status | SHT1X_STATUS_LOW_RESOLUTION
+                : status & ~SHT1X_STATUS_LOW_RESOLUTION;
+        mStatus = status;
+        if (status == wanted) return;
+
+        sendCommand(SHT1X_CMD_WRITE_STATUS);
+        writeByte(wanted);
+        final int written = readStatus() & SHT1X_STATUS_WRITABLE;
+        if (written != wanted) {
+            throw new IOException(String.format(
+                    "Sensor status register is 0x%x after writing 0x%x", written, wanted));
+        }
+        mStatus = written;
+    }
+
+    private int readStatus() throws IOException {
+        sendCommand(SHT1X_CMD_READ_STATUS);
+        // The status and its CRC follow the command ACK directly
+        final int result = readData(2);
+        final int status = result >>> 8;
+        if (!Sht1xCrc.checkByte(status, SHT1X_CMD_READ_STATUS, status, result & 0xFF)) {
+            mChecksumErrors.increment();
+            throw new IOException("CRC error reading sensor status.");
+        }
+        return status;
+    }
+
+    // Write one byte after a command, and check the sensor's ACK
+    private void writeByte(int value) throws IOException {
+        mProtocol.writeByte(value, mAcks);
+        if (mAcks[0] != Sht1xProtocol.ACK)
+            throw new IOException(String.format("Sensor did not ACK byte: 0x%x", value));
+    }
+
+    private void sendCommand(int command) throws IOException {
         // Make sure there is no edge trigger set.  See:
         //     https://issuetracker.google.com/issues/66972799
         mGpioData.setEdgeTriggerType(Gpio.EDGE_NONE);
+        mProtocol.sendCommand(command, mAcks);
+        if (mAcks[0] != Sht1xProtocol.ACK)
+            throw new IOException(Sht1xProtocol.ackMessage(mAcks[0], command));
+    }
 
-        mGpioData.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
-        mGpioSck.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
-        waitSckCycle();
-        mGpioSck.setValue(false);
-        waitSckCycle();
+    // Read bytes sent by the sensor, most significant first, and end the transfer
+    private int readData(int count) throws IOException {
+        // Make sure there is no edge trigger set.  See:
+        //     https://issuetracker.google.com/issues/66972799
+        mGpioData.setEdgeTriggerType(Gpio.EDGE_NONE);
+        mProtocol.readBytes(count, mValues);
+        return mValues[0];
     }
 
     // Reset device state.  Can be useful if the device has a pending result that
@@ -464,14 +1245,6 @@ public class Sht1xSensor implements AutoCloseable {
         // Make sure there is no edge trigger set.  See:
         //     https://issuetracker.google.com/issues/66972799
         mGpioData.setEdgeTriggerType(Gpio.EDGE_NONE);
-
-        mGpioData.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
-        mGpioSck.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
-        for (int i=0; i < 10; i++) {
-            mGpioSck.setValue(true);
-            waitSckCycle();
-            mGpioSck.setValue(false);
-            waitSckCycle();
-        }
+        mProtocol.connectionReset();
     }
-}
\ No newline at end of file
+}
@@ -7,8 +7,11 @@ import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
 import com.google.android.things.userdriver.sensor.UserSensorReading;
 
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class Sht1xSensorDriver implements AutoCloseable {
     private static final String TAG = "Sht1xSensorDriver";
@@ -17,10 +20,6 @@ public class Sht1xSensorDriver implements AutoCloseable {
     // documented at https://source.android.com/devices/sensors/hal-interface.html#sensor_t
     private static final String DRIVER_VENDOR = "Sensirion";
     private static final String DRIVER_NAME = "SHT10/11/15";
-    // Our driver doesn't make measurement more than once every 5 seconds.
-    private static final int DRIVER_MIN_DELAY_US = Sht1xSensor.SHT1X_MEASUREMENT_INTERVAL;
-    // The maximum value seems pretty arbitrary, so we just say double the minimum
-    private static final int DRIVER_MAX_DELAY_US = Sht1xSensor.SHT1X_MEASUREMENT_INTERVAL * 2;
     private Sht1xSensor mDevice;
 
     private TemperatureUserDriver mTemperatureUserDriver;
@@ -72,6 +71,90 @@ public class Sht1xSensorDriver implements AutoCloseable {
         }
     }
 
+    /**
+     * @see Sht1xSensor#getMetrics()
+     */
+    public DriverMetrics getMetrics() {
+        if (mDevice == null) {
+            throw new IllegalStateException("driver is closed");
+        }
+        return mDevice.getMetrics();
+    }
+
+    /**
+     * Set the resolution of the measurements.  The resolution and minimum delay of the
+     * registered sensors depend on it, so it must be set before registering them.
+     * @see Sht1xSensor#setResolution(int)
+     */
+    public void setResolution(int resolution) {
+        if (mDevice == null) {
+            throw new IllegalStateException("driver is closed");
+        }
+        if (mTemperatureUserDriver != null || mHumidityUserDriver != null) {
+            throw new IllegalStateException("cannot change resolution of registered driver");
+        }
+        mDevice.setResolution(resolution);
+    }
+
+    /**
+     * Set the requested time between measurements.
+     * @see Sht1xSensor#setMeasurementInterval(int)
+     */
+    public void setMeasurementInterval(int intervalMs) {
+        if (mDevice == null) {
+            throw new IllegalStateException("driver is closed");
+        }
+        mDevice.setMeasurementInterval(intervalMs);
+    }
+
+    /**
+     * Set the largest fraction of the time the sensor may spend converting.  Like the
+     * resolution, this must be set before registering the sensors.
+     * @see Sht1xSensor#setActiveBudget(float)
+     */
+    public void setActiveBudget(float budget) {
+        if (mDevice == null) {
+            throw new IllegalStateException("driver is closed");
+        }
+        if (mTemperatureUserDriver != null || mHumidityUserDriver != null) {
+            throw new IllegalStateException("cannot change active budget of registered driver");
+        }
+        mDevice.setActiveBudget(budget);
+    }
+
+    /**
+     * Report readings older than the given age as errors instead of returning them.
+     * @see Sht1xSensor#setMaxAge(long)
+     */
+    public void setMaxAge(long maxAgeMs) {
+        if (mDevice == null) {
+            throw new IllegalStateException("driver is closed");
+        }
+        mDevice.setMaxAge(maxAgeMs);
+    }
+
+    /**
+     * Set how to wait for the sensor to finish each measurement.
+     * @see Sht1xSensor#setDataReadyStrategy(int)
+     */
+    public void setDataReadyStrategy(int strategy) {
+        if (mDevice == null) {
+            throw new IllegalStateException("driver is closed");
+        }
+        mDevice.setDataReadyStrategy(strategy);
+    }
+
+    // Our driver can't make measurements more often than its active budget allows
+    private int getMinDelayUs() {
+        return (int) TimeUnit.MILLISECONDS.toMicros(mDevice.getMinMeasurementInterval());
+    }
+
+    // The maximum value seems pretty arbitrary, so we just say double the requested interval
+    private int getMaxDelayUs() {
+        return (int) Math.max(getMinDelayUs(),
+                TimeUnit.MILLISECONDS.toMicros(mDevice.getMeasurementInterval()) * 2);
+    }
+
     /**
      * Register a {@link UserSensor} that pipes temperature readings into the Android SensorManager.
      * @see #unregisterTemperatureSensor()
@@ -145,10 +228,10 @@ public class Sht1xSensorDriver implements AutoCloseable {
                         .setVendor(DRIVER_VENDOR)
                         .setVersion(DRIVER_VERSION)
                         .setMaxRange(Sht1xSensor.SHT1X_TEMPERATURE_MAX)
-                        .setResolution(Sht1xSensor.SHT1X_TEMPERATURE_RESOLUTION)
+                        .setResolution(mDevice.getTemperatureResolution())
                         .setPower(Sht1xSensor.SHT1X_POWER_CONSUMPTION_UA)
-                        .setMinDelay(DRIVER_MIN_DELAY_US)
-                        .setMaxDelay(DRIVER_MAX_DELAY_US)
+                        .setMinDelay(getMinDelayUs())
+                        .setMaxDelay(getMaxDelayUs())
                         .setUuid(UUID.randomUUID())
                         .setDriver(this)
                         .build();
@@ -186,10 +269,10 @@ public class Sht1xSensorDriver implements AutoCloseable {
                         .setVendor(DRIVER_VENDOR)
                         .setVersion(DRIVER_VERSION)
                         .setMaxRange(Sht1xSensor.SHT1X_HUMIDITY_MAX)
-                        .setResolution(Sht1xSensor.SHT1X_HUMIDITY_RESOLUTION)
+                        .setResolution(mDevice.getHumidityResolution())
                         .setPower(Sht1xSensor.SHT1X_POWER_CONSUMPTION_UA)
-                        .setMinDelay(DRIVER_MIN_DELAY_US)
-                        .setMaxDelay(DRIVER_MAX_DELAY_US)
+                        .setMinDelay(getMinDelayUs())
+                        .setMaxDelay(getMaxDelayUs())
                         .setUuid(UUID.randomUUID())
                         .setDriver(this)
                         .build();
@@ -0,0 +1,247 @@
+package net.jpuderer.android.things.drivers.sht1x;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+
+import net.jpuderer.android.things.drivers.common.FakePeripherals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Sht1xBusTest {
+    private static final float VDD = 3.3f;
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final int SENSORS = 3;
+
+    private HandlerThread mThread;
+    private Sht1xSimulator[] mSimulators;
+    private SharedSck mSck;
+    private Sht1xBus mBus;
+
+    // Readings of the first cycle, once every sensor that can has published one
+    private CountDownLatch mReadings;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("Sht1xBusTest");
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mBus != null) mBus.close();
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void readsSensorsInLockstep() throws Exception {
+        openBus(SENSORS);
+        runCycle(SENSORS);
+
+        long timestamp = mBus.readReading(0).getTimestamp();
+        for (int i = 0; i < SENSORS; i++) {
+            Sht1xReading reading = mBus.readReading(i);
+            assertEquals(temperature(i), reading.getTemperature(), 0.1);
+            assertEquals(humidity(i), reading.getHumidity(), 1.0);
+            // Every sensor was read in the same cycle
+            assertEquals(timestamp, reading.getTimestamp());
+            assertEquals(2, mSimulators[i].getMeasurements());
+        }
+    }
+
+    @Test
+    public void missingAckOnlyFailsItsSensor() throws Exception {
+        openBus(SENSORS);
+        mSimulators[1].setAckFailureRate(1);
+        runCycle(SENSORS - 1);
+
+        assertHealthyExcept(1);
+        try {
+            mBus.readReading(1);
+            fail("Expected the sensor without ACKs to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ACK"));
+        }
+    }
+
+    @Test
+    public void crcErrorOnlyFailsItsSensor() throws Exception {
+        openBus(SENSORS);
+        // Every bit the sensor sends is flipped, so every CRC check fails
+        mSimulators[2].setBitErrorRate(1);
+        runCycle(SENSORS - 1);
+
+        assertHealthyExcept(2);
+        try {
+            mBus.readReading(2);
+            fail("Expected the sensor with bit errors to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("CRC error in temperature"));
+        }
+    }
+
+    @Test
+    public void sharesClockBetweenSensors() throws Exception {
+        openBus(1);
+        runCycle(1);
+        long singleSck = mSck.getCallCount();
+        long single = busCalls();
+        mBus.close();
+        mBus = null;
+
+        openBus(SENSORS);
+        runCycle(SENSORS);
+        // The clock is driven once for all sensors, and only the DATA pins add calls
+        assertEquals(singleSck, mSck.getCallCount());
+        long calls = busCalls();
+        assertTrue("GPIO calls for " + SENSORS + " sensors: " + calls + ", for one: " + single,
+                calls < SENSORS * single);
+    }
+
+    private void openBus(int count) throws IOException {
+        mSimulators = new Sht1xSimulator[count];
+        Gpio[] sckPins = new Gpio[count];
+        String[] dataNames = new String[count];
+        FakePeripherals peripherals = new FakePeripherals();
+        for (int i = 0; i < count; i++) {
+            mSimulators[i] = new Sht1xSimulator(VDD);
+            // Keep the conversions short, so the tests are quick
+            mSimulators[i].setConversionTimeScale(0.05f);
+            mSimulators[i].setTemperature(temperature(i));
+            mSimulators[i].setHumidity(humidity(i));
+            sckPins[i] = mSimulators[i].getSckGpio();
+            dataNames[i] = "DATA" + i;
+            peripherals.putGpio(dataNames[i], mSimulators[i].getDataGpio());
+        }
+        mSck = new SharedSck(sckPins);
+        peripherals.putGpio("SCK", mSck);
+        mBus = new Sht1xBus(peripherals, "SCK", dataNames, VDD,
+                new Handler(mThread.getLooper()));
+    }
+
+    // Run one cycle, and wait for the given number of sensors to publish a reading
+    private void runCycle(int healthy) throws InterruptedException {
+        mReadings = new CountDownLatch(healthy);
+        mBus.setOnReadingListener(new Sht1xBus.OnReadingListener() {
+            @Override
+            public void onReading(int sensor, Sht1xReading reading) {
+                mReadings.countDown();
+            }
+        });
+        mBus.start();
+        // Readings are only handed over once the cycle has finished, and the next one is
+        // seconds away
+        assertTrue(mReadings.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void assertHealthyExcept(int failed) throws IOException {
+        for (int i = 0; i < mSimulators.length; i++) {
+            if (i == failed) continue;
+            assertEquals(temperature(i), mBus.readReading(i).getTemperature(), 0.1);
+        }
+    }
+
+    // GPIO calls the bus made: each on the shared SCK once, and those on every DATA pin
+    private long busCalls() {
+        long calls = mSck.getCallCount();
+        for (Sht1xSimulator simulator : mSimulators) {
+            // Each simulator also counts the calls passed on to its SCK
+            calls += simulator.getGpioOperations() - mSck.getCallCount();
+        }
+        return calls;
+    }
+
+    private static float temperature(int sensor) {
+        return 20 + 2.5f * sensor;
+    }
+
+    private static float humidity(int sensor) {
+        return 40 + 10 * sensor;
+    }
+
+    /**
+     * One SCK pin wired to the SCK of every simulator, as on a board.
+     */
+    private static class SharedSck implements Gpio {
+        private final Gpio[] mPins;
+        private long mCalls;
+
+        SharedSck(Gpio[] pins) {
+            mPins = pins;
+        }
+
+        synchronized long getCallCount() {
+            return mCalls;
+        }
+
+        @Override
+        public String getName() {
+            return "SCK";
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            for (Gpio pin : mPins) pin.close();
+        }
+
+        @Override
+        public synchronized void setDirection(int direction) throws IOException {
+            mCalls++;
+            for (Gpio pin : mPins) pin.setDirection(direction);
+        }
+
+        @Override
+        public synchronized void setEdgeTriggerType(int edgeTriggerType) throws IOException {
+            mCalls++;
+            for (Gpio pin : mPins) pin.setEdgeTriggerType(edgeTriggerType);
+        }
+
+        @Override
+        public synchronized void setActiveType(int activeType) throws IOException {
+            mCalls++;
+            for (Gpio pin : mPins) pin.setActiveType(activeType);
+        }
+
+        @Override
+        public synchronized void setValue(boolean value) throws IOException {
+            mCalls++;
+            for (Gpio pin : mPins) pin.setValue(value);
+        }
+
+        @Override
+        public synchronized boolean getValue() throws IOException {
+            mCalls++;
+            boolean value = false;
+            for (Gpio pin : mPins) value = pin.getValue();
+            return value;
+        }
+
+        @Override
+        public void registerGpioCallback(GpioCallback callback) throws IOException {
+            throw new IOException("Callbacks are not supported on " + getName());
+        }
+
+        @Override
+        public void registerGpioCallback(Handler handler, GpioCallback callback)
+                throws IOException {
+            throw new IOException("Callbacks are not supported on " + getName());
+        }
+
+        @Override
+        public void unregisterGpioCallback(GpioCallback callback) {
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package net.jpuderer.android.things.drivers.sht1x;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import net.jpuderer.android.things.drivers.common.DriverMetrics;
+import net.jpuderer.android.things.drivers.common.DriverScheduler;
+import net.jpuderer.android.things.drivers.common.FakePeripherals;
+import net.jpuderer.android.things.drivers.common.HistogramSnapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Sht1xSensorTest {
+    private static final float VDD = 3.3f;
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final float TEMPERATURE = 23.5f;
+    private static final float HUMIDITY = 45.0f;
+
+    // Temperature and humidity take about 120 GPIO calls each
+    private static final long MAX_GPIO_OPERATIONS_PER_READING = 260;
+
+    // With GPIO calls this slow, each transfer takes tens of milliseconds
+    private static final long SLOW_GPIO_CALL_MS = 2;
+    // How late another driver's task may run while the sensor transfers
+    private static final long MAX_SCHEDULER_LATENESS_MS = 50;
+
+    private HandlerThread mThread;
+    private Sht1xSimulator mSimulator;
+    private Sht1xSensor mSensor;
+
+    @Before
+    public void setUp() throws IOException {
+        mThread = new HandlerThread("Sht1xSensorTest");
+        mThread.start();
+
+        mSimulator = new Sht1xSimulator(VDD);
+        // Keep the conversions short, so the tests are quick
+        mSimulator.setConversionTimeScale(0.05f);
+        mSimulator.setTemperature(TEMPERATURE);
+        mSimulator.setHumidity(HUMIDITY);
+
+        FakePeripherals peripherals = new FakePeripherals();
+        peripherals.putGpio("DATA", mSimulator.getDataGpio());
+        peripherals.putGpio("SCK", mSimulator.getSckGpio());
+        mSensor = new Sht1xSensor(peripherals, "DATA", "SCK", VDD,
+                new Handler(mThread.getLooper()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mSensor != null) mSensor.close();
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void measuresTemperatureAndHumidity() throws Exception {
+        Sht1xReading reading = mSensor.measure().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(TEMPERATURE, reading.getTemperature(), 0.1);
+        assertEquals(HUMIDITY, reading.getHumidity(), 1.0);
+        assertEquals(1, mSensor.getMetrics().counter(DriverMetrics.FRAMES).get());
+    }
+
+    @Test
+    public void publishesReadingsOnceStarted() throws Exception {
+        try {
+            mSensor.readTemperature();
+            fail("Expected no data before the first measurement");
+        } catch (IOException expected) {
+        }
+
+        mSensor.start();
+        // Shares the started cycle's result
+        mSensor.measure().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(TEMPERATURE, mSensor.readTemperature(), 0.1);
+        assertEquals(HUMIDITY, mSensor.readHumidity(), 1.0);
+    }
+
+    @Test
+    public void measuresWithPredictiveDataReady() throws Exception {
+        mSensor.setDataReadyStrategy(Sht1xSensor.DATA_READY_PREDICTIVE);
+        for (int i = 0; i < 3; i++) {
+            Sht1xReading reading = mSensor.measure().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertEquals(TEMPERATURE, reading.getTemperature(), 0.1);
+            assertEquals(HUMIDITY, reading.getHumidity(), 1.0);
+        }
+        assertTrue(mSensor.getDataReadyHitRate() > 0);
+    }
+
+    @Test
+    public void countsGpioOperationsPerReading() throws Exception {
+        // The first measurement also resets and configures the sensor
+        mSensor.measure().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mSimulator.resetCounters();
+
+        mSensor.measure().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(2, mSimulator.getMeasurements());
+        long operations = mSimulator.getGpioOperations();
+        assertTrue("GPIO operations per reading: " + operations,
+                operations <= MAX_GPIO_OPERATIONS_PER_READING);
+    }
+
+    @Test
+    public void transfersDoNotDelayScheduler() throws Exception {
+        // Real conversion times, which are longer than sending a command at this speed
+        mSimulator.setConversionTimeScale(1);
+        mSimulator.setCallDelay(SLOW_GPIO_CALL_MS, TimeUnit.MILLISECONDS);
+        DriverScheduler scheduler = DriverScheduler.acquire();
+        // Another driver's task, which can't wait
+        Runnable tick = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        try {
+            scheduler.postPeriodic(null, tick, SystemClock.uptimeMillis(), 2, 0);
+            Sht1xReading reading = mSensor.measure().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertEquals(TEMPERATURE, reading.getTemperature(), 0.1);
+
+            HistogramSnapshot lateness = scheduler.getMetrics().snapshot()
+                    .getHistogram(DriverScheduler.LATENESS);
+            assertTrue(lateness.getCount() > 0);
+            assertTrue("Scheduler lateness: " + lateness, lateness.getMaxNanos()
+                    < TimeUnit.MILLISECONDS.toNanos(MAX_SCHEDULER_LATENESS_MS));
+        } finally {
+            scheduler.removeCallbacks(tick);
+            DriverScheduler.release();
+        }
+    }
+
+    @Test
+    public void failsWithoutCommandAck() throws Exception {
+        mSimulator.setAckFailureRate(1);
+        IOException e = measureAndFail();
+        assertTrue(e.getMessage(), e.getMessage().contains("ACK"));
+    }
+
+    @Test
+    public void retriesMeasurementOnCrcError() throws Exception {
+        // Configure the sensor first, so the errors are in the measurement
+        mSensor.measure().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // Every bit the sensor sends is flipped, so every CRC check fails
+        mSimulator.setBitErrorRate(1);
+        IOException e = measureAndFail();
+        assertTrue(e.getMessage(), e.getMessage().contains("CRC error in temperature"));
+        // The first error, and the one retry
+        assertEquals(2, mSensor.getMetrics().counter(DriverMetrics.CHECKSUM_ERRORS).get());
+    }
+
+    @Test
+    public void recoversAfterCrcError() throws Exception {
+        mSimulator.setBitErrorRate(1);
+        measureAndFail();
+
+        mSimulator.setBitErrorRate(0);
+        Sht1xReading reading = mSensor.measure().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(TEMPERATURE, reading.getTemperature(), 0.1);
+    }
+
+    @Test
+    public void timesOutStuckConversion() throws Exception {
+        mSimulator.setStuck(true);
+        IOException e = measureAndFail();
+        assertTrue(e.getMessage(), e.getMessage().contains("Timeout"));
+        assertEquals(1, mSensor.getMetrics().counter(DriverMetrics.TIMEOUTS).get());
+    }
+
+    @Test
+    public void stopFailsPendingMeasurement() throws Exception {
+        mSimulator.setStuck(true);
+        CompletableFuture<Sht1xReading> measurement = mSensor.measure();
+        mSensor.stop();
+        try {
+            measurement.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Expected the measurement to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private IOException measureAndFail() throws Exception {
+        try {
+            mSensor.measure().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            return (IOException) e.getCause();
+        }
+        fail("Expected the measurement to fail");
+        return null;
+    }
+}
@@ -0,0 +1,644 @@
+package net.jpuderer.android.things.drivers.sht1x;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory SHT1x, for exercising the driver without hardware.
+ *
+ * The simulator provides a DATA and an SCK {@link Gpio} that behave like pins wired to a real
+ * sensor: it follows the serial protocol clock edge by clock edge, acknowledges commands,
+ * takes the datasheet conversion time (optionally scaled) before pulling DATA low to signal
+ * that data is ready, sends data and status with their CRCs, and honours the status register,
+ * soft reset and connection reset.  Faults can be injected: bit errors in what the sensor
+ * sends, missing ACKs, and conversions that never finish.
+ *
+ * Every GPIO call is counted, so the number of calls per measurement can be measured, and
+ * can be slowed down to the speed of real GPIOs.
+ * Edge callbacks are delivered on the handler they were registered with.  Conversions are
+ * timed with a {@link Clock} that tests can replace.
+ */
+public class Sht1xSimulator {
+    private static final String TAG = Sht1xSimulator.class.getSimpleName();
+
+    // Interface states
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_COMMAND = 1;
+    private static final int STATE_WRITE_STATUS = 2;
+    private static final int STATE_CONVERTING = 3;
+    private static final int STATE_SEND = 4;
+
+    // Number of clocks with DATA held high that reset the interface
+    private static final int CONNECTION_RESET_CLOCKS = 9;
+
+    /**
+     * Source of the time conversions are measured with, in milliseconds.
+     */
+    public interface Clock {
+        long uptimeMillis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    };
+
+    private final Object mLock = new Object();
+    private final Random mRandom = new Random();
+
+    private final DataPin mDataPin = new DataPin();
+    private final SckPin mSckPin = new SckPin();
+
+    private final float mD1;
+
+    // Simulated environment
+    private float mTemperature = 25;
+    private float mHumidity = 50;
+
+    // Faults
+    private double mBitErrorRate;
+    private double mAckFailureRate;
+    private boolean mStuck;
+    private float mConversionTimeScale = 1;
+    private Clock mClock = SYSTEM_CLOCK;
+    private long mCallDelayNanos;
+
+    // Interface state
+    private int mState = STATE_IDLE;
+    private int mStatus;
+    private int mCommand;
+    // Clocks of the current byte so far (the 9th is the acknowledge clock)
+    private int mBit;
+    private int mShift;
+    private boolean mStartArmed;
+    // SCK went low since DATA fell for the transmission start
+    private boolean mStartClocked;
+    private int mHighClocks;
+    // Sensor is pulling DATA low
+    private boolean mSensorLow;
+    private long mReadyAtMillis;
+
+    // Bytes being sent, and the index of the current one
+    private final int[] mSendBytes = new int[3];
+    private int mSendCount;
+    private int mSendIndex;
+    private boolean mMasterAck;
+
+    private long mOperations;
+    private long mMeasurements;
+
+    /**
+     * Simulate a sensor powered at 3.3v.
+     */
+    public Sht1xSimulator() {
+        this(Sht1xSensor.SHT1X_VDD_TYPICAL);
+    }
+
+    /**
+     * @param vdd Supply voltage of the simulated sensor, which its temperature reading
+     *            depends on.
+     */
+    public Sht1xSimulator(float vdd) {
+        mD1 = Sht1xSensor.calculateD1(vdd);
+    }
+
+    public Gpio getDataGpio() {
+        return mDataPin;
+    }
+
+    public Gpio getSckGpio() {
+        return mSckPin;
+    }
+
+    /**
+     * Set the temperature (in Celsius) the sensor will measure.
+     */
+    public void setTemperature(float temperature) {
+        synchronized (mLock) {
+            mTemperature = temperature;
+        }
+    }
+
+    /**
+     * Set the relative humidity (in percent) the sensor will measure.
+     */
+    public void setHumidity(float humidity) {
+        synchronized (mLock) {
+            mHumidity = humidity;
+        }
+    }
+
+    /**
+     * Seed the random number generator used for injecting faults.
+     */
+    public void setSeed(long seed) {
+        synchronized (mLock) {
+            mRandom.setSeed(seed);
+        }
+    }
+
+    /**
+     * Probability of each bit the sensor sends being flipped, except the one signalling that
+     * data is ready.
+     */
+    public void setBitErrorRate(double rate) {
+        synchronized (mLock) {
+            mBitErrorRate = rate;
+        }
+    }
+
+    /**
+     * Probability of the sensor not acknowledging a command.
+     */
+    public void setAckFailureRate(double rate) {
+        synchronized (mLock) {
+            mAckFailureRate = rate;
+        }
+    }
+
+    /**
+     * If set, measurements never finish, and the sensor never signals that data is ready.
+     */
+    public void setStuck(boolean stuck) {
+        synchronized (mLock) {
+            mStuck = stuck;
+        }
+    }
+
+    /**
+     * Scale the datasheet conversion times, for example to speed up tests.
+     */
+    public void setConversionTimeScale(float scale) {
+        synchronized (mLock) {
+            mConversionTimeScale = scale;
+        }
+    }
+
+    /**
+     * Time conversions with the given clock, instead of {@link SystemClock#uptimeMillis()}.
+     * Data ready callbacks are still posted to their handler for the conversion time, so a
+     * test that steps its own clock should poll DATA instead.
+     */
+    public void setClock(Clock clock) {
+        synchronized (mLock) {
+            mClock = clock;
+        }
+    }
+
+    /**
+     * Make every GPIO call take at least the given time, like slow sysfs GPIOs.
+     */
+    public void setCallDelay(long delay, TimeUnit unit) {
+        synchronized (mLock) {
+            mCallDelayNanos = unit.toNanos(delay);
+        }
+    }
+
+    /**
+     * Current value of the status register.
+     */
+    public int getStatus() {
+        synchronized (mLock) {
+            return mStatus;
+        }
+    }
+
+    /**
+     * Number of GPIO calls made on the simulated pins.
+     */
+    public long getGpioOperations() {
+        synchronized (mLock) {
+            return mOperations;
+        }
+    }
+
+    /**
+     * Number of measurements whose data was read.
+     */
+    public long getMeasurements() {
+        synchronized (mLock) {
+            return mMeasurements;
+        }
+    }
+
+    public void resetCounters() {
+        synchronized (mLock) {
+            mOperations = 0;
+            mMeasurements = 0;
+        }
+    }
+
+    private boolean lowResolution() {
+        return (mStatus & 0x01) != 0;
+    }
+
+    // Level of the DATA line.  Either side can pull it low, and it is pulled up otherwise.
+    private boolean dataLevel() {
+        updateConversion();
+        boolean masterLow = mDataPin.mOutput && !mDataPin.mValue;
+        return !(masterLow || mSensorLow);
+    }
+
+    // Start sending the result once the conversion is done
+    private void updateConversion() {
+        if (mState != STATE_CONVERTING || mStuck) return;
+        if (mClock.uptimeMillis() < mReadyAtMillis) return;
+
+        final int resolution = lowResolution()
+                ? Sht1xSensor.RESOLUTION_LOW : Sht1xSensor.RESOLUTION_HIGH;
+        final int raw = mCommand == Sht1xSensor.SHT1X_CMD_MEASURE_TEMPERATURE
+                ? rawTemperature(resolution) : rawHumidity(resolution);
+        startSending(raw >> 8, raw & 0xFF);
+    }
+
+    private void startSending(int... data) {
+        int crc = Sht1xCrc.update(Sht1xCrc.init(mStatus), mCommand);
+        for (int i = 0; i < data.length; i++) {
+            mSendBytes[i] = data[i];
+            crc = Sht1xCrc.update(crc, data[i]);
+        }
+        // The CRC is sent with its bits reversed
+        mSendBytes[data.length] = Integer.reverse(crc) >>> 24;
+        mSendCount = data.length + 1;
+        mSendIndex = 0;
+        mBit = 0;
+        mState = STATE_SEND;
+        presentBit();
+    }
+
+    // Drive DATA with the next bit to send
+    private void presentBit() {
+        boolean bit = (mSendBytes[mSendIndex] & (0x80 >> mBit)) != 0;
+        // The first bit is always low, and is what signals that data is ready
+        boolean first = mSendIndex == 0 && mBit == 0;
+        if (!first && mRandom.nextDouble() < mBitErrorRate) bit = !bit;
+        mSensorLow = !bit;
+    }
+
+    // Raw measurement of the temperature, found by searching the driver's conversion
+    private int rawTemperature(int resolution) {
+        final int max = resolution == Sht1xSensor.RESOLUTION_LOW ? 0xFFF : 0x3FFF;
+        int low = 0;
+        int high = max;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (Sht1xSensor.convertTemperature(mD1, mid, resolution) < mTemperature) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int rawHumidity(int resolution) {
+        final int max = resolution == Sht1xSensor.RESOLUTION_LOW ? 0xFF : 0xFFF;
+        int low = 0;
+        int high = max;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (Sht1xSensor.convertHumidity(mTemperature, mid, resolution) < mHumidity) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void resetInterface() {
+        mState = STATE_IDLE;
+        mSensorLow = false;
+        mStartArmed = false;
+        mStartClocked = false;
+        mBit = 0;
+    }
+
+    // Called when the master changes the DATA level
+    private void onDataChanged(boolean oldLevel, boolean newLevel) {
+        if (!mSckPin.mValue || oldLevel == newLevel) return;
+        // "Transmission start": DATA falls and then rises again while SCK is high, with
+        // a low SCK pulse in between.  Without the pulse, it isn't a start.
+        if (!newLevel) {
+            mStartArmed = true;
+            mStartClocked = false;
+        } else if (mStartArmed) {
+            mStartArmed = false;
+            if (!mStartClocked) return;
+            mState = STATE_COMMAND;
+            mSensorLow = false;
+            mBit = 0;
+            mShift = 0;
+        }
+    }
+
+    private void onSckRising() {
+        switch (mState) {
+            case STATE_COMMAND:
+            case STATE_WRITE_STATUS:
+                if (++mBit <= 8) mShift = (mShift << 1) | (dataLevel() ? 1 : 0);
+                break;
+            case STATE_SEND:
+                if (++mBit == 9) {
+                    // The master acknowledges with DATA low, or ends the transfer
+                    mMasterAck = !dataLevel();
+                    if (mSendIndex == 1 && mCommand != Sht1xSensor.SHT1X_CMD_READ_STATUS) {
+                        mMeasurements++;
+                    }
+                }
+                break;
+        }
+
+        // Holding DATA high for enough clocks resets the interface
+        if (!dataLevel()) {
+            mHighClocks = 0;
+        } else if (++mHighClocks >= CONNECTION_RESET_CLOCKS) {
+            mHighClocks = 0;
+            resetInterface();
+        }
+    }
+
+    private void onSckFalling() {
+        if (mStartArmed) mStartClocked = true;
+        switch (mState) {
+            case STATE_COMMAND:
+            case STATE_WRITE_STATUS:
+                if (mBit == 8) {
+                    boolean ack = mState == STATE_WRITE_STATUS || isCommand(mShift & 0xFF);
+                    if (mRandom.nextDouble() < mAckFailureRate) ack = false;
+                    if (ack) {
+                        mSensorLow = true;
+                    } else {
+                        resetInterface();
+                    }
+                } else if (mBit == 9) {
+                    mSensorLow = false;
+                    if (mState == STATE_COMMAND) {
+                        executeCommand(mShift & 0xFF);
+                    } else {
+                        mStatus = mShift & 0x07;
+                        mState = STATE_IDLE;
+                    }
+                }
+                break;
+            case STATE_SEND:
+                if (mBit < 8) {
+                    presentBit();
+                } else if (mBit == 8) {
+                    // Let go of DATA for the master's acknowledge
+                    mSensorLow = false;
+                } else if (mMasterAck && ++mSendIndex < mSendCount) {
+                    mBit = 0;
+                    presentBit();
+                } else {
+                    resetInterface();
+                }
+                break;
+        }
+    }
+
+    private static boolean isCommand(int command) {
+        return command == Sht1xSensor.SHT1X_CMD_MEASURE_TEMPERATURE
+                || command == Sht1xSensor.SHT1X_CMD_MEASURE_HUMIDITY
+                || command == Sht1xSensor.SHT1X_CMD_READ_STATUS
+                || command == Sht1xSensor.SHT1X_CMD_WRITE_STATUS
+                || command == Sht1xSensor.SHT1X_SOFT_RESET;
+    }
+
+    private void executeCommand(int command) {
+        mCommand = command;
+        mBit = 0;
+        mShift = 0;
+        switch (command) {
+            case Sht1xSensor.SHT1X_CMD_MEASURE_TEMPERATURE:
+            case Sht1xSensor.SHT1X_CMD_MEASURE_HUMIDITY:
+                mState = STATE_CONVERTING;
+                mReadyAtMillis = mClock.uptimeMillis()
+                        + (long) (conversionTime(command) * mConversionTimeScale);
+                mDataPin.scheduleDataReady(mReadyAtMillis);
+                break;
+            case Sht1xSensor.SHT1X_CMD_READ_STATUS:
+                startSending(mStatus);
+                break;
+            case Sht1xSensor.SHT1X_CMD_WRITE_STATUS:
+                mState = STATE_WRITE_STATUS;
+                break;
+            case Sht1xSensor.SHT1X_SOFT_RESET:
+                mStatus = 0;
+                resetInterface();
+                break;
+        }
+    }
+
+    private int conversionTime(int command) {
+        if (command == Sht1xSensor.SHT1X_CMD_MEASURE_TEMPERATURE) {
+            return lowResolution() ? Sht1xSensor.SHT1X_CONVERSION_TIME_12BIT
+                    : Sht1xSensor.SHT1X_CONVERSION_TIME_14BIT;
+        }
+        return lowResolution() ? Sht1xSensor.SHT1X_CONVERSION_TIME_8BIT
+                : Sht1xSensor.SHT1X_CONVERSION_TIME_12BIT;
+    }
+
+    private abstract class Pin implements Gpio {
+        boolean mOutput;
+        boolean mValue;
+        boolean mClosed;
+
+        void checkOpen() throws IOException {
+            mOperations++;
+            if (mClosed) throw new IOException(getName() + " is closed");
+            long end = System.nanoTime() + mCallDelayNanos;
+            long left;
+            while ((left = end - System.nanoTime()) > 0) LockSupport.parkNanos(left);
+        }
+
+        @Override
+        public void close() {
+            synchronized (mLock) {
+                mClosed = true;
+            }
+        }
+
+        @Override
+        public void setActiveType(int activeType) throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+                if (activeType != ACTIVE_HIGH) {
+                    throw new IllegalArgumentException("Only ACTIVE_HIGH is simulated");
+                }
+            }
+        }
+
+        @Override
+        public void setEdgeTriggerType(int edgeTriggerType) throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+            }
+        }
+
+        @Override
+        public void registerGpioCallback(GpioCallback callback) throws IOException {
+            registerGpioCallback(new Handler(), callback);
+        }
+
+        @Override
+        public void registerGpioCallback(Handler handler, GpioCallback callback)
+                throws IOException {
+            throw new IOException("Callbacks are not supported on " + getName());
+        }
+
+        @Override
+        public void unregisterGpioCallback(GpioCallback callback) {
+        }
+    }
+
+    private class SckPin extends Pin {
+        @Override
+        public String getName() {
+            return TAG + "-SCK";
+        }
+
+        @Override
+        public void setDirection(int direction) throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+                mOutput = direction != DIRECTION_IN;
+                if (mOutput) setLevel(direction == DIRECTION_OUT_INITIALLY_HIGH);
+            }
+        }
+
+        @Override
+        public void setValue(boolean value) throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+                if (!mOutput) throw new IllegalStateException("SCK is not an output");
+                setLevel(value);
+            }
+        }
+
+        @Override
+        public boolean getValue() throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+                return mValue;
+            }
+        }
+
+        private void setLevel(boolean value) {
+            if (value == mValue) return;
+            mValue = value;
+            if (value) {
+                onSckRising();
+            } else {
+                onSckFalling();
+            }
+        }
+    }
+
+    private class DataPin extends Pin {
+        private int mEdgeTriggerType = EDGE_NONE;
+        private Handler mCallbackHandler;
+        private GpioCallback mCallback;
+
+        private final Runnable mCheckEdge = new Runnable() {
+            @Override
+            public void run() {
+                checkEdge();
+            }
+        };
+
+        @Override
+        public String getName() {
+            return TAG + "-DATA";
+        }
+
+        @Override
+        public void setDirection(int direction) throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+                boolean oldLevel = dataLevel();
+                mOutput = direction != DIRECTION_IN;
+                if (mOutput) mValue = direction == DIRECTION_OUT_INITIALLY_HIGH;
+                onDataChanged(oldLevel, dataLevel());
+            }
+        }
+
+        @Override
+        public void setEdgeTriggerType(int edgeTriggerType) throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+                mEdgeTriggerType = edgeTriggerType;
+            }
+        }
+
+        @Override
+        public void setValue(boolean value) throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+                if (!mOutput) throw new IllegalStateException("DATA is not an output");
+                boolean oldLevel = dataLevel();
+                mValue = value;
+                onDataChanged(oldLevel, dataLevel());
+            }
+        }
+
+        @Override
+        public boolean getValue() throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+                return dataLevel();
+            }
+        }
+
+        @Override
+        public void registerGpioCallback(Handler handler, GpioCallback callback)
+                throws IOException {
+            synchronized (mLock) {
+                checkOpen();
+                mCallbackHandler = handler;
+                mCallback = callback;
+                if (mState == STATE_CONVERTING) scheduleDataReady(mReadyAtMillis);
+            }
+        }
+
+        @Override
+        public void unregisterGpioCallback(GpioCallback callback) {
+            synchronized (mLock) {
+                mOperations++;
+                if (mCallback != callback) return;
+                if (mCallbackHandler != null) mCallbackHandler.removeCallbacks(mCheckEdge);
+                mCallback = null;
+                mCallbackHandler = null;
+            }
+        }
+
+        // Must be called with the lock held.  The time is on the simulator's clock.
+        void scheduleDataReady(long readyAtMillis) {
+            if (mCallbackHandler == null) return;
+            mCallbackHandler.removeCallbacks(mCheckEdge);
+            mCallbackHandler.postDelayed(mCheckEdge,
+                    Math.max(readyAtMillis - mClock.uptimeMillis(), 0));
+        }
+
+        // Deliver the falling edge of the data ready signal, if there is one
+        private void checkEdge() {
+            GpioCallback callback;
+            synchronized (mLock) {
+                callback = mCallback;
+                if (callback == null || dataLevel()) return;
+                if (mEdgeTriggerType != EDGE_FALLING && mEdgeTriggerType != EDGE_BOTH) return;
+            }
+            if (!callback.onGpioEdge(this)) unregisterGpioCallback(callback);
+        }
+    }
+}
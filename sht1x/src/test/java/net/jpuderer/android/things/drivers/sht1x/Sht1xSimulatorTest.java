@@ -0,0 +1,84 @@
+package net.jpuderer.android.things.drivers.sht1x;
+
+import com.google.android.things.pio.Gpio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Sht1xSimulatorTest {
+    private Sht1xSimulator mSimulator;
+    private Gpio mData;
+    private Gpio mSck;
+    private long mNowMillis = 1000;
+
+    @Before
+    public void setUp() throws IOException {
+        mSimulator = new Sht1xSimulator();
+        mSimulator.setClock(new Sht1xSimulator.Clock() {
+            @Override
+            public long uptimeMillis() {
+                return mNowMillis;
+            }
+        });
+        mData = mSimulator.getDataGpio();
+        mSck = mSimulator.getSckGpio();
+        mSck.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+        mData.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
+    }
+
+    @Test
+    public void acknowledgesCommandAfterTransmissionStart() throws IOException {
+        transmissionStart(true);
+        assertTrue(sendByte(Sht1xSensor.SHT1X_CMD_MEASURE_TEMPERATURE));
+    }
+
+    @Test
+    public void ignoresStartWithoutSckPulse() throws IOException {
+        // DATA falls and rises while SCK stays high
+        transmissionStart(false);
+        assertFalse(sendByte(Sht1xSensor.SHT1X_CMD_MEASURE_TEMPERATURE));
+    }
+
+    @Test
+    public void convertsOnInjectedClock() throws IOException {
+        transmissionStart(true);
+        assertTrue(sendByte(Sht1xSensor.SHT1X_CMD_MEASURE_TEMPERATURE));
+
+        // DATA stays high until the conversion time has passed on the clock
+        mNowMillis += Sht1xSensor.SHT1X_CONVERSION_TIME_14BIT - 1;
+        assertTrue(mData.getValue());
+        mNowMillis += 1;
+        assertFalse(mData.getValue());
+    }
+
+    // Must be called with SCK low and DATA high
+    private void transmissionStart(boolean sckPulse) throws IOException {
+        mSck.setValue(true);
+        mData.setValue(false);
+        if (sckPulse) {
+            mSck.setValue(false);
+            mSck.setValue(true);
+        }
+        mData.setValue(true);
+        mSck.setValue(false);
+    }
+
+    // Shift out a byte, and return whether the sensor acknowledged it
+    private boolean sendByte(int value) throws IOException {
+        for (int i = 7; i >= 0; i--) {
+            mData.setValue((value & (1 << i)) != 0);
+            mSck.setValue(true);
+            mSck.setValue(false);
+        }
+        mData.setDirection(Gpio.DIRECTION_IN);
+        mSck.setValue(true);
+        boolean ack = !mData.getValue();
+        mSck.setValue(false);
+        return ack;
+    }
+}